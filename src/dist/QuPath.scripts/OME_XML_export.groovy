@@ -208,7 +208,7 @@ void addROI(qupath.lib.roi.interfaces.ROI roi, PathROIObject path, int index) {
         case PolygonROI:
             def polygon = roi as PolygonROI
             def shape = new Polygon()
-            def points = polygon.getAllPoints().collect { String.format("%f,%f", it.getX(), it.getY()) }.join(" ")
+            def points = polygon.getAllPoints().collect { it.getX() + "," + it.getY() }.join(" ")
             shape.setID(shapeID)
             shape.setPoints(points)
             setCommonProperties(shape, path, roi)
@@ -217,7 +217,7 @@ void addROI(qupath.lib.roi.interfaces.ROI roi, PathROIObject path, int index) {
         case AreaROI:
             def polygon = roi as AreaROI
             def shape = new Polygon()
-            def points = polygon.getAllPoints().collect { String.format("%f,%f", it.getX(), it.getY()) }.join(" ")
+            def points = polygon.getAllPoints().collect { it.getX() + "," + it.getY() }.join(" ")
             shape.setID(shapeID)
             shape.setPoints(points)
             setCommonProperties(shape, path, roi)
@@ -226,7 +226,7 @@ void addROI(qupath.lib.roi.interfaces.ROI roi, PathROIObject path, int index) {
         case PolylineROI:
             def polyline = roi as PolylineROI
             def shape = new Polyline()
-            def points = polyline.getAllPoints().collect { String.format("%f,%f", it.getX(), it.getY()) }.join(" ")
+            def points = polyline.getAllPoints().collect { it.getX() + "," + it.getY() }.join(" ")
             shape.setID(shapeID)
             shape.setPoints(points)
             setCommonProperties(shape, path, roi)
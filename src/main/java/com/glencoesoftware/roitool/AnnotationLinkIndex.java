@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import omero.model.Annotation;
+
+/**
+ * In-memory index of the annotations linked to an Image, its ROIs and their
+ * Shapes.  Populated in bulk before conversion so that the metadata
+ * retrievers do not need to query OMERO for each ROI or Shape.
+ */
+public class AnnotationLinkIndex {
+
+    /** All distinct annotations in the index, keyed by annotation ID. */
+    private final Map<Long, Annotation> annotations =
+            new LinkedHashMap<Long, Annotation>();
+
+    /** Annotations linked to each Image ID. */
+    private final Map<Long, List<Annotation>> imageLinks =
+            new HashMap<Long, List<Annotation>>();
+
+    /** Annotations linked to each ROI ID. */
+    private final Map<Long, List<Annotation>> roiLinks =
+            new HashMap<Long, List<Annotation>>();
+
+    /** Annotations linked to each Shape ID. */
+    private final Map<Long, List<Annotation>> shapeLinks =
+            new HashMap<Long, List<Annotation>>();
+
+    /**
+     * Record a link between an Image and an annotation.
+     * @param imageId OMERO Image ID
+     * @param annotation linked annotation, hydrated with its update event
+     */
+    public void addImageLink(long imageId, Annotation annotation) {
+        addLink(imageLinks, imageId, annotation);
+    }
+
+    /**
+     * Record a link between a ROI and an annotation.
+     * @param roiId OMERO ROI ID
+     * @param annotation linked annotation, hydrated with its update event
+     */
+    public void addRoiLink(long roiId, Annotation annotation) {
+        addLink(roiLinks, roiId, annotation);
+    }
+
+    /**
+     * Record a link between a Shape and an annotation.
+     * @param shapeId OMERO Shape ID
+     * @param annotation linked annotation, hydrated with its update event
+     */
+    public void addShapeLink(long shapeId, Annotation annotation) {
+        addLink(shapeLinks, shapeId, annotation);
+    }
+
+    private void addLink(Map<Long, List<Annotation>> links, long parentId,
+                         Annotation annotation) {
+        final long annotationId = annotation.getId().getValue();
+        Annotation existing = annotations.get(annotationId);
+        if (existing == null) {
+            annotations.put(annotationId, annotation);
+            existing = annotation;
+        }
+        List<Annotation> linked = links.get(parentId);
+        if (linked == null) {
+            linked = new ArrayList<Annotation>(1);
+            links.put(parentId, linked);
+        }
+        linked.add(existing);
+    }
+
+    /**
+     * @return all distinct annotations in the index, in the order in which
+     * they were first linked
+     */
+    public List<Annotation> getAnnotations() {
+        return new ArrayList<Annotation>(annotations.values());
+    }
+
+    /**
+     * @param imageId OMERO Image ID
+     * @return annotations linked to the Image, never <code>null</code>
+     */
+    public List<Annotation> getImageAnnotations(long imageId) {
+        return getLinks(imageLinks, imageId);
+    }
+
+    /**
+     * @param roiId OMERO ROI ID
+     * @return annotations linked to the ROI, never <code>null</code>
+     */
+    public List<Annotation> getRoiAnnotations(long roiId) {
+        return getLinks(roiLinks, roiId);
+    }
+
+    /**
+     * @param shapeId OMERO Shape ID
+     * @return annotations linked to the Shape, never <code>null</code>
+     */
+    public List<Annotation> getShapeAnnotations(long shapeId) {
+        return getLinks(shapeLinks, shapeId);
+    }
+
+    private List<Annotation> getLinks(
+            Map<Long, List<Annotation>> links, long parentId) {
+        final List<Annotation> linked = links.get(parentId);
+        if (linked == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(linked);
+    }
+
+    /**
+     * @return number of distinct annotations in the index
+     */
+    public int size() {
+        return annotations.size();
+    }
+}
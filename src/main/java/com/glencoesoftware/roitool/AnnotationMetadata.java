@@ -62,6 +62,10 @@ public class AnnotationMetadata extends MetadataBase {
     private final List<TimestampAnnotation> timestampAnnotationList = new ArrayList<>();
     private final List<XmlAnnotation> xmlAnnotationList = new ArrayList<>();
 
+    public AnnotationMetadata(Function<IObject, String> lsids, AnnotationLinkIndex annotationLinks) {
+        this(lsids, annotationLinks.getAnnotations());
+    }
+
     public AnnotationMetadata(Function<IObject, String> lsids, List<Annotation> annotations) {
         super(lsids);
         for (final Annotation annotation : annotations) {
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Opens buffered streams to and from files, transparently compressing or
+ * decompressing them according to the file extension:
+ * <ul>
+ * <li><code>.gz</code>: gzip</li>
+ * <li><code>.zst</code>: Zstandard</li>
+ * <li><code>.zz</code> or <code>.deflate</code>: zlib</li>
+ * </ul>
+ * Any other file is read and written as it is.
+ */
+public class CompressedStreams {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /** Compression formats, selected by file extension. */
+    enum Format {
+        NONE,
+        GZIP,
+        ZSTD,
+        DEFLATE;
+
+        /**
+         * @param file a file
+         * @return the compression format implied by the file's extension
+         */
+        static Format forFile(File file) {
+            final String name = file.getName().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".gz")) {
+                return GZIP;
+            }
+            if (name.endsWith(".zst")) {
+                return ZSTD;
+            }
+            if (name.endsWith(".zz") || name.endsWith(".deflate")) {
+                return DEFLATE;
+            }
+            return NONE;
+        }
+    }
+
+    private CompressedStreams() {
+    }
+
+    /**
+     * Open a stream to read the uncompressed content of a file.
+     * @param file file to read, compressed according to its extension
+     * @return buffered stream of the uncompressed content
+     * @throws IOException if the file could not be opened
+     */
+    public static InputStream newInputStream(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            switch (Format.forFile(file)) {
+                case GZIP:
+                    return new BufferedInputStream(
+                            new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+                case ZSTD:
+                    return new BufferedInputStream(new ZstdInputStream(
+                            new BufferedInputStream(in, BUFFER_SIZE)),
+                            BUFFER_SIZE);
+                case DEFLATE:
+                    return new BufferedInputStream(
+                            newInflaterInputStream(in), BUFFER_SIZE);
+                default:
+                    return new BufferedInputStream(in, BUFFER_SIZE);
+            }
+        }
+        catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param in zlib compressed stream
+     * @return stream inflating <code>in</code> with a buffer of
+     * {@link #BUFFER_SIZE}, which releases its inflater when closed
+     */
+    private static InputStream newInflaterInputStream(InputStream in) {
+        final Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * @param out stream to write zlib compressed data to
+     * @return stream deflating to <code>out</code> with a buffer of
+     * {@link #BUFFER_SIZE}, which releases its deflater when closed
+     */
+    private static OutputStream newDeflaterOutputStream(OutputStream out) {
+        final Deflater deflater = new Deflater();
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Open a stream to write a file, compressing the content according to
+     * the file's extension.  The stream must be closed to complete the
+     * compressed data.
+     * @param file file to write
+     * @return buffered stream to which uncompressed content is written
+     * @throws IOException if the file could not be created
+     */
+    public static OutputStream newOutputStream(File file) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            switch (Format.forFile(file)) {
+                case GZIP:
+                    return new BufferedOutputStream(
+                            new GZIPOutputStream(out, BUFFER_SIZE),
+                            BUFFER_SIZE);
+                case ZSTD:
+                    return new BufferedOutputStream(new ZstdOutputStream(
+                            new BufferedOutputStream(out, BUFFER_SIZE)),
+                            BUFFER_SIZE);
+                case DEFLATE:
+                    return new BufferedOutputStream(
+                            newDeflaterOutputStream(out), BUFFER_SIZE);
+                default:
+                    return new BufferedOutputStream(out, BUFFER_SIZE);
+            }
+        }
+        catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * ROI display order as recorded by PathViewer: a JSON object whose
+ * <code>displayorder</code> array lists Shape IDs in the order in which
+ * their ROIs should be written.
+ */
+public class DisplayOrder {
+
+    /** Shape IDs in display order. */
+    private final long[] shapeIds;
+
+    /**
+     * Creates a display order from a list of Shape IDs.
+     * @param shapeIds Shape IDs in display order
+     */
+    public DisplayOrder(long[] shapeIds) {
+        this.shapeIds = shapeIds;
+    }
+
+    /**
+     * Parse a PathViewer display order annotation.
+     * @param json annotation text
+     * @return display order listed by the annotation
+     */
+    public static DisplayOrder fromJSON(String json) {
+        final JSONArray array =
+                new JSONObject(json).getJSONArray("displayorder");
+        final long[] shapeIds = new long[array.length()];
+        for (int i=0; i<shapeIds.length; i++) {
+            shapeIds[i] = array.getLong(i);
+        }
+        return new DisplayOrder(shapeIds);
+    }
+
+    /**
+     * Resolve the display order to ROI positions.  Each ROI is placed by the
+     * first of its Shapes to appear in the display order, so ROIs with more
+     * than one Shape are returned once.  ROIs with no listed Shape are
+     * omitted.  Runs in time linear in the length of the display order.
+     * @param shapeRois map from Shape ID to the position of its ROI
+     * @param roiCount number of ROI positions
+     * @param missing receives each listed Shape ID that is not in
+     * <code>shapeRois</code>
+     * @return ROI positions in display order
+     */
+    public int[] resolve(
+            LongIntHashMap shapeRois, int roiCount, LongConsumer missing) {
+        final boolean[] seen = new boolean[roiCount];
+        final int[] order = new int[Math.min(shapeIds.length, roiCount)];
+        int count = 0;
+        for (final long shapeId : shapeIds) {
+            final int roiIndex = shapeRois.get(shapeId, -1);
+            if (roiIndex < 0) {
+                missing.accept(shapeId);
+            }
+            else if (!seen[roiIndex]) {
+                seen[roiIndex] = true;
+                order[count++] = roiIndex;
+            }
+        }
+        return Arrays.copyOf(order, count);
+    }
+
+    /**
+     * @return number of Shape IDs listed
+     */
+    public int size() {
+        return shapeIds.length;
+    }
+}
@@ -19,7 +19,16 @@
 package com.glencoesoftware.roitool;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,19 +54,175 @@ public class Export extends OMEROCommand implements Callable<Integer>
 
     @Parameters(
             index = "0",
+            arity = "0..1",
             description = "OMERO Image ID to export ROIs from"
     )
     Long imageId = null;
 
     @Parameters(
             index = "1",
-            description = "Path to write OME-XML file to"
+            arity = "0..1",
+            description = "Path to write OME-XML file to, compressed if " +
+                          "it ends with .gz, .zst, .zz or .deflate"
     )
     File output;
 
+    @CommandLine.Option(
+            names = "--page-size",
+            description = "Fetch, convert and write ROIs in pages of this " +
+                          "many ROIs instead of all at once"
+    )
+    Integer pageSize = null;
+
+    @CommandLine.Option(
+            names = "--image",
+            split = ",",
+            description = "OMERO Image IDs to export ROIs from, " +
+                          "requires --output-dir"
+    )
+    List<Long> imageIds = new ArrayList<Long>();
+
+    @CommandLine.Option(
+            names = "--manifest",
+            description = "File listing OMERO Image IDs to export ROIs " +
+                          "from, one per line, requires --output-dir"
+    )
+    File manifest = null;
+
+    @CommandLine.Option(
+            names = "--output-dir",
+            description = "Directory to write one <imageId>.ome.xml file " +
+                          "per Image and a summary to"
+    )
+    File outputDirectory = null;
+
+    @CommandLine.Option(
+            names = "--workers",
+            description = "Number of Images to export concurrently " +
+                          "(default: ${DEFAULT-VALUE})"
+    )
+    int workers = 1;
+
+    @CommandLine.Option(
+            names = "--suffix",
+            description = "File name suffix of the files written to " +
+                          "--output-dir, which selects their compression " +
+                          "(default: ${DEFAULT-VALUE})"
+    )
+    String suffix = ".ome.xml";
+
+    @CommandLine.Option(
+            names = "--lightweight",
+            description = "Fetch only the ROI and Shape properties that " +
+                          "are exported, which is faster for Images with " +
+                          "many Shapes"
+    )
+    boolean lightweight = false;
+
+    @CommandLine.Option(
+            names = "--image-metadata",
+            description = "Image metadata to export: " +
+                          "${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})"
+    )
+    ImageMetadataLevel imageMetadata = ImageMetadataLevel.FULL;
+
+    @CommandLine.Option(
+            names = "--since",
+            description = "Only export ROIs changed since an update event, " +
+                          "given as an update event ID or the path to an " +
+                          "earlier export"
+    )
+    String since = null;
+
+    @CommandLine.Option(
+            names = "--bbox",
+            split = ",",
+            paramLabel = "x,y,width,height",
+            description = "Only export Shapes intersecting a bounding box " +
+                          "in pixels"
+    )
+    double[] boundingBox = null;
+
+    @CommandLine.Option(
+            names = "--z",
+            description = "Only export Shapes on Z planes in a range, " +
+                          "e.g. 3 or 0-4"
+    )
+    String zRange = null;
+
+    @CommandLine.Option(
+            names = "--c",
+            description = "Only export Shapes on channels in a range, " +
+                          "e.g. 1 or 0-2"
+    )
+    String cRange = null;
+
+    @CommandLine.Option(
+            names = "--t",
+            description = "Only export Shapes on timepoints in a range, " +
+                          "e.g. 0 or 5-10"
+    )
+    String tRange = null;
+
+    @CommandLine.Option(
+            names = "--shape-type",
+            split = ",",
+            description = "Only export Shapes of the given types, " +
+                          "e.g. Polygon,Rectangle"
+    )
+    List<String> shapeTypes = null;
+
+    @CommandLine.Option(
+            names = "--simplify",
+            paramLabel = "<pixels>",
+            description = "Simplify Polygons and Polylines, dropping " +
+                          "vertices within this distance of the " +
+                          "simplified outline"
+    )
+    double simplifyTolerance = 0;
+
+    @CommandLine.Option(
+            names = "--normalize-points",
+            description = "Write Polygon and Polyline points with each " +
+                          "coordinate in its shortest exact form"
+    )
+    boolean normalizePoints = false;
+
+    @CommandLine.Option(
+            names = "--cache-dir",
+            description = "Directory of a local cache of exported files, " +
+                          "reused while the Image and its ROIs are unchanged"
+    )
+    File cacheDirectory = null;
+
+    @CommandLine.Option(
+            names = "--cache-size",
+            description = "Maximum size of the export cache in megabytes " +
+                          "(default: ${DEFAULT-VALUE})"
+    )
+    long cacheSize = 1024;
+
+    /** Export cache, if enabled. */
+    private ExportCache cache = null;
+
     @Override
     public Integer call() throws Exception
     {
+        if (cacheDirectory != null)
+        {
+            cache = new ExportCache(cacheDirectory, cacheSize * 1024 * 1024);
+        }
+        if (outputDirectory != null)
+        {
+            return exportBatch();
+        }
+        if (imageId == null || output == null)
+        {
+            log.error("An Image ID and output file, " +
+                      "or --output-dir, must be specified");
+            return -1;
+        }
+
         OMEOMEROConverter converter = createConverter(imageId);
         if (converter == null)
         {
@@ -66,13 +231,297 @@ public class Export extends OMEROCommand implements Callable<Integer>
 
         try
         {
-            converter.exportRoisToFile(output);
+            configure(converter);
+            export(converter, imageId, output);
         }
         finally
         {
             converter.close();
+            logCacheStatistics();
         }
         return 0;
     }
 
-}
\ No newline at end of file
+    /**
+     * Apply the export options to a converter.
+     * @param converter initialized converter
+     */
+    private void configure(OMEOMEROConverter converter) throws IOException
+    {
+        converter.setLightweightShapes(lightweight);
+        converter.setImageMetadataLevel(imageMetadata);
+        if (since != null)
+        {
+            long watermark = Watermark.parse(since);
+            log.info("Exporting ROIs changed since update event {}",
+                     watermark);
+            converter.setModifiedSince(watermark);
+        }
+        converter.setRoiFilter(createRoiFilter());
+        converter.setSimplifyTolerance(simplifyTolerance);
+        converter.setNormalizePoints(normalizePoints);
+    }
+
+    /**
+     * Build the Shape filter selected by the command line options.
+     * @return Shape filter, or <code>null</code> if no filter was selected
+     */
+    private RoiFilter createRoiFilter()
+    {
+        if (boundingBox == null && zRange == null && cRange == null
+                && tRange == null && shapeTypes == null)
+        {
+            return null;
+        }
+        RoiFilter filter = new RoiFilter();
+        if (boundingBox != null)
+        {
+            if (boundingBox.length != 4)
+            {
+                throw new IllegalArgumentException(
+                        "--bbox must be given as x,y,width,height");
+            }
+            filter.setBoundingBox(boundingBox[0], boundingBox[1],
+                                  boundingBox[2], boundingBox[3]);
+        }
+        if (zRange != null)
+        {
+            int[] range = RoiFilter.parseRange(zRange);
+            filter.setZRange(range[0], range[1]);
+        }
+        if (cRange != null)
+        {
+            int[] range = RoiFilter.parseRange(cRange);
+            filter.setCRange(range[0], range[1]);
+        }
+        if (tRange != null)
+        {
+            int[] range = RoiFilter.parseRange(tRange);
+            filter.setTRange(range[0], range[1]);
+        }
+        if (shapeTypes != null)
+        {
+            filter.setShapeTypes(shapeTypes);
+        }
+        log.info("Exporting Shapes matching {}", filter);
+        return filter;
+    }
+
+    /**
+     * Export ROIs from the converter's Image to the given file, using the
+     * export cache if it is enabled.
+     * @param converter initialized converter
+     * @param id OMERO Image ID of the converter
+     * @param file output OME-XML file
+     * @return number of exported ROIs
+     */
+    private int export(OMEOMEROConverter converter, long id, File file)
+            throws Exception
+    {
+        if (cache == null)
+        {
+            return export(converter, file);
+        }
+        // the file's compression is part of the cached content
+        String fingerprint = converter.getExportFingerprint()
+                + ";format=" + CompressedStreams.Format.forFile(file);
+        int roiCount = cache.copyTo(id, fingerprint, file);
+        if (roiCount < 0)
+        {
+            roiCount = export(converter, file);
+            cache.put(id, fingerprint, file, roiCount);
+        }
+        return roiCount;
+    }
+
+    /**
+     * Export ROIs from the converter's Image to the given file.
+     * @param converter initialized converter
+     * @param file output OME-XML file
+     * @return number of exported ROIs
+     */
+    private int export(OMEOMEROConverter converter, File file)
+            throws Exception
+    {
+        if (pageSize != null)
+        {
+            return converter.exportRoisToFile(file, pageSize);
+        }
+        return converter.exportRoisToFile(file).size();
+    }
+
+    /**
+     * Export ROIs from every requested Image to the output directory using
+     * a single session shared by a pool of workers, then write a summary
+     * of the per-Image results.
+     * @return 0 if all Images were exported successfully
+     */
+    private Integer exportBatch() throws Exception
+    {
+        List<Long> ids = new ArrayList<Long>(imageIds);
+        if (imageId != null)
+        {
+            ids.add(imageId);
+        }
+        if (manifest != null)
+        {
+            ids.addAll(readManifest(manifest));
+        }
+        if (ids.isEmpty())
+        {
+            log.error("No Image IDs to export");
+            return -1;
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+        {
+            log.error("Could not create output directory {}",
+                      outputDirectory);
+            return -1;
+        }
+
+        OMEOMEROConverter session = createConverter(ids.get(0));
+        if (session == null)
+        {
+            return -1;
+        }
+
+        log.info("Exporting {} Images with {} workers", ids.size(), workers);
+        long start = System.currentTimeMillis();
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.max(1, workers));
+        int failures = 0;
+        int roiCount = 0;
+        try
+        {
+            configure(session);
+            List<Future<ExportResult>> futures =
+                    new ArrayList<Future<ExportResult>>(ids.size());
+            for (final long id : ids)
+            {
+                futures.add(executor.submit(
+                        () -> exportImage(session.forImage(id), id)));
+            }
+            File summaryFile = new File(outputDirectory, "summary.tsv");
+            try (PrintWriter summary = new PrintWriter(
+                    summaryFile, StandardCharsets.UTF_8.name()))
+            {
+                summary.println("imageId\tstatus\trois\tmilliseconds\tmessage");
+                for (Future<ExportResult> future : futures)
+                {
+                    ExportResult result = future.get();
+                    summary.println(result);
+                    if (result.error != null)
+                    {
+                        failures++;
+                    }
+                    else
+                    {
+                        roiCount += result.roiCount;
+                    }
+                }
+            }
+            log.info("Wrote summary to: {}", summaryFile.getAbsolutePath());
+        }
+        finally
+        {
+            executor.shutdownNow();
+            session.close();
+            logCacheStatistics();
+        }
+        log.info("Exported {} ROIs from {} of {} Images in {} ms",
+                 roiCount, ids.size() - failures, ids.size(),
+                 System.currentTimeMillis() - start);
+        return failures == 0 ? 0 : -1;
+    }
+
+    /**
+     * Export ROIs from a single Image, capturing any failure in the result.
+     * @param converter converter for the Image, sharing the batch session
+     * @param id OMERO Image ID
+     * @return result of the export
+     */
+    private ExportResult exportImage(OMEOMEROConverter converter, long id)
+    {
+        ExportResult result = new ExportResult(id);
+        long start = System.currentTimeMillis();
+        try
+        {
+            result.roiCount = export(
+                    converter, id, new File(outputDirectory, id + suffix));
+        }
+        catch (Exception e)
+        {
+            log.error("Failed to export Image:{}", id, e);
+            result.error = String.valueOf(e.getMessage());
+        }
+        finally
+        {
+            converter.close();
+        }
+        result.milliseconds = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * Log the export cache hit and miss counts, if the cache is enabled.
+     */
+    private void logCacheStatistics()
+    {
+        if (cache != null)
+        {
+            log.info("Export cache hits: {}, misses: {}",
+                     cache.getHits(), cache.getMisses());
+        }
+    }
+
+    /**
+     * Read Image IDs from a manifest file.  Blank lines and lines starting
+     * with <code>#</code> are ignored; the first comma or whitespace
+     * separated field of every other line is an Image ID.
+     * @param file manifest file
+     * @return Image IDs in manifest order
+     */
+    private static List<Long> readManifest(File file) throws IOException
+    {
+        List<Long> ids = new ArrayList<Long>();
+        for (String line : Files.readAllLines(
+                file.toPath(), StandardCharsets.UTF_8))
+        {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            ids.add(Long.parseLong(line.split("[,\\s]", 2)[0]));
+        }
+        return ids;
+    }
+
+    /**
+     * Outcome of exporting ROIs from one Image, formatted as a summary row.
+     */
+    private static class ExportResult
+    {
+        final long imageId;
+
+        int roiCount;
+
+        long milliseconds;
+
+        String error;
+
+        ExportResult(long imageId)
+        {
+            this.imageId = imageId;
+        }
+
+        @Override
+        public String toString()
+        {
+            return imageId + "\t" + (error == null ? "OK" : "FAILED") + "\t"
+                    + roiCount + "\t" + milliseconds + "\t"
+                    + (error == null ? "" : error.replaceAll("\\s+", " "));
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local on-disk cache of exported files.  Entries are keyed by Image ID and
+ * by a fingerprint of everything that affects the export, see
+ * {@link OMEOMEROConverter#getExportFingerprint()}, so that a changed Image
+ * never matches a stale entry.  Entries are evicted least recently used
+ * first, using file modification times, once the cache exceeds its
+ * maximum size.  Thread safe; concurrent processes sharing a cache
+ * directory may evict each other's entries but will not read partial ones.
+ */
+public class ExportCache {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(ExportCache.class);
+
+    /** File name extension of cache entries. */
+    private static final String EXTENSION = ".export";
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    /**
+     * Creates a cache, creating its directory if necessary.
+     * @param directory directory holding the cache entries
+     * @param maxBytes total size of the entries above which the least
+     * recently used are evicted
+     * @throws IOException if the directory could not be created
+     */
+    public ExportCache(File directory, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(
+                    "Could not create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Copy a cached export to the given file, if there is one.
+     * @param imageId OMERO Image ID
+     * @param fingerprint export fingerprint
+     * @param file file to copy the cached export to
+     * @return number of ROIs in the cached export, or -1 if there is none
+     * @throws IOException if the cached export could not be copied
+     */
+    public synchronized int copyTo(long imageId, String fingerprint, File file)
+            throws IOException {
+        final File entry = find(prefix(imageId, fingerprint));
+        if (entry == null) {
+            misses++;
+            log.debug("Export cache miss for Image:{}", imageId);
+            return -1;
+        }
+        hits++;
+        log.info("Export cache hit for Image:{}: {}", imageId, entry);
+        Files.copy(entry.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+        // modification time orders entries for eviction
+        entry.setLastModified(System.currentTimeMillis());
+        return roiCount(entry);
+    }
+
+    /**
+     * Add an export to the cache, then evict entries as needed.
+     * @param imageId OMERO Image ID
+     * @param fingerprint export fingerprint, computed before exporting
+     * @param file exported file
+     * @param roiCount number of ROIs in the export
+     * @throws IOException if the export could not be copied into the cache
+     */
+    public synchronized void put(
+            long imageId, String fingerprint, File file, int roiCount)
+                    throws IOException {
+        final File entry = new File(directory,
+                prefix(imageId, fingerprint) + roiCount + EXTENSION);
+        final File partial = File.createTempFile("partial", ".tmp", directory);
+        try {
+            Files.copy(file.toPath(), partial.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+            Files.move(partial.toPath(), entry.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(partial.toPath());
+        }
+        evict();
+    }
+
+    /**
+     * @return number of lookups that found a cached export
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups that did not find a cached export
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Delete least recently used entries until the cache is no larger than
+     * its maximum size.
+     */
+    private void evict() {
+        final File[] entries =
+                directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (entries == null) {
+            return;
+        }
+        long size = 0;
+        for (final File entry : entries) {
+            size += entry.length();
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (int i=0; i<entries.length && size > maxBytes; i++) {
+            final long length = entries[i].length();
+            if (entries[i].delete()) {
+                log.debug("Evicted {} from export cache", entries[i]);
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * @param prefix entry name prefix
+     * @return the entry with the given prefix, or <code>null</code>
+     */
+    private File find(String prefix) {
+        final File[] entries = directory.listFiles((dir, name) ->
+                name.startsWith(prefix) && name.endsWith(EXTENSION));
+        return entries == null || entries.length == 0 ? null : entries[0];
+    }
+
+    /**
+     * @param entry cache entry
+     * @return number of ROIs recorded in the entry's name
+     */
+    private static int roiCount(File entry) {
+        final String name = entry.getName();
+        return Integer.parseInt(name.substring(
+                name.lastIndexOf('-') + 1, name.length() - EXTENSION.length()));
+    }
+
+    /**
+     * @return entry name prefix, <code>&lt;imageId&gt;-&lt;SHA-256 of
+     * fingerprint&gt;-</code>
+     */
+    private static String prefix(long imageId, String fingerprint) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder prefix = new StringBuilder();
+        prefix.append(imageId).append('-');
+        for (final byte b : digest.digest(
+                fingerprint.getBytes(StandardCharsets.UTF_8))) {
+            prefix.append(String.format("%02x", b));
+        }
+        return prefix.append('-').toString();
+    }
+}
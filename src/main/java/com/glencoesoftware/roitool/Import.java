@@ -19,11 +19,30 @@
 package com.glencoesoftware.roitool;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import omero.model.IObject;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
@@ -47,34 +66,662 @@ public class Import extends OMEROCommand implements Callable<Integer>
 
     @Parameters(
         index = "0",
+        arity = "0..1",
         description = "OMERO Image ID to link the ROIs"
     )
     Long imageId = null;
 
     @Parameters(
         index = "1",
-        description = "Input OME-XML file"
+        arity = "0..1",
+        description = "Input OME-XML file, decompressed if it ends " +
+                      "with .gz, .zst, .zz or .deflate"
     )
     File input;
 
+    @Option(
+        names = "--manifest",
+        description = "File listing the imports to run, one " +
+                      "<imageId>,<input> pair per line, or a .json " +
+                      "array of {\"imageId\": ..., \"input\": ...} objects"
+    )
+    File manifest = null;
+
+    @Option(
+        names = "--input-dir",
+        description = "Directory of <imageId><suffix> files to import, " +
+                      "e.g. written by export --output-dir"
+    )
+    File inputDirectory = null;
+
+    @Option(
+        names = "--suffix",
+        description = "File name suffix of the files imported from " +
+                      "--input-dir (default: ${DEFAULT-VALUE})"
+    )
+    String suffix = ".ome.xml";
+
+    @Option(
+        names = "--workers",
+        description = "Number of files to import concurrently " +
+                      "(default: ${DEFAULT-VALUE})"
+    )
+    int workers = 1;
+
+    @Option(
+        names = "--retries",
+        description = "Number of times a failed import from a manifest " +
+                      "or directory is resumed (default: ${DEFAULT-VALUE})"
+    )
+    int retries = 2;
+
+    @Option(
+        names = "--summary",
+        description = "File to write the per file results of an import " +
+                      "from a manifest or directory to"
+    )
+    File summaryFile = null;
+
+    @Option(
+        names = "--batch-size",
+        description = "Maximum number of ROIs saved per server call " +
+                      "(default: ${DEFAULT-VALUE})"
+    )
+    int batchSize = ROIMetadataStoreClient.DEFAULT_BATCH_SIZE;
+
+    @Option(
+        names = "--batch-megabytes",
+        description = "Approximate maximum size in megabytes of the ROIs " +
+                      "saved per server call (default: ${DEFAULT-VALUE})"
+    )
+    long batchMegabytes =
+        ROIMetadataStoreClient.DEFAULT_BATCH_BYTES / (1024 * 1024);
+
+    @Option(
+        names = "--writers",
+        description = "Number of OMERO sessions saving ROI batches " +
+                      "concurrently (default: ${DEFAULT-VALUE})"
+    )
+    int writers = 1;
+
+    @Option(
+        names = "--journal",
+        description = "Journal recording the ROIs saved, so that a " +
+                      "failed import can be resumed (default: " +
+                      "<input>.journal, or in the temporary directory " +
+                      "if the input's directory is not writable)"
+    )
+    File journalFile = null;
+
+    @Option(
+        names = "--resume",
+        description = "Resume a failed import, skipping the ROIs " +
+                      "recorded in its journal"
+    )
+    boolean resume = false;
+
+    @Option(
+        names = "--deduplicate",
+        description = "Skip ROIs that were imported to the Image before " +
+                      "with --deduplicate"
+    )
+    boolean deduplicate = false;
+
+    @Option(
+        names = "--simplify",
+        paramLabel = "<pixels>",
+        description = "Simplify Polygons and Polylines, dropping vertices " +
+                      "within this distance of the simplified outline"
+    )
+    double simplifyTolerance = 0;
+
+    @Option(
+        names = "--normalize-points",
+        description = "Save Polygon and Polyline points with each " +
+                      "coordinate in its shortest exact form"
+    )
+    boolean normalizePoints = false;
+
+    @Option(
+        names = "--trim-masks",
+        description = "Trim masks to the bounding box of their set pixels"
+    )
+    boolean trimMasks = false;
+
     @Override
     public Integer call() throws Exception
     {
+        if (manifest != null || inputDirectory != null)
+        {
+            return importBatch();
+        }
+        if (imageId == null || input == null)
+        {
+            log.error("An Image ID and input file, " +
+                      "or --manifest or --input-dir, must be specified");
+            return -1;
+        }
+
         OMEOMEROConverter converter = createConverter(imageId);
         if (converter == null)
         {
             return -1;
         }
 
+        ImportJournal journal = null;
         try
         {
-            converter.importRoisFromFile(input);
+            configure(converter);
+            if (journalFile == null)
+            {
+                journalFile = getJournalFile(input);
+            }
+            journal = new ImportJournal(journalFile, imageId, input, resume);
+            if (importFile(converter, input, journal) < 0)
+            {
+                log.error("Import incomplete, run again with --resume " +
+                          "to continue from journal {}", journalFile);
+                return -1;
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Failed to import {}", input, e);
+            return -1;
         }
         finally
         {
+            if (journal != null)
+            {
+                journal.close();
+            }
             converter.close();
         }
         return 0;
     }
 
+    /**
+     * Apply the import options to a converter.
+     * @param converter initialized converter
+     */
+    private void configure(OMEOMEROConverter converter)
+    {
+        converter.setBatchSize(batchSize);
+        converter.setBatchBytes(batchMegabytes * 1024 * 1024);
+        converter.setWriters(writers);
+        converter.setDeduplicate(deduplicate);
+        converter.setTrimMasks(trimMasks);
+        converter.setSimplifyTolerance(simplifyTolerance);
+        converter.setNormalizePoints(normalizePoints);
+    }
+
+    /**
+     * The default journal of an import is <code>&lt;input&gt;.journal</code>,
+     * unless the input's directory is not writable, in which case it is
+     * named after the input's path in the temporary directory, so that
+     * importing from read-only storage still works and can be resumed.
+     * @param file input file
+     * @return default journal of an import from the file
+     */
+    private static File getJournalFile(File file)
+    {
+        final File journal = new File(file.getPath() + ".journal");
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (journal.exists() || directory == null
+                || Files.isWritable(directory.toPath()))
+        {
+            return journal;
+        }
+        return new File(System.getProperty("java.io.tmpdir"),
+                file.getName() + "." +
+                Integer.toHexString(file.getAbsolutePath().hashCode()) +
+                ".journal");
+    }
+
+    /**
+     * Import ROIs from a file to the converter's Image, recording them in
+     * a journal that is deleted once the import is complete.
+     * @param converter initialized and configured converter
+     * @param file input OME-XML file
+     * @param journal journal of the import
+     * @return number of imported ROIs, or -1 if the import is incomplete
+     * and may be resumed from the journal
+     * @throws IOException if the input could not be read or the journal
+     * written
+     */
+    private int importFile(OMEOMEROConverter converter, File file,
+            ImportJournal journal) throws IOException
+    {
+        converter.setJournal(journal);
+        List<IObject> rois = converter.importRoisFromFile(file);
+        if (rois == null)
+        {
+            return -1;
+        }
+        journal.complete();
+        return rois.size();
+    }
+
+    /**
+     * Import every file listed in the manifest or found in the input
+     * directory with a pool of workers, then report the per-file results
+     * and the overall throughput.  Each worker joins the login session
+     * once and imports its files one after the other over that
+     * connection.
+     * @return 0 if all files were imported successfully
+     */
+    private Integer importBatch() throws Exception
+    {
+        List<ImportResult> items = new ArrayList<ImportResult>();
+        if (manifest != null)
+        {
+            items.addAll(readManifest(manifest));
+        }
+        if (inputDirectory != null)
+        {
+            items.addAll(listInputDirectory(inputDirectory, suffix));
+        }
+        if (items.isEmpty())
+        {
+            log.error("No files to import");
+            return -1;
+        }
+        if (journalFile != null)
+        {
+            log.warn("Ignoring --journal, each file of a batch import " +
+                     "has its default journal");
+        }
+
+        OMEOMEROConverter session = createConverter(items.get(0).imageId);
+        if (session == null)
+        {
+            return -1;
+        }
+
+        int workerCount = Math.max(1, Math.min(workers, items.size()));
+        log.info("Importing {} files with {} workers", items.size(),
+                 workerCount);
+        long start = System.currentTimeMillis();
+        Queue<ImportResult> queue =
+                new ConcurrentLinkedQueue<ImportResult>(items);
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>(workerCount);
+            for (int i = 0; i < workerCount; i++)
+            {
+                futures.add(executor.submit(() -> {
+                    try (ImportWorker worker = new ImportWorker(session))
+                    {
+                        ImportResult item;
+                        while ((item = queue.poll()) != null)
+                        {
+                            importItem(worker, item);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+            session.close();
+        }
+        long milliseconds = Math.max(1, System.currentTimeMillis() - start);
+
+        int failures = 0;
+        int roiCount = 0;
+        long bytes = 0;
+        for (ImportResult result : items)
+        {
+            if (result.error != null)
+            {
+                failures++;
+            }
+            else
+            {
+                roiCount += result.roiCount;
+                bytes += result.input.length();
+            }
+        }
+        if (summaryFile != null)
+        {
+            try (PrintWriter summary = new PrintWriter(
+                    summaryFile, StandardCharsets.UTF_8.name()))
+            {
+                summary.println("imageId\tinput\tstatus\tattempts\t" +
+                                "rois\tbytes\tmilliseconds\tmessage");
+                for (ImportResult result : items)
+                {
+                    summary.println(result);
+                }
+            }
+            log.info("Wrote summary to: {}", summaryFile.getAbsolutePath());
+        }
+        log.info("Imported {} ROIs from {} of {} files ({} MB) in {} ms: " +
+                 "{} ROIs/s, {} MB/s",
+                 roiCount, items.size() - failures, items.size(),
+                 String.format("%.1f", bytes / 1048576.0), milliseconds,
+                 String.format("%.1f", roiCount * 1000.0 / milliseconds),
+                 String.format("%.2f", bytes / 1048.576 / milliseconds));
+        if (failures > 0)
+        {
+            log.error("{} of {} files failed to import", failures,
+                      items.size());
+        }
+        return failures == 0 ? 0 : -1;
+    }
+
+    /**
+     * Import ROIs from a single file, capturing any failure in the result.
+     * Failed saves are retried, resuming from the file's journal, up to
+     * <code>--retries</code> times; inputs that cannot be read or are not
+     * valid OME-XML, and journals that cannot be used, are not.
+     * @param worker worker holding the joined session to import with
+     * @param item the file and Image to import, and the result to fill in
+     */
+    private void importItem(ImportWorker worker, ImportResult item)
+    {
+        long start = System.currentTimeMillis();
+        boolean resumeItem = resume;
+        for (int attempt = 1; attempt <= retries + 1; attempt++)
+        {
+            item.attempts = attempt;
+            ImportJournal journal = null;
+            try
+            {
+                OMEOMEROConverter converter = worker.forImage(item.imageId);
+                configure(converter);
+                journal = new ImportJournal(getJournalFile(item.input),
+                        item.imageId, item.input, resumeItem);
+                // later attempts continue from this attempt's journal
+                resumeItem = true;
+                int rois = importFile(converter, item.input, journal);
+                if (rois >= 0)
+                {
+                    item.roiCount = rois;
+                    item.error = null;
+                    break;
+                }
+                item.error = "Import incomplete, journal " +
+                        getJournalFile(item.input);
+                log.error("Failed to import {} to Image:{}: {}",
+                          item.input, item.imageId, item.error);
+                // the converter reports failed saves, including those of a
+                // broken connection, as an incomplete import, so join again
+                // for the retry
+                worker.disconnect();
+            }
+            catch (IOException e)
+            {
+                log.error("Failed to import {} to Image:{}",
+                          item.input, item.imageId, e);
+                item.error = String.valueOf(e.getMessage());
+                break;
+            }
+            catch (Exception e)
+            {
+                log.error("Failed to import {} to Image:{}",
+                          item.input, item.imageId, e);
+                item.error = String.valueOf(e.getMessage());
+                // the connection may be broken, join again for the retry
+                worker.disconnect();
+            }
+            finally
+            {
+                if (journal != null)
+                {
+                    try
+                    {
+                        journal.close();
+                    }
+                    catch (IOException e)
+                    {
+                        log.warn("Could not close journal", e);
+                    }
+                }
+            }
+            if (attempt <= retries)
+            {
+                log.warn("Retrying import of {} to Image:{}, attempt {} of {}",
+                         item.input, item.imageId, attempt + 1, retries + 1);
+            }
+        }
+        item.milliseconds = System.currentTimeMillis() - start;
+        log.info("{} import of {} to Image:{}: {} ROIs in {} ms",
+                 item.error == null ? "Completed" : "Failed", item.input,
+                 item.imageId, item.roiCount, item.milliseconds);
+    }
+
+    /**
+     * Read the imports to run from a manifest file.  A manifest whose name
+     * ends with <code>.json</code> holds an array of objects with an
+     * <code>imageId</code> and an <code>input</code> property.  Any other
+     * manifest is text: blank lines and lines starting with <code>#</code>
+     * are ignored, and every other line holds an Image ID and an input
+     * file, separated by a comma or whitespace.  A first line whose Image
+     * ID is not a number is taken as a header.  Relative input paths are
+     * resolved against the manifest's directory.
+     * @param file manifest file
+     * @return imports in manifest order
+     */
+    private static List<ImportResult> readManifest(File file)
+            throws IOException
+    {
+        if (file.getName().toLowerCase(Locale.ROOT).endsWith(".json"))
+        {
+            return readJSONManifest(file);
+        }
+        List<ImportResult> items = new ArrayList<ImportResult>();
+        boolean first = true;
+        for (String line : Files.readAllLines(
+                file.toPath(), StandardCharsets.UTF_8))
+        {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+                continue;
+            }
+            String[] fields = line.split("\\s*[,\\s]\\s*", 2);
+            long id;
+            try
+            {
+                id = Long.parseLong(fields[0]);
+            }
+            catch (NumberFormatException e)
+            {
+                if (first)
+                {
+                    first = false;
+                    continue;
+                }
+                throw new IOException("Invalid Image ID in manifest " +
+                        file + ": " + line, e);
+            }
+            first = false;
+            if (fields.length < 2 || fields[1].isEmpty())
+            {
+                throw new IOException("No input file in manifest " +
+                        file + ": " + line);
+            }
+            items.add(new ImportResult(id, resolve(file, fields[1])));
+        }
+        return items;
+    }
+
+    /**
+     * Read the imports to run from a JSON manifest, e.g.
+     * <code>[{"imageId": 1, "input": "1.ome.xml"}]</code>.
+     * @param file manifest file
+     * @return imports in manifest order
+     */
+    private static List<ImportResult> readJSONManifest(File file)
+            throws IOException
+    {
+        List<ImportResult> items = new ArrayList<ImportResult>();
+        try (Reader reader = Files.newBufferedReader(
+                file.toPath(), StandardCharsets.UTF_8))
+        {
+            JSONArray array = new JSONArray(new JSONTokener(reader));
+            for (int i = 0; i < array.length(); i++)
+            {
+                JSONObject entry = array.getJSONObject(i);
+                items.add(new ImportResult(entry.getLong("imageId"),
+                        resolve(file, entry.getString("input"))));
+            }
+        }
+        catch (JSONException e)
+        {
+            throw new IOException("Invalid manifest " + file, e);
+        }
+        return items;
+    }
+
+    /**
+     * @param manifest manifest file
+     * @param path input path listed in the manifest
+     * @return the input file, relative to the manifest's directory unless
+     * the path is absolute
+     */
+    private static File resolve(File manifest, String path)
+    {
+        File input = new File(path);
+        if (input.isAbsolute())
+        {
+            return input;
+        }
+        return new File(manifest.getAbsoluteFile().getParentFile(), path);
+    }
+
+    /**
+     * List the files named <code>&lt;imageId&gt;&lt;suffix&gt;</code> in a
+     * directory, the layout written by <code>export --output-dir</code>.
+     * @param directory input directory
+     * @param suffix file name suffix
+     * @return imports in file name order
+     */
+    private static List<ImportResult> listInputDirectory(File directory,
+            String suffix) throws IOException
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+        {
+            throw new IOException("Could not list directory " + directory);
+        }
+        Arrays.sort(files);
+        List<ImportResult> items = new ArrayList<ImportResult>();
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (!file.isFile() || !name.endsWith(suffix))
+            {
+                continue;
+            }
+            String id = name.substring(0, name.length() - suffix.length());
+            if (id.matches("\\d+"))
+            {
+                items.add(new ImportResult(Long.parseLong(id), file));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * A batch import worker's converter, joined to the login session when
+     * the worker starts its first import and reused for the following
+     * ones, so that a worker sets up a single connection, metadata store
+     * and mask decoding pool rather than one per file.
+     */
+    private static class ImportWorker implements AutoCloseable
+    {
+        private final OMEOMEROConverter session;
+
+        private OMEOMEROConverter joined = null;
+
+        ImportWorker(OMEOMEROConverter session)
+        {
+            this.session = session;
+        }
+
+        /**
+         * @param imageId OMERO Image ID to import to
+         * @return converter for the Image over this worker's connection,
+         * with the state of the previous import cleared
+         */
+        OMEOMEROConverter forImage(long imageId) throws Exception
+        {
+            if (joined == null)
+            {
+                joined = session.joinSession(imageId);
+            }
+            joined.reset();
+            return joined.forImage(imageId);
+        }
+
+        /**
+         * Close this worker's connection, e.g. after a failure that may
+         * have broken it; the next import joins the session again.
+         */
+        void disconnect()
+        {
+            if (joined != null)
+            {
+                try
+                {
+                    joined.close();
+                }
+                catch (Exception e)
+                {
+                    log.warn("Could not close joined session", e);
+                }
+                joined = null;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            disconnect();
+        }
+    }
+
+    /**
+     * A file to import and the outcome of importing it, formatted as a
+     * summary row.
+     */
+    private static class ImportResult
+    {
+        final long imageId;
+
+        final File input;
+
+        int attempts;
+
+        int roiCount;
+
+        long milliseconds;
+
+        String error;
+
+        ImportResult(long imageId, File input)
+        {
+            this.imageId = imageId;
+            this.input = input;
+        }
+
+        @Override
+        public String toString()
+        {
+            return imageId + "\t" + input + "\t"
+                    + (error == null ? "OK" : "FAILED") + "\t" + attempts
+                    + "\t" + roiCount + "\t" + input.length() + "\t"
+                    + milliseconds + "\t"
+                    + (error == null ? "" : error.replaceAll("\\s+", " "));
+        }
+    }
+
 }
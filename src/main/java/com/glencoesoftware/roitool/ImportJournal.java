@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only local journal of the objects committed by an import, so
+ * that a failed import can be resumed without saving any object twice.
+ * Every saved batch appends one line per object, mapping its position in
+ * the input to the ID it was given by the server, and is synced to disk
+ * before the next batch is recorded.  A new journal is only created once
+ * the first object is recorded, so that an import which fails before
+ * saving anything, e.g. on a malformed input, does not leave a journal
+ * behind that would block running it again.
+ * <p>
+ * The journal is a text file of records, one per line:
+ * <pre>
+ * image &lt;Image ID&gt; &lt;checksum&gt;
+ * input &lt;input file length&gt; &lt;checksum&gt;
+ * roi &lt;ROI index&gt; &lt;ROI ID&gt; &lt;checksum&gt;
+ * annotation &lt;annotation LSID&gt; &lt;annotation ID&gt; &lt;checksum&gt;
+ * </pre>
+ * The checksum is the CRC-32 of the rest of the line, in hexadecimal, and
+ * a record is only complete once its line ends.  A crash may leave the
+ * last record cut short, e.g. <code>roi 12 3</code> of
+ * <code>roi 12 345</code>, which would otherwise read back as a valid
+ * record; such a trailing record is discarded, and truncated from the file
+ * before the resumed import appends to it.  An invalid record anywhere
+ * else means the journal is corrupt.
+ */
+public class ImportJournal implements Closeable {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(ImportJournal.class);
+
+    private final File file;
+
+    private final long imageId;
+
+    private final long inputLength;
+
+    /** Journal file stream, <code>null</code> until it is created. */
+    private FileOutputStream out;
+
+    private Writer writer;
+
+    /** Committed ROI IDs by ROI index in the input. */
+    private final Map<Integer, Long> roiIds = new HashMap<Integer, Long>();
+
+    /** Committed annotation IDs by annotation LSID in the input. */
+    private final Map<String, Long> annotationIds =
+            new HashMap<String, Long>();
+
+    /**
+     * Opens a journal.
+     * @param file journal file
+     * @param imageId OMERO Image ID the ROIs are imported to
+     * @param input file the ROIs are imported from
+     * @param resume <code>true</code> to continue an existing journal,
+     * <code>false</code> to start a new one
+     * @throws IOException if the journal could not be read or created,
+     * if it exists but <code>resume</code> is <code>false</code>, or if it
+     * was written by an import of a different Image or input file
+     */
+    public ImportJournal(File file, long imageId, File input, boolean resume)
+            throws IOException
+    {
+        this.file = file;
+        this.imageId = imageId;
+        this.inputLength = input.length();
+        final boolean exists = file.exists();
+        if (exists && !resume) {
+            throw new IOException("Journal " + file + " of an incomplete " +
+                    "import exists, resume the import or delete it");
+        }
+        if (exists) {
+            final long length = read(imageId, input);
+            log.info("Resuming import from {}: {} ROIs and {} annotations " +
+                     "already saved", file, roiIds.size(),
+                     annotationIds.size());
+            open();
+            // drop an incomplete trailing record before appending
+            out.getChannel().truncate(length);
+            if (length == 0) {
+                writeHeader();
+            }
+        }
+    }
+
+    /**
+     * Open the journal file for appending.
+     */
+    private void open() throws IOException {
+        out = new FileOutputStream(file, true);
+        writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the records identifying the import to an empty journal.
+     */
+    private void writeHeader() throws IOException {
+        append("image " + imageId);
+        append("input " + inputLength);
+        sync();
+    }
+
+    /**
+     * Create the journal, if this is the first record of a new one.
+     */
+    private void create() throws IOException {
+        if (out == null) {
+            open();
+            writeHeader();
+        }
+    }
+
+    /**
+     * Load the records of an existing journal.
+     * @param imageId expected Image ID
+     * @param input expected input file
+     * @return length in bytes of the complete records
+     */
+    private long read(long imageId, File input) throws IOException {
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        int start = 0;
+        boolean header = false;
+        while (start < bytes.length) {
+            int end = start;
+            while (end < bytes.length && bytes[end] != '\n') {
+                end++;
+            }
+            final String line = new String(
+                    bytes, start, end - start, StandardCharsets.UTF_8);
+            // a record is only complete once its line end is written
+            final String record = end < bytes.length ? verify(line) : null;
+            if (record == null) {
+                if (end + 1 < bytes.length) {
+                    throw new IOException(
+                            "Corrupt journal " + file + ": " + line);
+                }
+                // the record being written when the import stopped
+                log.warn("Discarding incomplete journal record: {}", line);
+                break;
+            }
+            final String[] fields = record.split(" ");
+            try {
+                if (fields.length == 2 && fields[0].equals("image")) {
+                    check(fields[1], Long.toString(imageId), "Image ID");
+                    header = true;
+                }
+                else if (fields.length == 2 && fields[0].equals("input")) {
+                    check(fields[1], Long.toString(input.length()),
+                          "input file length");
+                }
+                else if (header && fields.length == 3
+                        && fields[0].equals("roi")) {
+                    roiIds.put(Integer.valueOf(fields[1]),
+                               Long.valueOf(fields[2]));
+                }
+                else if (header && fields.length == 3
+                        && fields[0].equals("annotation")) {
+                    annotationIds.put(fields[1], Long.valueOf(fields[2]));
+                }
+                else {
+                    throw new IOException(
+                            "Corrupt journal " + file + ": " + line);
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Corrupt journal " + file, e);
+            }
+            start = end + 1;
+        }
+        return start;
+    }
+
+    /**
+     * @param line journal line without its line end
+     * @return the record the line holds, or <code>null</code> if the line
+     * does not end with the checksum of the record
+     */
+    private static String verify(String line) {
+        final int space = line.lastIndexOf(' ');
+        if (space < 0) {
+            return null;
+        }
+        final String record = line.substring(0, space);
+        return line.substring(space + 1).equals(checksum(record)) ?
+                record : null;
+    }
+
+    /**
+     * @param record journal record
+     * @return CRC-32 of the record, as eight hexadecimal digits
+     */
+    private static String checksum(String record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+
+    /**
+     * Write a record, followed by its checksum and the line end that
+     * marks it as complete.
+     * @param record journal record
+     */
+    private void append(String record) throws IOException {
+        writer.write(record + " " + checksum(record) + "\n");
+    }
+
+    private void check(String journaled, String expected, String name)
+            throws IOException
+    {
+        if (!journaled.equals(expected)) {
+            throw new IOException("Journal " + file + " is of an import " +
+                    "with " + name + " " + journaled + ", not " + expected);
+        }
+    }
+
+    /**
+     * @param roiIndex index of a ROI in the input
+     * @return ID of the ROI if it was saved, or <code>null</code>
+     */
+    public Long getRoiId(int roiIndex) {
+        return roiIds.get(roiIndex);
+    }
+
+    /**
+     * @param lsid LSID of an annotation in the input
+     * @return ID of the annotation if it was saved, or <code>null</code>
+     */
+    public Long getAnnotationId(String lsid) {
+        return annotationIds.get(lsid);
+    }
+
+    /**
+     * Record a saved ROI.  {@link #sync()} must be called once the batch
+     * holding the ROI is recorded.
+     * @param roiIndex index of the ROI in the input
+     * @param id ID of the saved ROI
+     */
+    public void recordRoi(int roiIndex, long id) throws IOException {
+        create();
+        roiIds.put(roiIndex, id);
+        append("roi " + roiIndex + " " + id);
+    }
+
+    /**
+     * Record a saved annotation.  {@link #sync()} must be called once the
+     * batch holding the annotation is recorded.
+     * @param lsid LSID of the annotation in the input
+     * @param id ID of the saved annotation
+     */
+    public void recordAnnotation(String lsid, long id) throws IOException {
+        create();
+        annotationIds.put(lsid, id);
+        append("annotation " + lsid + " " + id);
+    }
+
+    /**
+     * Write the recorded entries through to disk.
+     */
+    public void sync() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        writer.flush();
+        out.getFD().sync();
+    }
+
+    /**
+     * Close and delete the journal once the import is complete.
+     */
+    public void complete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import Glacier2.CannotCreateSessionException;
+import Glacier2.PermissionDeniedException;
+import omero.ServerError;
+import omero.api.ServiceFactoryPrx;
+
+/**
+ * Additional clients joined to an existing OMERO session.  Each client has
+ * its own connection, so calls made through different clients are
+ * processed by the server concurrently, whereas calls made through a
+ * single client are not.  The joined clients act as the same user and
+ * group as the session they join.
+ */
+public class JoinedSessions implements Closeable {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(JoinedSessions.class);
+
+    private final List<omero.client> clients = new ArrayList<omero.client>();
+
+    /**
+     * Creates and joins the clients.
+     * @param server OMERO server address
+     * @param port OMERO server port
+     * @param sessionKey key of the session to join
+     * @param count number of clients to create
+     * @throws ServerError if a client could not join the session
+     */
+    public JoinedSessions(String server, int port, String sessionKey,
+            int count) throws CannotCreateSessionException,
+                              PermissionDeniedException, ServerError
+    {
+        try {
+            for (int i=0; i<count; i++) {
+                final omero.client client = new omero.client(server, port);
+                clients.add(client);
+                client.joinSession(sessionKey);
+            }
+        }
+        catch (CannotCreateSessionException | PermissionDeniedException
+                | ServerError | RuntimeException e) {
+            close();
+            throw e;
+        }
+        log.info("Joined {} additional sessions", count);
+    }
+
+    /**
+     * @param session an OMERO session
+     * @return the key that other clients can join the session with
+     */
+    public static String getSessionKey(ServiceFactoryPrx session) {
+        return session.ice_getIdentity().name;
+    }
+
+    /**
+     * @return the service factory of every joined client
+     */
+    public List<ServiceFactoryPrx> getServiceFactories() {
+        final List<ServiceFactoryPrx> sessions =
+                new ArrayList<ServiceFactoryPrx>(clients.size());
+        for (final omero.client client : clients) {
+            sessions.add(client.getSession());
+        }
+        return sessions;
+    }
+
+    /**
+     * Close the joined clients.  The joined session itself remains open
+     * while the client it was created by is open.
+     */
+    @Override
+    public void close() {
+        for (final omero.client client : clients) {
+            try {
+                client.closeSession();
+            }
+            catch (RuntimeException e) {
+                log.warn("Could not close joined session", e);
+            }
+        }
+        clients.clear();
+    }
+}
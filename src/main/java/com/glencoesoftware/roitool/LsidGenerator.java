@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.function.Function;
+
+import omero.model.IObject;
+
+/**
+ * Generates LSIDs for OMERO model objects, in the form
+ * <code>urn:lsid:&lt;authority&gt;:&lt;type&gt;:&lt;uuid&gt;_&lt;id&gt;:&lt;update event id&gt;</code>.
+ * See https://docs.openmicroscopy.org/omero/5.6.3/sysadmins/config.html#omero-db-authority
+ * and https://downloads.openmicroscopy.org/omero/5.4.0/api/ome/services/db/DatabaseIdentity.html
+ * Thread safe.
+ */
+public class LsidGenerator implements Function<IObject, String> {
+
+    /**
+     * Simple name of the model type directly below {@link IObject}, for
+     * each concrete model class, e.g. <code>Shape</code> for
+     * <code>RectangleI</code>.
+     */
+    private static final ClassValue<String> MODEL_TYPES =
+            new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            if (type == IObject.class) {
+                throw new IllegalArgumentException(
+                        "must be of a specific model object type");
+            }
+            Class<?> objectClass = type;
+            while (objectClass.getSuperclass() != IObject.class) {
+                objectClass = objectClass.getSuperclass();
+                if (objectClass == null) {
+                    throw new IllegalArgumentException(
+                            type + " is not a model object type");
+                }
+            }
+            return objectClass.getSimpleName();
+        }
+    };
+
+    /** <code>urn:lsid:&lt;authority&gt;:</code> */
+    private final String prefix;
+
+    /** <code>:&lt;uuid&gt;_</code> */
+    private final String infix;
+
+    private final ThreadLocal<StringBuilder> builders =
+            ThreadLocal.withInitial(() -> new StringBuilder(128));
+
+    /**
+     * Creates a new generator.
+     * @param authority value of <code>omero.db.authority</code>
+     * @param databaseUuid UUID of the OMERO database
+     */
+    public LsidGenerator(String authority, String databaseUuid) {
+        this.prefix = "urn:lsid:" + authority + ":";
+        this.infix = ":" + databaseUuid + "_";
+    }
+
+    /**
+     * Find the LSID of the given OMERO model object.
+     * @param object an OMERO model object, hydrated with its update event
+     * @return the LSID for that object
+     */
+    @Override
+    public String apply(IObject object) {
+        final String type = MODEL_TYPES.get(object.getClass());
+        final long objectId = object.getId().getValue();
+        final long updateId =
+                object.getDetails().getUpdateEvent().getId().getValue();
+        final StringBuilder lsid = builders.get();
+        lsid.setLength(0);
+        return lsid.append(prefix).append(type)
+                .append(infix).append(objectId)
+                .append(':').append(updateId)
+                .toString();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ome.xml.model.enums.Compression;
+import omero.model.Mask;
+
+import static omero.rtypes.rdouble;
+
+/**
+ * Decodes the Base64 encoded, optionally zlib compressed <code>BinData</code>
+ * of Masks on a fork-join pool, so that the masks of a large input are
+ * decoded in parallel while the rest of it is still being converted.
+ * <p>
+ * Masks of known size are held as a {@link RunLengthMask} once decoded,
+ * and their encoded bytes released, if their runs take less memory than
+ * their bit-packed data, as is the case for the mostly solid masks of
+ * segmentations; {@link #expand(Mask)} restores the bit-packed data when
+ * the Mask is about to be saved.  Other Masks, e.g. noisy or dithered
+ * ones, and Masks of unknown size get their bit-packed data straight
+ * away.  Workers borrow an
+ * {@link Inflater} and buffers for the decoded data from a shared pool
+ * instead of allocating them per Mask.
+ */
+public class MaskDecoder implements Closeable {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(MaskDecoder.class);
+
+    /** Per worker state, reused across Masks. */
+    private static class Scratch {
+        final Inflater inflater = new Inflater();
+        /** Base64 decoded data. */
+        byte[] buffer = new byte[0];
+        /** Inflated data. */
+        byte[] bits = new byte[0];
+    }
+
+    private final ForkJoinPool pool;
+
+    private final Queue<Scratch> scratches =
+            new ConcurrentLinkedQueue<Scratch>();
+
+    /** Masks submitted since the last {@link #await()}. */
+    private final List<ForkJoinTask<?>> pending =
+            new ArrayList<ForkJoinTask<?>>();
+
+    /** Decoded Masks that have not been expanded yet. */
+    private final Map<Mask, RunLengthMask> compact =
+            Collections.synchronizedMap(
+                    new IdentityHashMap<Mask, RunLengthMask>());
+
+    /** Whether decoded Masks are trimmed to the bounds of their pixels. */
+    private volatile boolean trim = false;
+
+    /**
+     * Creates a decoder with one worker per available processor.
+     */
+    public MaskDecoder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a decoder.
+     * @param parallelism number of worker threads
+     */
+    public MaskDecoder(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Set whether or not Masks of known size are trimmed to the bounding
+     * box of their set pixels, adjusting their position and size.
+     * @param trim <code>true</code> to trim Masks
+     */
+    public void setTrim(boolean trim) {
+        this.trim = trim;
+    }
+
+    /**
+     * Start decoding the encoded bytes of a Mask.  The Mask must not be
+     * accessed again until {@link #await()} has returned.
+     * @param mask Mask holding Base64 encoded <code>BinData</code>
+     * @param compression compression of the data before it was encoded
+     */
+    public void submit(Mask mask, Compression compression) {
+        pending.add(pool.submit(() -> decode(mask, compression)));
+    }
+
+    /**
+     * Wait until all submitted Masks are decoded.
+     * @return number of Masks decoded
+     */
+    public int await() {
+        final int count = pending.size();
+        for (final ForkJoinTask<?> task : pending) {
+            task.join();
+        }
+        pending.clear();
+        if (count > 0) {
+            log.debug("Decoded {} masks, {} held run-length encoded",
+                      count, compact.size());
+        }
+        return count;
+    }
+
+    /**
+     * @param mask a decoded Mask
+     * @return the run-length encoded data of the Mask, or <code>null</code>
+     * if it holds bit-packed data
+     */
+    public RunLengthMask getRunLengthMask(Mask mask) {
+        return compact.get(mask);
+    }
+
+    /**
+     * @param mask a decoded Mask
+     * @return bit-packed data of the Mask, without storing it in the Mask
+     */
+    public byte[] getBits(Mask mask) {
+        final RunLengthMask runs = compact.get(mask);
+        return runs == null ? mask.getBytes() : runs.toBits();
+    }
+
+    /**
+     * Store the bit-packed data of a decoded Mask in it, so that it can be
+     * saved.
+     * @param mask a decoded Mask
+     */
+    public void expand(Mask mask) {
+        final RunLengthMask runs = compact.remove(mask);
+        if (runs != null) {
+            mask.setBytes(runs.toBits());
+        }
+    }
+
+    /**
+     * Wait for the submitted Masks and forget the decoded Masks that were
+     * not expanded, e.g. those of an import that failed.
+     */
+    public void clear() {
+        await();
+        compact.clear();
+    }
+
+    private void decode(Mask mask, Compression compression) {
+        Scratch scratch = scratches.poll();
+        if (scratch == null) {
+            scratch = new Scratch();
+        }
+        try {
+            final byte[] encoded = mask.getBytes();
+            final int capacity = encoded.length / 4 * 3 + 3;
+            if (scratch.buffer.length < capacity) {
+                scratch.buffer = new byte[capacity];
+            }
+            int length = Base64.getDecoder().decode(encoded, scratch.buffer);
+            byte[] bits = scratch.buffer;
+            if (compression == Compression.ZLIB) {
+                length = inflate(scratch, length, getBitsLength(mask));
+                bits = scratch.bits;
+            }
+            if (getBitsLength(mask) > 0) {
+                RunLengthMask runs = RunLengthMask.fromBits(bits, length,
+                        (int) mask.getWidth().getValue(),
+                        (int) mask.getHeight().getValue());
+                if (trim) {
+                    runs = trim(mask, runs);
+                }
+                // each run is an int
+                if ((long) runs.getRunCount() * 4 < runs.getBitsLength()) {
+                    mask.setBytes(null);
+                    compact.put(mask, runs);
+                }
+                else {
+                    mask.setBytes(runs.toBits());
+                }
+            }
+            else {
+                mask.setBytes(Arrays.copyOf(bits, length));
+            }
+        }
+        catch (DataFormatException | IllegalArgumentException e) {
+            log.warn("Could not decode mask", e);
+        }
+        finally {
+            scratches.add(scratch);
+        }
+    }
+
+    /**
+     * Inflate the Base64 decoded data of a Scratch into its bits buffer.
+     * @param scratch scratch holding the zlib compressed data
+     * @param length number of bytes of compressed data
+     * @param expected expected inflated length, or <code>0</code> if unknown
+     * @return inflated length
+     */
+    private static int inflate(Scratch scratch, int length, int expected)
+            throws DataFormatException {
+        final Inflater inflater = scratch.inflater;
+        try {
+            inflater.setInput(scratch.buffer, 0, length);
+            // one spare byte lets the inflater reach the end of the stream
+            // without growing the buffer
+            final int capacity = (expected > 0 ? expected : length * 4) + 1;
+            if (scratch.bits.length < capacity) {
+                scratch.bits = new byte[capacity];
+            }
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == scratch.bits.length) {
+                    scratch.bits =
+                            Arrays.copyOf(scratch.bits, size * 2);
+                }
+                final int n = inflater.inflate(
+                        scratch.bits, size, scratch.bits.length - size);
+                if (n == 0 && (inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated zlib data");
+                }
+                size += n;
+            }
+            return size;
+        }
+        finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Trim a Mask to the bounding box of its set pixels.  Masks without set
+     * pixels are left as they are.
+     * @param mask Mask to move and resize
+     * @param runs decoded data of the Mask
+     * @return decoded data of the trimmed Mask
+     */
+    private static RunLengthMask trim(Mask mask, RunLengthMask runs) {
+        final int[] bounds = runs.getBounds();
+        if (bounds == null || (bounds[2] == runs.getWidth()
+                && bounds[3] == runs.getHeight())) {
+            return runs;
+        }
+        final double x = mask.getX() == null ? 0 : mask.getX().getValue();
+        final double y = mask.getY() == null ? 0 : mask.getY().getValue();
+        mask.setX(rdouble(x + bounds[0]));
+        mask.setY(rdouble(y + bounds[1]));
+        mask.setWidth(rdouble(bounds[2]));
+        mask.setHeight(rdouble(bounds[3]));
+        return runs.crop(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    /**
+     * @param mask a Mask
+     * @return length of the bit-packed data of a Mask of its size, or
+     * <code>0</code> if its size is not known or not a whole number of pixels
+     */
+    private static int getBitsLength(Mask mask) {
+        if (mask.getWidth() == null || mask.getHeight() == null) {
+            return 0;
+        }
+        final double width = mask.getWidth().getValue();
+        final double height = mask.getHeight().getValue();
+        if (width != Math.rint(width) || height != Math.rint(height)) {
+            return 0;
+        }
+        final double bits = width * height;
+        return bits > 0 && bits < Integer.MAX_VALUE ?
+                (int) (((long) bits + 7) / 8) : 0;
+    }
+
+    /**
+     * Wait for the submitted Masks and stop the worker threads.
+     */
+    @Override
+    public void close() {
+        try {
+            await();
+        }
+        finally {
+            pool.shutdown();
+            Scratch scratch;
+            while ((scratch = scratches.poll()) != null) {
+                scratch.inflater.end();
+            }
+        }
+    }
+}
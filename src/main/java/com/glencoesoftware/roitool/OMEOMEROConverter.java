@@ -20,13 +20,17 @@ package com.glencoesoftware.roitool;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import javax.xml.stream.XMLStreamException;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,34 +40,33 @@ import com.google.common.collect.ImmutableMap;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.common.services.ServiceFactory;
-import loci.formats.MissingLibraryException;
 import loci.formats.ome.OMEXMLMetadata;
 import loci.formats.services.OMEXMLService;
-import ome.specification.XMLWriter;
 import ome.system.Login;
-import ome.xml.meta.MetadataConverter;
-import ome.xml.meta.OMEXMLMetadataRoot;
-import ome.xml.model.Dataset;
-import ome.xml.model.Experiment;
-import ome.xml.model.Experimenter;
-import ome.xml.model.ExperimenterGroup;
-import ome.xml.model.Folder;
-import ome.xml.model.Instrument;
-import ome.xml.model.OME;
-import ome.xml.model.Plate;
-import ome.xml.model.Project;
-import ome.xml.model.Screen;
+import omero.RInt;
+import omero.RLong;
+import omero.RObject;
+import omero.RString;
+import omero.RType;
 import omero.ServerError;
 import omero.api.IConfigPrx;
+import omero.api.ServiceFactoryPrx;
 import omero.model.Annotation;
+import omero.model.EventI;
 import omero.model.Image;
+import omero.model.ImageI;
 import omero.model.IObject;
-import omero.model.Mask;
+import omero.model.Pixels;
+import omero.model.PixelsI;
+import omero.model.PixelsType;
+import omero.model.PixelsTypeI;
 import omero.model.Roi;
-import omero.model.Shape;
 import omero.model.XmlAnnotation;
+import omero.sys.EventContext;
 import omero.sys.ParametersI;
 
+import static omero.rtypes.unwrap;
+
 public class OMEOMEROConverter {
 
     /**
@@ -74,6 +77,21 @@ public class OMEOMEROConverter {
     private static final Logger log =
             LoggerFactory.getLogger(OMEOMEROConverter.class);
 
+    /**
+     * Maximum number of IDs passed to a single <code>IN (:ids)</code> query.
+     */
+    private static final int ID_BATCH_SIZE = 1000;
+
+    /**
+     * HQL condition on the ROI alias <code>r</code> selecting ROIs that
+     * were changed, or have a Shape that was changed, after the update
+     * event given by the <code>since</code> parameter.
+     */
+    private static final String MODIFIED_SINCE_CONDITION =
+            "(r.details.updateEvent.id > :since OR EXISTS (" +
+            "SELECT m.id FROM Shape m WHERE m.roi.id = r.id " +
+            "AND m.details.updateEvent.id > :since))";
+
     /**
      * Default context which looks for the requested Image/ROI in all groups
      * that the user is a member of. This means that the user can specify an
@@ -99,11 +117,54 @@ public class OMEOMEROConverter {
     private final OMEXMLService omeXmlService;
 
     /**
-     * LSID format associated with the current OMERO database.
-     * See https://docs.openmicroscopy.org/omero/5.6.3/sysadmins/config.html#omero-db-authority
-     * and https://downloads.openmicroscopy.org/omero/5.4.0/api/ome/services/db/DatabaseIdentity.html
+     * LSID generator associated with the current OMERO database.
      */
-    private String lsidFormat;
+    private LsidGenerator lsids;
+
+    /**
+     * Whether or not {@link #close()} logs out of the session.
+     */
+    private final boolean ownsSession;
+
+    /**
+     * Whether or not ROIs are fetched with {@link ShapeProjection} rather
+     * than fully hydrated.
+     */
+    private boolean lightweightShapes = false;
+
+    /**
+     * Only ROIs changed after this update event are exported, or all ROIs
+     * if <code>null</code>.
+     */
+    private Long modifiedSince = null;
+
+    /**
+     * How much Image metadata is fetched and written.
+     */
+    private ImageMetadataLevel imageMetadataLevel = ImageMetadataLevel.FULL;
+
+    /**
+     * Selects the Shapes to export, or <code>null</code> to export all.
+     */
+    private RoiFilter roiFilter = null;
+
+    /**
+     * Tolerance in pixels of the simplification of Polygon and Polyline
+     * points, or 0 if they are not simplified.
+     */
+    private double simplifyTolerance = 0;
+
+    /** Whether Polygon and Polyline points are rewritten in shortest form. */
+    private boolean normalizePoints = false;
+
+    /** Number of sessions that save ROI batches concurrently on import. */
+    private int writers = 1;
+
+    /** OMERO server address, for joining additional sessions. */
+    private String server;
+
+    /** OMERO server port, for joining additional sessions. */
+    private int port;
 
     public OMEOMEROConverter(long imageId)
             throws ServerError, DependencyException {
@@ -111,6 +172,213 @@ public class OMEOMEROConverter {
         this.target = new ROIMetadataStoreClient();
         ServiceFactory factory = new ServiceFactory();
         this.omeXmlService = factory.getInstance(OMEXMLService.class);
+        this.ownsSession = true;
+    }
+
+    private OMEOMEROConverter(long imageId, OMEOMEROConverter session) {
+        this.imageId = imageId;
+        this.target = session.target;
+        this.omeXmlService = session.omeXmlService;
+        this.lsids = session.lsids;
+        this.ownsSession = false;
+        this.lightweightShapes = session.lightweightShapes;
+        this.modifiedSince = session.modifiedSince;
+        this.imageMetadataLevel = session.imageMetadataLevel;
+        this.roiFilter = session.roiFilter;
+        this.simplifyTolerance = session.simplifyTolerance;
+        this.normalizePoints = session.normalizePoints;
+        this.writers = session.writers;
+        this.server = session.server;
+        this.port = session.port;
+    }
+
+    /**
+     * Set whether or not export fetches only the ROI and Shape properties
+     * that are written, using projections, instead of fully hydrated model
+     * objects.  This is considerably cheaper for Images with many Shapes.
+     * See {@link ShapeProjection} for limitations.
+     *
+     * @param lightweightShapes <code>true</code> to use projections
+     */
+    public void setLightweightShapes(boolean lightweightShapes) {
+        this.lightweightShapes = lightweightShapes;
+    }
+
+    /**
+     * Restrict export to ROIs that were changed, or have a Shape that was
+     * changed, after the given update event, so that only a delta is
+     * written.  Deleted ROIs and Shapes, and changes only to linked
+     * annotations, are not detected.
+     * See {@link Watermark} for finding the update event of an earlier
+     * export.
+     *
+     * @param updateEventId update event ID watermark, or <code>null</code>
+     * to export all ROIs
+     */
+    public void setModifiedSince(Long updateEventId) {
+        this.modifiedSince = updateEventId;
+    }
+
+    /**
+     * Set how much Image metadata export fetches and writes.  Fetching all
+     * of it is expensive for Images with many Planes.
+     *
+     * @param imageMetadataLevel Image metadata level, {@link
+     * ImageMetadataLevel#FULL} by default
+     */
+    public void setImageMetadataLevel(ImageMetadataLevel imageMetadataLevel) {
+        this.imageMetadataLevel = imageMetadataLevel;
+    }
+
+    /**
+     * Restrict export to the Shapes selected by the given filter.  The
+     * filter is applied in the queries where possible, so that unselected
+     * Shapes are not fetched.
+     *
+     * @param roiFilter Shape filter, or <code>null</code> to export all
+     * Shapes
+     */
+    public void setRoiFilter(RoiFilter roiFilter) {
+        this.roiFilter = roiFilter;
+    }
+
+    /**
+     * Simplify the points of Polygons and Polylines on import and export,
+     * see {@link PolygonSimplifier}.
+     *
+     * @param tolerance maximum distance in pixels of a dropped vertex from
+     * the simplified outline, or 0 to keep all vertices
+     */
+    public void setSimplifyTolerance(double tolerance) {
+        this.simplifyTolerance = tolerance;
+        target.setSimplifyTolerance(tolerance);
+    }
+
+    /**
+     * Rewrite the points of Polygons and Polylines on import and export with
+     * each coordinate in its shortest exact form, see {@link PointsCodec}.
+     *
+     * @param normalize <code>true</code> to rewrite the points,
+     * <code>false</code> to keep them as they are
+     */
+    public void setNormalizePoints(boolean normalize) {
+        this.normalizePoints = normalize;
+        target.setNormalizePoints(normalize);
+    }
+
+    /**
+     * Set the maximum number of ROIs saved per server call on import.
+     *
+     * @param batchSize maximum number of ROIs per batch, {@link
+     * ROIMetadataStoreClient#DEFAULT_BATCH_SIZE} by default
+     */
+    public void setBatchSize(int batchSize) {
+        target.setBatchSize(batchSize);
+    }
+
+    /**
+     * Set the approximate maximum size of the ROIs saved per server call on
+     * import.
+     *
+     * @param batchBytes maximum estimated size of a batch in bytes, {@link
+     * ROIMetadataStoreClient#DEFAULT_BATCH_BYTES} by default
+     */
+    public void setBatchBytes(long batchBytes) {
+        target.setBatchBytes(batchBytes);
+    }
+
+    /**
+     * Set the number of sessions that save ROI batches concurrently on
+     * import.  Sessions beyond the first are joined to it, see
+     * {@link JoinedSessions}.
+     *
+     * @param writers number of concurrent sessions, 1 by default
+     */
+    public void setWriters(int writers) {
+        if (writers < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of writers: " + writers);
+        }
+        this.writers = writers;
+    }
+
+    /**
+     * Set a journal that records the ROIs and annotations saved on import,
+     * so that a failed import can be resumed.
+     *
+     * @param journal import journal, or <code>null</code>
+     */
+    public void setJournal(ImportJournal journal) {
+        target.setJournal(journal);
+    }
+
+    /**
+     * Set whether import skips ROIs that were imported to the Image
+     * before.  See {@link RoiDigestIndex}.
+     *
+     * @param deduplicate <code>true</code> to skip ROIs imported before
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        target.setDeduplicate(deduplicate);
+    }
+
+    /**
+     * Set whether import trims Masks to the bounding box of their set
+     * pixels, adjusting their position and size.
+     *
+     * @param trimMasks <code>true</code> to trim Masks
+     */
+    public void setTrimMasks(boolean trimMasks) {
+        target.setTrimMasks(trimMasks);
+    }
+
+    /**
+     * Create a converter for another Image that shares this converter's
+     * initialized session.  Converters sharing a session may export
+     * concurrently, as export only issues queries; import keeps state in
+     * the metadata store and must not be run concurrently, and the store
+     * must be {@link #reset()} between imports.
+     * Closing the returned converter does not log out of the session.
+     *
+     * @param imageId OMERO Image ID for export
+     * @return converter for the given Image
+     */
+    public OMEOMEROConverter forImage(long imageId) {
+        return new OMEOMEROConverter(imageId, this);
+    }
+
+    /**
+     * Create a converter for another Image, with a metadata store of its
+     * own, joined to this converter's initialized session.  Unlike
+     * {@link #forImage(long)}, the returned converter may import
+     * concurrently with this one and with other joined converters, at the
+     * cost of an additional connection but no additional login.  Closing
+     * the returned converter does not end the session.
+     *
+     * @param imageId OMERO Image ID for import or export
+     * @return converter for the given Image
+     */
+    public OMEOMEROConverter joinSession(long imageId)
+            throws ServerError, DependencyException,
+                   CannotCreateSessionException, PermissionDeniedException
+    {
+        final OMEOMEROConverter converter = new OMEOMEROConverter(imageId);
+        final String sessionKey =
+                JoinedSessions.getSessionKey(target.getServiceFactory());
+        converter.target.initialize(sessionKey, sessionKey, server, port);
+        converter.target.getServiceFactory().detachOnDestroy();
+        converter.server = server;
+        converter.port = port;
+        converter.lsids = lsids;
+        return converter;
+    }
+
+    /**
+     * Clear the ROIs, annotations and journal of the previous import from
+     * the metadata store, so that the session can import another file.
+     */
+    public void reset() {
+        target.reset();
     }
 
     /**
@@ -131,11 +399,13 @@ public class OMEOMEROConverter {
                ServerError
     {
         target.initialize(username, password, server, port);
+        this.server = server;
+        this.port = port;
         if (detachOnDestroy) {
             target.getServiceFactory().detachOnDestroy();
         }
         IConfigPrx iConfig = this.target.getServiceFactory().getConfigService();
-        this.lsidFormat = String.format("urn:lsid:%s:%%s:%s_%%s:%%s",
+        this.lsids = new LsidGenerator(
                 iConfig.getConfigValue("omero.db.authority"),
                 iConfig.getDatabaseUuid());
     }
@@ -159,43 +429,75 @@ public class OMEOMEROConverter {
      * A valid session must have already been established using one of the
      * initialize(...) methods.
      *
+     * The file is streamed with {@link ROIXMLReader}, so only its ROIs and
+     * structured annotations are held in memory, as OMERO model objects.
+     * ROIs are saved in batches while the rest of the file is converted,
+     * see {@link ROIMetadataStoreClient#startSave(long)}.
+     *
      * @param input OME-XML containing ROIs
-     * @return list of ROI objects imported, or null
+     * @return list of ROI objects imported, or null if they could not be
+     * saved
+     * @throws IOException if the input could not be read or is not valid
+     * OME-XML
      */
-    public List<IObject> importRoisFromFile(File input)
-            throws IOException, MissingLibraryException
+    public List<IObject> importRoisFromFile(File input) throws IOException
     {
         log.info("ROI import started");
-        String xml = new String(
-                Files.readAllBytes(input.toPath()), StandardCharsets.UTF_8);
-        log.debug("Importing OME-XML: {}", xml);
-
-        OMEXMLMetadata xmlMeta;
-        try {
-            xmlMeta = omeXmlService.createOMEXMLMetadata(xml);
-            removeExtraMetadata(xmlMeta);
-
+        JoinedSessions writerSessions = null;
+        try
+        {
+            if (writers > 1)
+            {
+                writerSessions = new JoinedSessions(server, port,
+                        JoinedSessions.getSessionKey(
+                                target.getServiceFactory()),
+                        writers - 1);
+                target.setWriterSessions(
+                        writerSessions.getServiceFactories());
+            }
+            target.startSave(imageId);
             log.info("Converting to OMERO metadata");
-            MetadataConverter.convertMetadata(xmlMeta, target);
-            log.info("ROI count: {}", xmlMeta.getROICount());
+            int roiCount;
+            try (InputStream in = CompressedStreams.newInputStream(input);
+                 ROIXMLReader reader = new ROIXMLReader(in, target))
+            {
+                while (reader.readNext())
+                {
+                    target.saveConverted();
+                }
+                roiCount = reader.getRoiCount();
+            }
+            catch (XMLStreamException e)
+            {
+                throw new IOException("Invalid OME-XML in " + input, e);
+            }
+            log.info("ROI count: {}", roiCount);
             log.debug("Containers: {}",
                       target.countCachedContainers(null, null));
             log.debug("References: {}",
                       target.countCachedReferences(null, null));
             target.postProcess();
-            try
-            {
-                List<IObject> rois = target.saveToDB(imageId);
-                return rois;
-            }
-            catch (Exception e)
-            {
-                log.error("Exception saving to DB", e);
-            }
+            List<IObject> rois = target.saveToDB(imageId);
+            return rois;
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            log.error("Exception saving to DB", e);
         }
-        catch (ServiceException s)
+        finally
         {
-            log.error("Exception creating OME-XML metadata", s);
+            // wait for the batches in flight if the import failed
+            target.abortSave();
+            if (writerSessions != null)
+            {
+                target.setWriterSessions(
+                        Collections.<ServiceFactoryPrx>emptyList());
+                writerSessions.close();
+            }
         }
         return null;
     }
@@ -203,7 +505,6 @@ public class OMEOMEROConverter {
     /**
      * Export all ROIs associated with the selected Image ID to the given file.
      * If an ordering annotation is present, it will affect the ROI export order.
-     * Mask ROIs are omitted from all exports.
      *
      * @param file output OME-XML file
      * @return list of exported ROIs
@@ -211,124 +512,428 @@ public class OMEOMEROConverter {
     public List<? extends IObject> exportRoisToFile(File file)
             throws Exception {
         log.info("ROI export started");
-        final OMEXMLMetadata xmlMeta = omeXmlService.createOMEXMLMetadata();
-        xmlMeta.createRoot();
         List<Image> images = getImages();
         List<Roi> rois = getRois();
-        List<Roi> orderedRois = new ArrayList<Roi>(rois.size());
 
-        // get all annotations associated with the Image and its ROIs
-        List<Annotation> allAnnotations = new ArrayList<Annotation>();
-        for (final Image img : images) {
-            allAnnotations.addAll(getAnnotations(img));
+        // get all annotations associated with the Image, its ROIs and Shapes
+        AnnotationLinkIndex annotationLinks = getAnnotationLinks(rois);
+        List<Annotation> allAnnotations = annotationLinks.getAnnotations();
+
+        final LongIntHashMap shapeRois = new LongIntHashMap(rois.size());
+        for (int r=0; r<rois.size(); r++) {
+            final Roi roi = rois.get(r);
+            for (int i=0; i<roi.sizeOfShapes(); i++) {
+                shapeRois.put(roi.getShape(i).getId().getValue(), r);
+            }
+        }
+        final int[] order = getRoiOrder(allAnnotations, shapeRois, rois.size());
+        final int roiCount = order != null ? order.length : rois.size();
+        List<Roi> orderedRois = new ArrayList<Roi>(roiCount);
+        for (int i=0; i<roiCount; i++) {
+            orderedRois.add(rois.get(order != null ? order[i] : i));
+        }
+
+        log.debug("Annotations: {}", allAnnotations);
+        log.info("ROI count: {}", orderedRois.size());
+        log.info("Writing OME-XML to: {}", file.getAbsolutePath());
+        try (OutputStream out = CompressedStreams.newOutputStream(file);
+             ROIXMLWriter writer = new ROIXMLWriter(out))
+        {
+            writer.writeStartDocument();
+            writeImagesAndAnnotations(writer, images, annotationLinks);
+            ROIMetadata metadata =
+                    new ROIMetadata(lsids, orderedRois, annotationLinks);
+            metadata.setSimplifyTolerance(simplifyTolerance);
+            metadata.setNormalizePoints(normalizePoints);
+            writer.writeROIs(metadata);
+            writer.writeEndDocument();
+        }
+        logWatermark(getWatermark(orderedRois, 0));
+        return orderedRois;
+    }
+
+    /**
+     * Export all ROIs associated with the selected Image ID to the given file,
+     * fetching, converting and writing at most <code>pageSize</code> ROIs at a
+     * time, so that peak memory use depends upon the page size rather than
+     * the number of ROIs on the Image.  Pages are contiguous ROI ID ranges in
+     * ascending ID order unless an ordering annotation is present.
+     *
+     * @param file output OME-XML file
+     * @param pageSize maximum number of ROIs held in memory at once
+     * @return number of exported ROIs
+     */
+    public int exportRoisToFile(File file, int pageSize) throws Exception {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid page size: " + pageSize);
+        }
+        log.info("Paged ROI export started, page size: {}", pageSize);
+        List<Image> images = getImages();
+        List<Long> roiIds = new ArrayList<Long>();
+        List<Long> shapeIds = new ArrayList<Long>();
+        LongIntHashMap shapeRois = new LongIntHashMap(1024);
+        getRoiAndShapeIds(roiIds, shapeIds, shapeRois);
+        log.info("ROI count: {}, Shape count: {}",
+                 roiIds.size(), shapeIds.size());
+
+        // the OME schema requires StructuredAnnotations to precede all ROIs,
+        // so the annotations are fetched and written before the first page
+        AnnotationLinkIndex annotationLinks =
+                getAnnotationLinks(roiIds, shapeIds);
+        // Shape IDs are only needed for loading the annotation links
+        shapeIds = null;
+        final int[] order = getRoiOrder(
+                annotationLinks.getAnnotations(), shapeRois, roiIds.size());
+        shapeRois = null;
+        final int roiCount = order != null ? order.length : roiIds.size();
+
+        int exported = 0;
+        long watermark = 0;
+        log.info("Writing OME-XML to: {}", file.getAbsolutePath());
+        try (OutputStream out = CompressedStreams.newOutputStream(file);
+             ROIXMLWriter writer = new ROIXMLWriter(out))
+        {
+            writer.writeStartDocument();
+            writeImagesAndAnnotations(writer, images, annotationLinks);
+            for (int start = 0; start < roiCount; start += pageSize) {
+                final int end = Math.min(start + pageSize, roiCount);
+                final List<Roi> page;
+                if (order != null) {
+                    final List<Long> pageIds = new ArrayList<Long>(end - start);
+                    for (int i=start; i<end; i++) {
+                        pageIds.add(roiIds.get(order[i]));
+                    }
+                    page = getRois(pageIds);
+                }
+                else {
+                    page = getRois(roiIds.get(start), roiIds.get(end - 1));
+                }
+                final ROIMetadata metadata =
+                        new ROIMetadata(lsids, page, annotationLinks);
+                metadata.setSimplifyTolerance(simplifyTolerance);
+                metadata.setNormalizePoints(normalizePoints);
+                writer.writeROIs(metadata);
+                exported += page.size();
+                watermark = getWatermark(page, watermark);
+                log.info("Wrote ROIs {}-{} of {}", start + 1, end, roiCount);
+            }
+            writer.writeEndDocument();
         }
+        log.info("Exported ROI count: {}", exported);
+        logWatermark(watermark);
+        return exported;
+    }
+
+    /**
+     * Find the highest update event ID of the given ROIs and their Shapes.
+     *
+     * @param rois exported ROIs
+     * @param watermark highest update event ID found so far
+     * @return highest update event ID of <code>watermark</code> and the ROIs
+     */
+    private static long getWatermark(List<Roi> rois, long watermark) {
         for (final Roi roi : rois) {
-            List<Annotation> currentAnnotations = getAnnotations(roi);
-            allAnnotations.addAll(currentAnnotations);
+            watermark = Math.max(watermark,
+                    roi.getDetails().getUpdateEvent().getId().getValue());
+            for (int s=0; s<roi.sizeOfShapes(); s++) {
+                watermark = Math.max(watermark, roi.getShape(s).getDetails()
+                        .getUpdateEvent().getId().getValue());
+            }
+        }
+        return watermark;
+    }
+
+    /**
+     * Log the watermark to pass to {@link #setModifiedSince(Long)} for the
+     * next incremental export.
+     *
+     * @param watermark highest update event ID exported
+     */
+    private void logWatermark(long watermark) {
+        if (modifiedSince != null) {
+            watermark = Math.max(watermark, modifiedSince);
+        }
+        log.info("Update event watermark: {}", watermark);
+    }
+
+    /**
+     * Summarize everything that affects an export of the selected Image:
+     * the session's user and group, the export options, and the counts and
+     * highest update events of the Image, its Pixels and Channels, its ROIs
+     * and Shapes, and the annotation links of each.  Any change that
+     * would alter the export, including deletion, changes the fingerprint.
+     * Only a few aggregate queries are made, which is far cheaper than an
+     * export.
+     *
+     * @return fingerprint suitable as an {@link ExportCache} key
+     * @throws ServerError if the fingerprint could not be retrieved
+     */
+    public String getExportFingerprint() throws ServerError {
+        final EventContext context = target.getServiceFactory()
+                .getAdminService().getEventContext();
+        final StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append("image=").append(imageId)
+            .append(";user=").append(context.userId)
+            .append(";group=").append(context.groupId)
+            .append(";lightweight=").append(lightweightShapes)
+            .append(";since=").append(modifiedSince)
+            .append(";imageMetadata=").append(imageMetadataLevel)
+            .append(";filter=").append(roiFilter)
+            .append(";simplify=").append(simplifyTolerance)
+            .append(";normalize=").append(normalizePoints);
+        appendAggregates(fingerprint, "images",
+                "SELECT max(i.details.updateEvent.id), " +
+                "max(p.details.updateEvent.id), " +
+                "count(c.id), max(c.details.updateEvent.id) " +
+                "FROM Image i LEFT OUTER JOIN i.pixels AS p " +
+                "LEFT OUTER JOIN p.channels AS c WHERE i.id = :id");
+        appendAggregates(fingerprint, "shapes",
+                "SELECT count(s.id), max(s.details.updateEvent.id), " +
+                "count(distinct r.id), max(r.details.updateEvent.id) " +
+                "FROM Shape s JOIN s.roi r WHERE r.image.id = :id");
+        final String[][] links = {
+            {"ImageAnnotationLink", "l.parent.id"},
+            {"RoiAnnotationLink", "l.parent.image.id"},
+            {"ShapeAnnotationLink", "l.parent.roi.image.id"},
+        };
+        for (final String[] link : links) {
+            appendAggregates(fingerprint, link[0],
+                    "SELECT count(l.id), max(l.details.updateEvent.id), " +
+                    "max(a.details.updateEvent.id) " +
+                    "FROM " + link[0] + " l JOIN l.child a " +
+                    "WHERE " + link[1] + " = :id");
         }
+        return fingerprint.toString();
+    }
 
-        boolean foundIndex = false;
-        for (final Annotation ann : allAnnotations) {
+    /**
+     * Run an aggregate query for the selected Image and append its values.
+     *
+     * @param fingerprint fingerprint being built
+     * @param name name for the values
+     * @param query HQL projection returning a single row
+     * @throws ServerError if the query failed
+     */
+    private void appendAggregates(StringBuilder fingerprint, String name,
+            String query) throws ServerError {
+        fingerprint.append(';').append(name).append('=');
+        for (final List<RType> row : target.getIQuery().projection(
+                query, new ParametersI().addId(imageId), ALL_GROUPS_CONTEXT)) {
+            for (final RType value : row) {
+                fingerprint.append(unwrap(value)).append(',');
+            }
+        }
+    }
+
+    /**
+     * Determine the order in which ROIs are exported from the PathViewer
+     * display order annotation, if present.  Only ROIs with a Shape listed
+     * in the display order are exported.
+     *
+     * @param annotations annotations linked to the Image, ROIs and Shapes
+     * @param shapeRois map from Shape ID to ROI position
+     * @param roiCount number of ROI positions
+     * @return ROI positions in export order, or <code>null</code> if there
+     * is no display order and ROIs should be exported in their natural order
+     */
+    private int[] getRoiOrder(List<Annotation> annotations,
+            LongIntHashMap shapeRois, int roiCount) {
+        for (final Annotation ann : annotations) {
             if (ann instanceof XmlAnnotation && ann.getNs() != null &&
                 ann.getNs().getValue().equals(PATHVIEWER_NS))
             {
                 // PathViewer-specific JSON
                 // if a valid displayorder annotation exists, reorder the list of ROIs accordingly
-
-                JSONObject json = new JSONObject(((XmlAnnotation) ann).getTextValue().getValue());
-                JSONArray shapeIds = json.getJSONArray("displayorder");
-                for (int i=0; i<shapeIds.length(); i++) {
-                    long shapeId = shapeIds.getLong(i);
-                    int roiIndex = -1;
-                    for (int r=0; r<rois.size(); r++) {
-                        Roi roi = rois.get(r);
-                        if (roi.getShape(0).getId().getValue() == shapeId) {
-                            roiIndex = r;
-                            break;
-                        }
-                    }
-                    if (roiIndex >= 0) {
-                        Roi toAdd = rois.get(roiIndex);
-                        if (!Mask.class.isAssignableFrom(toAdd.getShape(0).getClass())) {
-                            orderedRois.add(toAdd);
-                        }
-                    }
-                    else {
-                        orderedRois.add(null);
-                    }
+                final DisplayOrder displayOrder = DisplayOrder.fromJSON(
+                        ((XmlAnnotation) ann).getTextValue().getValue());
+                final List<Long> missing = new ArrayList<Long>();
+                final int[] order =
+                        displayOrder.resolve(shapeRois, roiCount, missing::add);
+                if (!missing.isEmpty()) {
+                    log.warn("{} of {} Shapes in display order not found: {}",
+                             missing.size(), displayOrder.size(), missing);
                 }
-                foundIndex = true;
-                break;
+                log.info("Display order selects {} of {} ROIs",
+                         order.length, roiCount);
+                return order;
             }
         }
-        if (!foundIndex) {
-            for (Roi r : rois) {
-                if (!Mask.class.isAssignableFrom(r.getShape(0).getClass())) {
-                    orderedRois.add(r);
-                }
-            }
+        return null;
+    }
+
+    /**
+     * Write the Image metadata and all annotations, which must precede the
+     * ROIs in the OME-XML document.  Keeping the Image and annotation data
+     * makes it easier to use the OME-XML in downstream applications.
+     *
+     * @param writer OME-XML writer with an open document
+     * @param images OMERO Images
+     * @param annotationLinks annotations to write
+     */
+    private void writeImagesAndAnnotations(ROIXMLWriter writer,
+            List<Image> images, AnnotationLinkIndex annotationLinks)
+                    throws ServiceException, XMLStreamException {
+        if (!images.isEmpty()) {
+            writeImages(writer, images);
         }
+        writer.writeStructuredAnnotations(
+                new AnnotationMetadata(lsids, annotationLinks));
+    }
 
-        log.debug("Annotations: {}", allAnnotations);
-        log.info("Converting to OME-XML metadata");
-        // translate Image, ROI, and annotation data from OMERO objects to OME objects
-        // keeping the Image and annotation data makes it easier to use the OME-XML in
-        // downstream applications
+    /**
+     * Write the Image metadata.
+     *
+     * @param writer OME-XML writer with an open document
+     * @param images OMERO Images
+     */
+    private void writeImages(ROIXMLWriter writer, List<Image> images)
+                    throws ServiceException, XMLStreamException {
+        // Image metadata is small, so it is still translated via the
+        // OME-XML model rather than written directly
+        final OMEXMLMetadata imageMeta = omeXmlService.createOMEXMLMetadata();
+        imageMeta.createRoot();
         try {
             omeXmlService.convertMetadata(
-                    new ImageMetadata(this::getLsid, images), xmlMeta);
+                    new ImageMetadata(lsids, images), imageMeta);
         }
         catch (Exception e) {
             log.warn("Failed to fully convert image metadata", e);
         }
-        omeXmlService.convertMetadata(
-                new ROIMetadata(this::getLsid, orderedRois), xmlMeta);
-        omeXmlService.convertMetadata(
-                new AnnotationMetadata(this::getLsid, allAnnotations), xmlMeta);
-        log.info("ROI count: {}", xmlMeta.getROICount());
-        log.info("Writing OME-XML to: {}", file.getAbsolutePath());
-        XMLWriter xmlWriter = new XMLWriter();
-        xmlWriter.writeFile(file, (OME) xmlMeta.getRoot(), false);
-        return orderedRois;
+        writer.writeImages(imageMeta);
     }
 
     /**
-     * Find the LSID of the given OMERO model object.
+     * Query the server for the given ROIs.
      * Ported from <code>org.openmicroscopy.client.downloader.XmlGenerator</code>
-     * @param object an OMERO model object, hydrated with its update event
-     * @return the LSID for that object
+     * @return the ROIs, hydrated sufficiently for conversion to XML
+     * @throws ServerError if the ROIs could not be retrieved
      */
-    private String getLsid(IObject object) {
-        Class<? extends IObject> objectClass = object.getClass();
-        if (objectClass == IObject.class) {
-            throw new IllegalArgumentException(
-                    "must be of a specific model object type");
+    private List<Roi> getRois() throws ServerError {
+        return findRois("r.image.id = :id", new ParametersI().addId(imageId));
+    }
+
+    /**
+     * Query the server for the ROIs matching the given condition, with
+     * their Shapes.
+     * @param condition HQL condition on the ROI alias <code>r</code>
+     * @param params parameters used by <code>condition</code>
+     * @return the ROIs in ascending ID order, hydrated sufficiently for
+     * conversion to XML
+     * @throws ServerError if the ROIs could not be retrieved
+     */
+    private List<Roi> findRois(String condition, ParametersI params)
+            throws ServerError {
+        if (modifiedSince != null) {
+            condition = condition + " AND " + MODIFIED_SINCE_CONDITION;
+            params.addLong("since", modifiedSince);
         }
-        while (objectClass.getSuperclass() != IObject.class) {
-            objectClass = objectClass.getSuperclass().asSubclass(IObject.class);
+        String shapeCondition = null;
+        if (roiFilter != null) {
+            shapeCondition = roiFilter.getShapeCondition("s");
+            roiFilter.addParameters(params);
         }
-        final long objectId = object.getId().getValue();
-        final long updateId =
-                object.getDetails().getUpdateEvent().getId().getValue();
-        return String.format(
-                lsidFormat, objectClass.getSimpleName(), objectId, updateId);
+        final List<Roi> rois;
+        if (lightweightShapes) {
+            rois = new ShapeProjection(target.getIQuery(), ALL_GROUPS_CONTEXT)
+                    .findRois(condition, shapeCondition, params);
+        }
+        else {
+            rois = new ArrayList<Roi>();
+            // fetching only the selected Shapes leaves each ROI's Shapes
+            // partially loaded, which is what is wanted for export
+            for (final IObject result : target.getIQuery().findAllByQuery(
+                    "SELECT DISTINCT r FROM Roi r " +
+                    "JOIN FETCH r.shapes AS s " +
+                    "WHERE " + condition + " " +
+                    (shapeCondition != null ?
+                            "AND " + shapeCondition + " " : "") +
+                    "ORDER BY r.id",
+                    params, ALL_GROUPS_CONTEXT)) {
+                rois.add((Roi) result);
+            }
+        }
+        return roiFilter != null ? roiFilter.apply(rois) : rois;
     }
 
     /**
-     * Query the server for the given ROIs.
-     * Ported from <code>org.openmicroscopy.client.downloader.XmlGenerator</code>
-     * @return the ROIs, hydrated sufficiently for conversion to XML
+     * Query the server for the IDs of all ROIs associated with the selected
+     * Image and the IDs of their Shapes.  Only IDs are transferred.
+     * @param roiIds populated with the distinct ROI IDs in ascending order
+     * @param shapeIds populated with the Shape IDs
+     * @param shapeRois populated with the position of each Shape's ROI
+     * within <code>roiIds</code>
+     * @throws ServerError if the IDs could not be retrieved
+     */
+    private void getRoiAndShapeIds(List<Long> roiIds, List<Long> shapeIds,
+            LongIntHashMap shapeRois) throws ServerError {
+        String condition = "r.image.id = :id";
+        final ParametersI params = new ParametersI().addId(imageId);
+        if (modifiedSince != null) {
+            condition = condition + " AND " + MODIFIED_SINCE_CONDITION;
+            params.addLong("since", modifiedSince);
+        }
+        if (roiFilter != null && roiFilter.getShapeCondition("s") != null) {
+            condition = condition + " AND " + roiFilter.getShapeCondition("s");
+            roiFilter.addParameters(params);
+        }
+        long lastRoiId = -1;
+        for (final List<RType> row : target.getIQuery().projection(
+                "SELECT r.id, s.id FROM Shape s JOIN s.roi r " +
+                "WHERE " + condition + " " +
+                "ORDER BY r.id, s.id",
+                params, ALL_GROUPS_CONTEXT)) {
+            final long roiId = ((RLong) row.get(0)).getValue();
+            if (roiId != lastRoiId) {
+                roiIds.add(roiId);
+                lastRoiId = roiId;
+            }
+            final long shapeId = ((RLong) row.get(1)).getValue();
+            shapeIds.add(shapeId);
+            shapeRois.put(shapeId, roiIds.size() - 1);
+        }
+    }
+
+    /**
+     * Query the server for the ROIs within the given ID range.
+     * @param firstRoiId lowest ROI ID to retrieve
+     * @param lastRoiId highest ROI ID to retrieve
+     * @return the ROIs in ascending ID order, hydrated sufficiently for
+     * conversion to XML
      * @throws ServerError if the ROIs could not be retrieved
      */
-    private List<Roi> getRois() throws ServerError {
-        final List<Roi> rois = new ArrayList<Roi>();
-        for (final IObject result : target.getIQuery().findAllByQuery(
-                "FROM Roi r " +
-                "JOIN FETCH r.shapes AS s " +
-                "WHERE r.image.id = :id",
-                new ParametersI().addId(imageId),
-                ALL_GROUPS_CONTEXT)) {
-            rois.add((Roi) result);
+    private List<Roi> getRois(long firstRoiId, long lastRoiId)
+            throws ServerError {
+        return findRois(
+                "r.image.id = :id AND r.id >= :first AND r.id <= :last",
+                new ParametersI().addId(imageId)
+                    .addLong("first", firstRoiId)
+                    .addLong("last", lastRoiId));
+    }
+
+    /**
+     * Query the server for the ROIs with the given IDs.
+     * @param roiIds ROI IDs
+     * @return the ROIs in the same order as <code>roiIds</code>, hydrated
+     * sufficiently for conversion to XML
+     * @throws ServerError if the ROIs could not be retrieved
+     */
+    private List<Roi> getRois(List<Long> roiIds) throws ServerError {
+        final Map<Long, Roi> fetched = new HashMap<Long, Roi>(roiIds.size());
+        for (int start = 0; start < roiIds.size(); start += ID_BATCH_SIZE) {
+            final List<Long> batch = roiIds.subList(
+                    start, Math.min(start + ID_BATCH_SIZE, roiIds.size()));
+            for (final Roi result : findRois(
+                    "r.id IN (:ids)", new ParametersI().addIds(batch))) {
+                fetched.put(result.getId().getValue(), result);
+            }
+        }
+        final List<Roi> rois = new ArrayList<Roi>(roiIds.size());
+        for (final Long roiId : roiIds) {
+            final Roi roi = fetched.get(roiId);
+            if (roi != null) {
+                rois.add(roi);
+            }
         }
         return rois;
     }
@@ -336,10 +941,17 @@ public class OMEOMEROConverter {
     /**
      * Query the server for the current image.
      * Ported from <code>org.openmicroscopy.client.downloader.XmlGenerator</code>
-     * @return a list containing the current image
+     * @return a list containing the current image, or an empty list if no
+     * Image metadata is exported
      * @throws ServerError if the image could not be retrieved
      */
     private List<Image> getImages() throws ServerError {
+        if (imageMetadataLevel == ImageMetadataLevel.NONE) {
+            return new ArrayList<Image>();
+        }
+        if (imageMetadataLevel == ImageMetadataLevel.BASIC) {
+            return getBasicImages();
+        }
         final List<Image> images = new ArrayList<Image>();
         for (final IObject result : target.getIQuery().findAllByQuery(
                 "FROM Image i " +
@@ -362,118 +974,142 @@ public class OMEOMEROConverter {
     }
 
     /**
-     * Fetch all annotations associated with a particular Image.
-     *
-     * @param image OMERO Image
-     * @return list of linked annotations
+     * Query the server for the basic metadata of the current image with a
+     * single projection, without Channels, Planes or any details other
+     * than update events.  Physical sizes are read with their units.
+     * @return a list containing the current image
+     * @throws ServerError if the image could not be retrieved
      */
-    private List<Annotation> getAnnotations(Image image) throws ServerError {
-        final List<Annotation> anns = new ArrayList<Annotation>();
-
-        for (final IObject result : target.getIQuery().findAllByQuery(
-                "SELECT DISTINCT a " +
-                        "FROM ImageAnnotationLink as l " +
-                        "JOIN l.child as a " +
-                        "WHERE l.parent.id = :id",
-                new ParametersI().addId(image.getId().getValue()),
-                ALL_GROUPS_CONTEXT)) {
-            anns.add((Annotation) result);
-        };
-
-        return anns;
+    private List<Image> getBasicImages() throws ServerError {
+        final List<Image> images = new ArrayList<Image>();
+        for (final List<RType> row : target.getIQuery().projection(
+                "SELECT i.id, i.details.updateEvent.id, i.name, " +
+                "i.description, p.id, p.details.updateEvent.id, " +
+                "pt.value, p.sizeX, p.sizeY, p.sizeZ, p.sizeC, p.sizeT, " +
+                "p.physicalSizeX.value, p.physicalSizeX.unit, " +
+                "p.physicalSizeY.value, p.physicalSizeY.unit, " +
+                "p.physicalSizeZ.value, p.physicalSizeZ.unit " +
+                "FROM Image i JOIN i.pixels AS p JOIN p.pixelsType AS pt " +
+                "WHERE i.id = :id",
+                new ParametersI().addId(imageId), ALL_GROUPS_CONTEXT))
+        {
+            final Image image = new ImageI(((RLong) row.get(0)).getValue(), true);
+            image.getDetails().setUpdateEvent(
+                    new EventI(((RLong) row.get(1)).getValue(), false));
+            image.setName((RString) row.get(2));
+            image.setDescription((RString) row.get(3));
+            final Pixels pixels = new PixelsI(((RLong) row.get(4)).getValue(), true);
+            pixels.getDetails().setUpdateEvent(
+                    new EventI(((RLong) row.get(5)).getValue(), false));
+            final PixelsType pixelsType = new PixelsTypeI();
+            pixelsType.setValue((RString) row.get(6));
+            pixels.setPixelsType(pixelsType);
+            pixels.setSizeX((RInt) row.get(7));
+            pixels.setSizeY((RInt) row.get(8));
+            pixels.setSizeZ((RInt) row.get(9));
+            pixels.setSizeC((RInt) row.get(10));
+            pixels.setSizeT((RInt) row.get(11));
+            pixels.setPhysicalSizeX(
+                    ShapeProjection.toLength(row.get(12), row.get(13)));
+            pixels.setPhysicalSizeY(
+                    ShapeProjection.toLength(row.get(14), row.get(15)));
+            pixels.setPhysicalSizeZ(
+                    ShapeProjection.toLength(row.get(16), row.get(17)));
+            image.addPixels(pixels);
+            images.add(image);
+        }
+        return images;
     }
 
     /**
-     * Fetch all annotations associated with a particular ROI and its Shapes.
+     * Fetch all annotations linked to the selected Image, the given ROIs and
+     * the ROIs' Shapes.  Links are loaded with a handful of set based
+     * queries, each restricted to at most {@link #ID_BATCH_SIZE} parent IDs.
      *
-     * @param roi OMERO Roi
-     * @return list of linked annotations
+     * @param rois OMERO ROIs, hydrated with their Shapes
+     * @return index of the linked annotations
+     * @throws ServerError if the annotations could not be retrieved
      */
-    private List<Annotation> getAnnotations(Roi roi) throws ServerError {
-        final List<Annotation> anns = new ArrayList<Annotation>();
-
-        // first get ROI-specific annotations
-        for (final IObject result : target.getIQuery().findAllByQuery(
-                "SELECT DISTINCT a " +
-                        "FROM RoiAnnotationLink as l " +
-                        "JOIN l.child as a " +
-                        "WHERE l.parent.id = :id",
-                new ParametersI().addId(roi.getId().getValue()),
-                ALL_GROUPS_CONTEXT)) {
-            anns.add((Annotation) result);
-        };
-
-        // now get shape-specific annotations for each shape in the ROI (usually just one)
-        for (int i=0; i<roi.sizeOfShapes(); i++) {
-            Shape shape = roi.getShape(i);
-            for (final IObject result : target.getIQuery().findAllByQuery(
-                "SELECT DISTINCT a FROM ShapeAnnotationLink as l JOIN l.child as a WHERE l.parent.id = :id",
-                new ParametersI().addId(shape.getId().getValue()), ALL_GROUPS_CONTEXT))
-            {
-                anns.add((Annotation) result);
+    private AnnotationLinkIndex getAnnotationLinks(List<Roi> rois)
+            throws ServerError {
+        final List<Long> roiIds = new ArrayList<Long>(rois.size());
+        final List<Long> shapeIds = new ArrayList<Long>(rois.size());
+        for (final Roi roi : rois) {
+            roiIds.add(roi.getId().getValue());
+            for (int i=0; i<roi.sizeOfShapes(); i++) {
+                shapeIds.add(roi.getShape(i).getId().getValue());
             }
         }
+        return getAnnotationLinks(roiIds, shapeIds);
+    }
 
-        return anns;
+    /**
+     * Fetch all annotations linked to the selected Image and the given ROIs
+     * and Shapes.
+     *
+     * @param roiIds OMERO ROI IDs
+     * @param shapeIds OMERO Shape IDs
+     * @return index of the linked annotations
+     * @throws ServerError if the annotations could not be retrieved
+     */
+    private AnnotationLinkIndex getAnnotationLinks(
+            List<Long> roiIds, List<Long> shapeIds) throws ServerError {
+        final AnnotationLinkIndex index = new AnnotationLinkIndex();
+        loadAnnotationLinks("ImageAnnotationLink",
+                Collections.singletonList(imageId), (id, annotation) -> {
+                    // ROI digests are internal to import
+                    if (!RoiDigestIndex.isIndex(annotation)) {
+                        index.addImageLink(id, annotation);
+                    }
+                });
+        loadAnnotationLinks(
+                "RoiAnnotationLink", roiIds, index::addRoiLink);
+        loadAnnotationLinks(
+                "ShapeAnnotationLink", shapeIds, index::addShapeLink);
+        log.debug("Loaded {} annotations linked to {} ROIs and {} Shapes",
+                  index.size(), roiIds.size(), shapeIds.size());
+        return index;
     }
 
     /**
-     * Log out of the current session.
+     * Fetch the annotations linked to the given parent objects, in batches
+     * of at most {@link #ID_BATCH_SIZE} parent IDs.
+     *
+     * @param linkType name of the annotation link model class,
+     * e.g. <code>RoiAnnotationLink</code>
+     * @param parentIds IDs of the link parents
+     * @param consumer receives each parent ID and linked annotation
+     * @throws ServerError if the annotations could not be retrieved
      */
-    public void close()
-    {
-        if (this.target != null)
-        {
-            this.target.logout();
+    private void loadAnnotationLinks(
+            String linkType, List<Long> parentIds,
+            BiConsumer<Long, Annotation> consumer) throws ServerError {
+        final String query =
+                "SELECT l.parent.id, a " +
+                "FROM " + linkType + " AS l " +
+                "JOIN l.child AS a " +
+                "WHERE l.parent.id IN (:ids)";
+        for (int start = 0; start < parentIds.size(); start += ID_BATCH_SIZE) {
+            final List<Long> batch = parentIds.subList(
+                    start, Math.min(start + ID_BATCH_SIZE, parentIds.size()));
+            for (final List<RType> row : target.getIQuery().projection(
+                    query, new ParametersI().addIds(batch),
+                    ALL_GROUPS_CONTEXT)) {
+                consumer.accept(((RLong) row.get(0)).getValue(),
+                        (Annotation) ((RObject) row.get(1)).getValue());
+            }
         }
     }
 
     /**
-     * Remove everything apart from ROIs and StructuredAnnotations.
-     * Image, Plate, Dataset, Experiment, etc. will all be removed
-     * before sending to OMERO.
+     * Log out of the current session, unless it is shared with the converter
+     * this one was created from.
      */
-    private void removeExtraMetadata(OMEXMLMetadata xmlMeta) {
-        OMEXMLMetadataRoot root = (OMEXMLMetadataRoot) xmlMeta.getRoot();
-        List<ome.xml.model.Image> images = root.copyImageList();
-        for (ome.xml.model.Image img : images) {
-            root.removeImage(img);
-        }
-        List<Project> projects = root.copyProjectList();
-        for (Project p : projects) {
-            root.removeProject(p);
-        }
-        List<Dataset> datasets = root.copyDatasetList();
-        for (Dataset d : datasets) {
-            root.removeDataset(d);
-        }
-        List<Plate> plates = root.copyPlateList();
-        for (Plate p : plates) {
-            root.removePlate(p);
-        }
-        List<Experiment> experiments = root.copyExperimentList();
-        for (Experiment e : experiments) {
-            root.removeExperiment(e);
-        }
-        List<Experimenter> experimenters = root.copyExperimenterList();
-        for (Experimenter e : experimenters) {
-            root.removeExperimenter(e);
-        }
-        List<ExperimenterGroup> experimenterGroups = root.copyExperimenterGroupList();
-        for (ExperimenterGroup e : experimenterGroups) {
-            root.removeExperimenterGroup(e);
-        }
-        List<Screen> screens = root.copyScreenList();
-        for (Screen s : screens) {
-            root.removeScreen(s);
-        }
-        List<Instrument> instruments = root.copyInstrumentList();
-        for (Instrument i : instruments) {
-            root.removeInstrument(i);
-        }
-        List<Folder> folders = root.copyFolderList();
-        for (Folder f : folders) {
-            root.removeFolder(f);
+    public void close()
+    {
+        if (ownsSession && this.target != null)
+        {
+            this.target.logout();
         }
     }
 
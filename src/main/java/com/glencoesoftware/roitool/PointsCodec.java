@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.Arrays;
+
+/**
+ * Converts between the <code>points</code> of Polygons and Polylines,
+ * <code>x1,y1 x2,y2 ...</code>, and coordinate arrays
+ * <code>{x1, y1, x2, y2, ...}</code>.
+ * <p>
+ * Parsing scans the string directly into a coordinate buffer that is
+ * reused across calls, so a codec parses any number of strings without
+ * allocating once its buffer is large enough.  Decimal numbers whose
+ * significant digits fit a double exactly, which covers the coordinates
+ * written by OMERO and QuPath, are converted without
+ * {@link Double#parseDouble}, with the same result; other numbers fall
+ * back to it.  Formatting writes the shortest decimal that
+ * parses back to the same value for coordinates with up to
+ * {@link #MAX_FRACTION_DIGITS} fraction digits, e.g. <code>12.5</code>
+ * rather than <code>12.500000</code>.
+ * <p>
+ * A codec is not thread safe; use one per thread.
+ */
+public class PointsCodec {
+
+    /** Most fraction digits tried when formatting before falling back. */
+    public static final int MAX_FRACTION_DIGITS = 8;
+
+    /** Exactly representable powers of ten. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i=1; i<POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /** Largest mantissa that is exactly representable as a double. */
+    private static final long MAX_EXACT = 1L << 53;
+
+    private double[] coordinates = new double[64];
+
+    private int length = 0;
+
+    /**
+     * Parse a <code>points</code> string into this codec's buffer.
+     * Coordinates may be separated by any mix of whitespace and commas.
+     * @param points points string
+     * @return <code>true</code> if the string holds an even number of valid
+     * coordinates, <code>false</code> otherwise, in which case the buffer
+     * holds the coordinates parsed up to the error
+     */
+    public boolean parse(CharSequence points) {
+        length = 0;
+        final int end = points.length();
+        int i = 0;
+        while (true) {
+            while (i < end && isSeparator(points.charAt(i))) {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            final int start = i;
+            while (i < end && !isSeparator(points.charAt(i))) {
+                i++;
+            }
+            final double value = parseDouble(points, start, i);
+            if (Double.isNaN(value) && !isNaN(points, start, i)) {
+                return false;
+            }
+            if (length == coordinates.length) {
+                coordinates = Arrays.copyOf(coordinates, length * 2);
+            }
+            coordinates[length++] = value;
+        }
+        return length % 2 == 0;
+    }
+
+    /**
+     * @return coordinate buffer, valid up to {@link #getLength()}; it is
+     * overwritten by the next {@link #parse(CharSequence)}
+     */
+    public double[] getCoordinates() {
+        return coordinates;
+    }
+
+    /**
+     * @return number of coordinates parsed, twice the number of points
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Format the coordinates in this codec's buffer as a points string.
+     * @return points string
+     */
+    public String format() {
+        final StringBuilder points = new StringBuilder(length * 8);
+        format(coordinates, length, points);
+        return points.toString();
+    }
+
+    /**
+     * Append coordinates as a points string.
+     * @param coordinates coordinates <code>{x1, y1, x2, y2, ...}</code>
+     * @param length number of coordinates to format
+     * @param points builder to append to
+     */
+    public static void format(
+            double[] coordinates, int length, StringBuilder points) {
+        for (int i=0; i<length; i++) {
+            if (i > 0) {
+                points.append(i % 2 == 0 ? ' ' : ',');
+            }
+            appendDouble(coordinates[i], points);
+        }
+    }
+
+    /**
+     * Append the shortest decimal of at most {@link #MAX_FRACTION_DIGITS}
+     * fraction digits that parses back to a value, or
+     * {@link Double#toString(double)} if there is none.
+     * @param value value to format
+     * @param out builder to append to
+     */
+    public static void appendDouble(double value, StringBuilder out) {
+        if (value == 0) {
+            out.append('0');
+            return;
+        }
+        if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+            final double magnitude = Math.abs(value);
+            for (int digits=0; digits<=MAX_FRACTION_DIGITS; digits++) {
+                final double scaled = Math.rint(
+                        magnitude * POWERS_OF_TEN[digits]);
+                if (scaled >= MAX_EXACT) {
+                    break;
+                }
+                if (scaled / POWERS_OF_TEN[digits] == magnitude) {
+                    if (value < 0) {
+                        out.append('-');
+                    }
+                    appendDecimal((long) scaled, digits, out);
+                    return;
+                }
+            }
+        }
+        out.append(value);
+    }
+
+    /**
+     * Append <code>unscaled / 10^digits</code> without trailing zeros.
+     */
+    private static void appendDecimal(long unscaled, int digits,
+            StringBuilder out) {
+        final long factor = (long) POWERS_OF_TEN[digits];
+        out.append(unscaled / factor);
+        if (digits == 0) {
+            return;
+        }
+        out.append('.');
+        long fraction = unscaled % factor;
+        for (long unit=factor/10; unit>0; unit/=10) {
+            out.append((char) ('0' + fraction / unit));
+            fraction %= unit;
+        }
+    }
+
+    /**
+     * Parse a decimal number, e.g. <code>-12.5</code> or
+     * <code>1.25E-3</code>, from part of a string.
+     * @param s string
+     * @param start offset of the first character of the number
+     * @param end offset following the last character of the number
+     * @return the value, or {@link Double#NaN} if the characters are not a
+     * number
+     */
+    public static double parseDouble(CharSequence s, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean point = false;
+        boolean inexact = false;
+        for (; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (mantissa == 0 && c == '0') {
+                    // leading zeros only move the decimal point
+                    if (point) {
+                        exponent--;
+                    }
+                }
+                else if (significant < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    significant++;
+                    if (point) {
+                        exponent--;
+                    }
+                }
+                else {
+                    // further digits do not fit the mantissa
+                    if (!point) {
+                        exponent++;
+                    }
+                    inexact |= c != '0';
+                }
+            }
+            else if (c == '.' && !point) {
+                point = true;
+            }
+            else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return fallback(s, start, end);
+        }
+        if (i < end) {
+            if (s.charAt(i) != 'e' && s.charAt(i) != 'E') {
+                return fallback(s, start, end);
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                negativeExponent = s.charAt(i) == '-';
+                i++;
+            }
+            if (i == end || end - i > 4) {
+                return fallback(s, start, end);
+            }
+            int e = 0;
+            for (; i < end; i++) {
+                final char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    return fallback(s, start, end);
+                }
+                e = e * 10 + (c - '0');
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        // Clinger's fast path: an exact mantissa and an exact power of
+        // ten give a correctly rounded result with a single operation
+        if (!inexact && mantissa <= MAX_EXACT
+                && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            final double value = exponent < 0 ?
+                    mantissa / POWERS_OF_TEN[-exponent] :
+                    mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        return fallback(s, start, end);
+    }
+
+    private static double fallback(CharSequence s, int start, int end) {
+        try {
+            return Double.parseDouble(s.subSequence(start, end).toString());
+        }
+        catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static boolean isNaN(CharSequence s, int start, int end) {
+        return end - start == 3 && s.charAt(start) == 'N'
+                && s.charAt(start + 1) == 'a' && s.charAt(start + 2) == 'N';
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ',' || c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
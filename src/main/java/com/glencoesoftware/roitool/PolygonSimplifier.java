@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.Arrays;
+
+/**
+ * Douglas-Peucker simplification of the <code>points</code> of Polygons and
+ * Polylines.  A vertex is dropped if it lies within the tolerance of the
+ * segment between the vertices kept around it, so outlines traced pixel by
+ * pixel, such as QuPath cell detections, lose most of their near-collinear
+ * vertices while staying within the tolerance of the original.
+ * <p>
+ * The kept vertices are copied from the input unchanged, so simplification
+ * never alters their formatting or precision.  Input that cannot be parsed
+ * is returned as it is.
+ */
+public class PolygonSimplifier {
+
+    private PolygonSimplifier() {
+    }
+
+    /**
+     * Simplify a <code>points</code> string.
+     * @param points vertices formatted as <code>x1,y1 x2,y2 ...</code>,
+     * may be <code>null</code>
+     * @param tolerance maximum distance in pixels of a dropped vertex from
+     * the simplified outline
+     * @param closed <code>true</code> for a Polygon, whose last vertex
+     * connects to its first, <code>false</code> for a Polyline
+     * @return the simplified points, or <code>points</code> itself if no
+     * vertex was dropped
+     */
+    public static String simplify(
+            String points, double tolerance, boolean closed) {
+        if (points == null || !(tolerance > 0)) {
+            return points;
+        }
+        final int[] offsets = parseOffsets(points);
+        if (offsets == null) {
+            return points;
+        }
+        final int n = offsets.length / 2;
+        if (n <= (closed ? 3 : 2)) {
+            return points;
+        }
+        final double[] xy = new double[2 * (n + 1)];
+        for (int i=0; i<n; i++) {
+            final int start = offsets[2 * i];
+            final int end = offsets[2 * i + 1];
+            final int comma = points.indexOf(',', start);
+            xy[2 * i] = PointsCodec.parseDouble(points, start, comma);
+            xy[2 * i + 1] = PointsCodec.parseDouble(points, comma + 1, end);
+            if (Double.isNaN(xy[2 * i]) || Double.isNaN(xy[2 * i + 1])) {
+                return points;
+            }
+        }
+
+        final boolean[] keep = new boolean[n + 1];
+        if (closed) {
+            // the closing edge back to the first vertex is simplified as
+            // well, so the first vertex is appended, and the outline split
+            // at the vertex farthest from it
+            xy[2 * n] = xy[0];
+            xy[2 * n + 1] = xy[1];
+            int farthest = 0;
+            double max = -1;
+            for (int i=1; i<n; i++) {
+                final double d = Math.hypot(
+                        xy[2 * i] - xy[0], xy[2 * i + 1] - xy[1]);
+                if (d > max) {
+                    max = d;
+                    farthest = i;
+                }
+            }
+            keep[0] = true;
+            keep[farthest] = true;
+            simplify(xy, 0, farthest, tolerance, keep);
+            simplify(xy, farthest, n, tolerance, keep);
+        }
+        else {
+            keep[0] = true;
+            keep[n - 1] = true;
+            simplify(xy, 0, n - 1, tolerance, keep);
+        }
+
+        int kept = 0;
+        for (int i=0; i<n; i++) {
+            if (keep[i]) {
+                kept++;
+            }
+        }
+        if (kept == n || (closed && kept < 3)) {
+            return points;
+        }
+        final StringBuilder simplified =
+                new StringBuilder(points.length() * kept / n + 16);
+        for (int i=0; i<n; i++) {
+            if (keep[i]) {
+                if (simplified.length() > 0) {
+                    simplified.append(' ');
+                }
+                simplified.append(points, offsets[2 * i], offsets[2 * i + 1]);
+            }
+        }
+        return simplified.toString();
+    }
+
+    /**
+     * Mark the vertices between <code>first</code> and <code>last</code>
+     * that are kept.  Uses an explicit stack, as outlines may have many
+     * thousands of vertices.
+     */
+    private static void simplify(double[] xy, int first, int last,
+            double tolerance, boolean[] keep) {
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = first;
+        stack[size++] = last;
+        while (size > 0) {
+            final int end = stack[--size];
+            final int start = stack[--size];
+            int farthest = -1;
+            double max = tolerance;
+            for (int i=start+1; i<end; i++) {
+                final double d = distance(xy, i, start, end);
+                if (d > max) {
+                    max = d;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0) {
+                continue;
+            }
+            keep[farthest] = true;
+            if (size + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[size++] = start;
+            stack[size++] = farthest;
+            stack[size++] = farthest;
+            stack[size++] = end;
+        }
+    }
+
+    /**
+     * @return distance of vertex <code>i</code> from the segment between
+     * vertices <code>a</code> and <code>b</code>
+     */
+    private static double distance(double[] xy, int i, int a, int b) {
+        final double x = xy[2 * i];
+        final double y = xy[2 * i + 1];
+        final double ax = xy[2 * a];
+        final double ay = xy[2 * a + 1];
+        final double dx = xy[2 * b] - ax;
+        final double dy = xy[2 * b + 1] - ay;
+        final double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return Math.hypot(x - ax, y - ay);
+        }
+        final double t = Math.max(0, Math.min(1,
+                ((x - ax) * dx + (y - ay) * dy) / lengthSquared));
+        return Math.hypot(x - ax - t * dx, y - ay - t * dy);
+    }
+
+    /**
+     * @param points vertices separated by whitespace, each two coordinates
+     * separated by a comma
+     * @return start and end offset of each vertex, or <code>null</code> if
+     * a vertex does not have exactly two coordinates
+     */
+    private static int[] parseOffsets(String points) {
+        int[] offsets = new int[32];
+        int count = 0;
+        int i = 0;
+        final int length = points.length();
+        while (i < length) {
+            while (i < length && Character.isWhitespace(points.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            final int start = i;
+            int commas = 0;
+            while (i < length && !Character.isWhitespace(points.charAt(i))) {
+                if (points.charAt(i) == ',') {
+                    commas++;
+                }
+                i++;
+            }
+            if (commas != 1) {
+                return null;
+            }
+            if (count + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = start;
+            offsets[count++] = i;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+}
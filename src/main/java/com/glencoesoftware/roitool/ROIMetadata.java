@@ -21,6 +21,7 @@ package com.glencoesoftware.roitool;
 
 import java.util.List;
 import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import ome.formats.model.UnitsFactory;
 import ome.units.quantity.Length;
@@ -32,6 +33,7 @@ import ome.xml.model.enums.FontStyle;
 import ome.xml.model.enums.Marker;
 import ome.xml.model.primitives.Color;
 import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.NonNegativeLong;
 
 import omero.RInt;
 import omero.RString;
@@ -40,6 +42,7 @@ import omero.model.Ellipse;
 import omero.model.IObject;
 import omero.model.Label;
 import omero.model.Line;
+import omero.model.Mask;
 import omero.model.Point;
 import omero.model.Polygon;
 import omero.model.Polyline;
@@ -57,11 +60,167 @@ import omero.model.Shape;
  */
 public class ROIMetadata extends MetadataBase {
 
+    /**
+     * Schema type name of each concrete Shape class, i.e. the simple name of
+     * its model class directly below {@link Shape}.
+     */
+    private static final ClassValue<String> SHAPE_TYPES =
+            new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            Class<?> shapeClass = null;
+            Class<?> currentClass = type;
+            while (currentClass != Shape.class) {
+                shapeClass = currentClass;
+                currentClass = currentClass.getSuperclass();
+            }
+            return shapeClass.getSimpleName();
+        }
+    };
+
+    /**
+     * @param shapeClass a concrete Shape model class
+     * @return schema type name of the Shape, e.g. <code>Polygon</code>
+     */
+    static String getSchemaType(Class<? extends Shape> shapeClass) {
+        return SHAPE_TYPES.get(shapeClass);
+    }
+
     private final List<Roi> roiList;
 
+    /**
+     * Index into {@link #shapes} of the first Shape of each ROI, with a
+     * final entry holding the total number of Shapes.
+     */
+    private final int[] shapeOffsets;
+
+    /** Shapes of all ROIs, resolved once so getters do not copy lists. */
+    private final Shape[] shapes;
+
+    /** Schema type name of each Shape in {@link #shapes}. */
+    private final String[] shapeTypes;
+
+    /**
+     * Prefetched annotation links, or <code>null</code> if the links loaded
+     * on the ROIs and Shapes themselves should be used.
+     */
+    private final AnnotationLinkIndex annotationLinks;
+
+    /**
+     * Simplified points of each Polygon and Polyline in {@link #shapes}, or
+     * <code>null</code> if the points are not simplified.
+     */
+    private String[] simplifiedPoints = null;
+
+    /**
+     * Codec rewriting Polygon and Polyline points in shortest form, or
+     * <code>null</code> if the points are written as they are.
+     */
+    private PointsCodec codec = null;
+
     public ROIMetadata(Function<IObject, String> lsids, List<Roi> rois) {
+        this(lsids, rois, null);
+    }
+
+    public ROIMetadata(Function<IObject, String> lsids, List<Roi> rois,
+            AnnotationLinkIndex annotationLinks) {
         super(lsids);
         this.roiList = rois;
+        this.annotationLinks = annotationLinks;
+
+        shapeOffsets = new int[rois.size() + 1];
+        for (int r=0; r<rois.size(); r++) {
+            shapeOffsets[r + 1] = shapeOffsets[r] + rois.get(r).sizeOfShapes();
+        }
+        shapes = new Shape[shapeOffsets[rois.size()]];
+        shapeTypes = new String[shapes.length];
+        for (int r=0; r<rois.size(); r++) {
+            final Roi roi = rois.get(r);
+            for (int s=0; s<roi.sizeOfShapes(); s++) {
+                final Shape shape = roi.getShape(s);
+                shapes[shapeOffsets[r] + s] = shape;
+                shapeTypes[shapeOffsets[r] + s] =
+                        SHAPE_TYPES.get(shape.getClass());
+            }
+        }
+    }
+
+    /**
+     * Simplify the points of all Polygons and Polylines with
+     * {@link PolygonSimplifier}, in parallel, before they are written.
+     * @param tolerance maximum distance in pixels of a dropped vertex from
+     * the simplified outline, or 0 to write the points as they are
+     */
+    public void setSimplifyTolerance(double tolerance) {
+        if (!(tolerance > 0)) {
+            simplifiedPoints = null;
+            return;
+        }
+        final String[] points = new String[shapes.length];
+        IntStream.range(0, shapes.length).parallel().forEach(i -> {
+            if (shapes[i] instanceof Polygon) {
+                points[i] = PolygonSimplifier.simplify(fromRType(
+                        ((Polygon) shapes[i]).getPoints()), tolerance, true);
+            }
+            else if (shapes[i] instanceof Polyline) {
+                points[i] = PolygonSimplifier.simplify(fromRType(
+                        ((Polyline) shapes[i]).getPoints()), tolerance, false);
+            }
+        });
+        simplifiedPoints = points;
+    }
+
+    /**
+     * Set whether the points of Polygons and Polylines are written with each
+     * coordinate in its shortest exact form, see {@link PointsCodec}, e.g.
+     * <code>12.5,3</code> rather than <code>12.500000,3.000000</code>.
+     * @param normalize <code>true</code> to rewrite the points
+     */
+    public void setNormalizePoints(boolean normalize) {
+        codec = normalize ? new PointsCodec() : null;
+    }
+
+    /**
+     * @param shape index into {@link #shapes} of a Polygon or Polyline
+     * @param points points of the Shape
+     * @return the points to write, simplified and normalized as set
+     */
+    private String getPoints(int shape, RString points) {
+        final String value = simplifiedPoints != null ?
+                simplifiedPoints[shape] : fromRType(points);
+        if (codec == null || value == null) {
+            return value;
+        }
+        return codec.parse(value) ? codec.format() : value;
+    }
+
+    /**
+     * @return index into {@link #shapes} of the given Shape, or -1 if the
+     * indexes are out of range
+     */
+    private int getShapeIndex(int ROIIndex, int shapeIndex) {
+        if (ROIIndex < 0 || shapeIndex < 0 || ROIIndex >= roiList.size()) {
+            return -1;
+        }
+        final int index = shapeOffsets[ROIIndex] + shapeIndex;
+        if (index >= shapeOffsets[ROIIndex + 1]) {
+            return -1;
+        }
+        return index;
+    }
+
+    private List<Annotation> getLinkedRoiAnnotations(Roi roi) {
+        if (annotationLinks == null) {
+            return roi.linkedAnnotationList();
+        }
+        return annotationLinks.getRoiAnnotations(roi.getId().getValue());
+    }
+
+    private List<Annotation> getLinkedShapeAnnotations(Shape shape) {
+        if (annotationLinks == null) {
+            return shape.linkedAnnotationList();
+        }
+        return annotationLinks.getShapeAnnotations(shape.getId().getValue());
     }
 
     private static AffineTransform toTransform(omero.model.AffineTransform omeroTransform) {
@@ -81,16 +240,12 @@ public class ROIMetadata extends MetadataBase {
     }
 
     private <X extends Shape> X getShape(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
-        if (ROIIndex < 0 || shapeIndex < 0 || ROIIndex >= roiList.size()) {
+        final int index = getShapeIndex(ROIIndex, shapeIndex);
+        if (index < 0) {
             return null;
         }
-        final Roi roi = roiList.get(ROIIndex);
-        final List<Shape> shapes = roi.copyShapes();
-        if (shapeIndex >= shapes.size()) {
-            return null;
-        }
-        final Shape shape = shapes.get(shapeIndex);
-        if (!expectedSubclass.isAssignableFrom(shape.getClass())) {
+        final Shape shape = shapes[index];
+        if (!expectedSubclass.isInstance(shape)) {
             return null;
         }
         return expectedSubclass.cast(shape);
@@ -107,7 +262,7 @@ public class ROIMetadata extends MetadataBase {
             return null;
         }
         final Roi roi = roiList.get(ROIIndex);
-        final List<Annotation> annotations = roi.linkedAnnotationList();
+        final List<Annotation> annotations = getLinkedRoiAnnotations(roi);
         if (annotationRefIndex >= annotations.size()) {
             return null;
         }
@@ -121,7 +276,10 @@ public class ROIMetadata extends MetadataBase {
             return -1;
         }
         final Roi roi = roiList.get(ROIIndex);
-        return roi.sizeOfAnnotationLinks();
+        if (annotationLinks == null) {
+            return roi.sizeOfAnnotationLinks();
+        }
+        return getLinkedRoiAnnotations(roi).size();
     }
 
     @Override
@@ -156,27 +314,16 @@ public class ROIMetadata extends MetadataBase {
         if (ROIIndex < 0 || ROIIndex >= roiList.size()) {
             return -1;
         }
-        final Roi roi = roiList.get(ROIIndex);
-        return roi.sizeOfShapes();
+        return shapeOffsets[ROIIndex + 1] - shapeOffsets[ROIIndex];
     }
 
     @Override
     public String getShapeType(int ROIIndex, int shapeIndex) {
-        final Shape shape = getShape(ROIIndex, shapeIndex, Shape.class);
-        if (shape == null) {
+        final int index = getShapeIndex(ROIIndex, shapeIndex);
+        if (index < 0) {
             return null;
         }
-        Class<? extends Shape> shapeClass = null;
-        Class<? extends Shape> currentClass = shape.getClass();
-        while (currentClass != Shape.class) {
-            shapeClass = currentClass;
-            currentClass = currentClass.getSuperclass().asSubclass(Shape.class);
-        }
-        if (shapeClass == Rectangle.class) {
-            return "Rectangle";
-        } else {
-            return shapeClass.getSimpleName();
-        }
+        return shapeTypes[index];
     }
 
     @Override
@@ -185,10 +332,13 @@ public class ROIMetadata extends MetadataBase {
         if (shape == null) {
             return -1;
         }
-        return shape.sizeOfAnnotationLinks();
+        if (annotationLinks == null) {
+            return shape.sizeOfAnnotationLinks();
+        }
+        return getLinkedShapeAnnotations(shape).size();
     }
 
-    private <X extends Shape> String getShapeAnnotationRef(int ROIIndex, int shapeIndex, int annotationRefIndex,
+    <X extends Shape> String getShapeAnnotationRef(int ROIIndex, int shapeIndex, int annotationRefIndex,
             Class<X> expectedSubclass) {
         if (annotationRefIndex < 0) {
             return null;
@@ -197,7 +347,7 @@ public class ROIMetadata extends MetadataBase {
         if (shape == null) {
             return null;
         }
-        final List<Annotation> annotations = shape.linkedAnnotationList();
+        final List<Annotation> annotations = getLinkedShapeAnnotations(shape);
         if (annotationRefIndex >= annotations.size()) {
             return null;
         }
@@ -205,7 +355,7 @@ public class ROIMetadata extends MetadataBase {
         return getLsid(annotation);
     }
 
-    private <X extends Shape> Color getShapeFillColor(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> Color getShapeFillColor(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -217,7 +367,7 @@ public class ROIMetadata extends MetadataBase {
         return new Color(color);
     }
 
-    private <X extends Shape> FillRule getShapeFillRule(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> FillRule getShapeFillRule(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -235,7 +385,7 @@ public class ROIMetadata extends MetadataBase {
         return fillRule;
     }
 
-    private <X extends Shape> FontFamily getShapeFontFamily(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> FontFamily getShapeFontFamily(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -253,7 +403,7 @@ public class ROIMetadata extends MetadataBase {
         return fontFamily;
     }
 
-    private <X extends Shape> Length getShapeFontSize(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> Length getShapeFontSize(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -261,7 +411,7 @@ public class ROIMetadata extends MetadataBase {
         return UnitsFactory.convertLength(shape.getFontSize());
     }
 
-    private <X extends Shape> FontStyle getShapeFontStyle(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> FontStyle getShapeFontStyle(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -279,7 +429,7 @@ public class ROIMetadata extends MetadataBase {
         return fontStyle;
     }
 
-    private <X extends Shape> String getShapeID(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> String getShapeID(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -287,7 +437,7 @@ public class ROIMetadata extends MetadataBase {
         return getLsid(shape);
     }
 
-    private <X extends Shape> Boolean getShapeLocked(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> Boolean getShapeLocked(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -295,7 +445,7 @@ public class ROIMetadata extends MetadataBase {
         return fromRType(shape.getLocked());
     }
 
-    private <X extends Shape> Color getShapeStrokeColor(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> Color getShapeStrokeColor(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -307,7 +457,7 @@ public class ROIMetadata extends MetadataBase {
         return new Color(color);
     }
 
-    private <X extends Shape> String getShapeStrokeDashArray(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> String getShapeStrokeDashArray(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -315,7 +465,7 @@ public class ROIMetadata extends MetadataBase {
         return fromRType(shape.getStrokeDashArray());
     }
 
-    private <X extends Shape> Length getShapeStrokeWidth(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> Length getShapeStrokeWidth(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -323,7 +473,7 @@ public class ROIMetadata extends MetadataBase {
         return UnitsFactory.convertLength(shape.getStrokeWidth());
     }
 
-    private <X extends Shape> NonNegativeInteger getShapeTheC(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> NonNegativeInteger getShapeTheC(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
           return null;
@@ -335,7 +485,7 @@ public class ROIMetadata extends MetadataBase {
         return toNonNegativeInteger(theC);
     }
 
-    private <X extends Shape> NonNegativeInteger getShapeTheT(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> NonNegativeInteger getShapeTheT(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -347,7 +497,7 @@ public class ROIMetadata extends MetadataBase {
         return toNonNegativeInteger(theT);
     }
 
-    private <X extends Shape> NonNegativeInteger getShapeTheZ(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> NonNegativeInteger getShapeTheZ(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -359,7 +509,15 @@ public class ROIMetadata extends MetadataBase {
         return toNonNegativeInteger(theZ);
     }
 
-    private <X extends Shape> AffineTransform getShapeTransform(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+    <X extends Shape> String getShapeText(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
+        final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
+        if (shape == null) {
+            return null;
+        }
+        return fromRType(shape.getTextValue());
+    }
+
+    <X extends Shape> AffineTransform getShapeTransform(int ROIIndex, int shapeIndex, Class<X> expectedSubclass) {
         final X shape = getShape(ROIIndex, shapeIndex, expectedSubclass);
         if (shape == null) {
             return null;
@@ -743,6 +901,144 @@ public class ROIMetadata extends MetadataBase {
         return fromRType(line.getY2());
     }
 
+    @Override
+    public String getMaskAnnotationRef(int ROIIndex, int shapeIndex, int annotationRefIndex) {
+        return getShapeAnnotationRef(ROIIndex, shapeIndex, annotationRefIndex, Mask.class);
+    }
+
+    @Override
+    public Color getMaskFillColor(int ROIIndex, int shapeIndex) {
+        return getShapeFillColor(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public FillRule getMaskFillRule(int ROIIndex, int shapeIndex) {
+        return getShapeFillRule(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public FontFamily getMaskFontFamily(int ROIIndex, int shapeIndex) {
+        return getShapeFontFamily(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public Length getMaskFontSize(int ROIIndex, int shapeIndex) {
+        return getShapeFontSize(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public FontStyle getMaskFontStyle(int ROIIndex, int shapeIndex) {
+        return getShapeFontStyle(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public String getMaskID(int ROIIndex, int shapeIndex) {
+        return getShapeID(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public Boolean getMaskLocked(int ROIIndex, int shapeIndex) {
+        return getShapeLocked(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public Color getMaskStrokeColor(int ROIIndex, int shapeIndex) {
+        return getShapeStrokeColor(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public String getMaskStrokeDashArray(int ROIIndex, int shapeIndex) {
+        return getShapeStrokeDashArray(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public Length getMaskStrokeWidth(int ROIIndex, int shapeIndex) {
+        return getShapeStrokeWidth(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public NonNegativeInteger getMaskTheC(int ROIIndex, int shapeIndex) {
+        return getShapeTheC(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public NonNegativeInteger getMaskTheT(int ROIIndex, int shapeIndex) {
+        return getShapeTheT(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public NonNegativeInteger getMaskTheZ(int ROIIndex, int shapeIndex) {
+        return getShapeTheZ(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public AffineTransform getMaskTransform(int ROIIndex, int shapeIndex) {
+        return getShapeTransform(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public String getMaskText(int ROIIndex, int shapeIndex) {
+        return getShapeText(ROIIndex, shapeIndex, Mask.class);
+    }
+
+    @Override
+    public Double getMaskHeight(int ROIIndex, int shapeIndex) {
+        final Mask mask = getShape(ROIIndex, shapeIndex, Mask.class);
+        if (mask == null) {
+            return null;
+        }
+        return fromRType(mask.getHeight());
+    }
+
+    @Override
+    public Double getMaskWidth(int ROIIndex, int shapeIndex) {
+        final Mask mask = getShape(ROIIndex, shapeIndex, Mask.class);
+        if (mask == null) {
+            return null;
+        }
+        return fromRType(mask.getWidth());
+    }
+
+    @Override
+    public Double getMaskX(int ROIIndex, int shapeIndex) {
+        final Mask mask = getShape(ROIIndex, shapeIndex, Mask.class);
+        if (mask == null) {
+            return null;
+        }
+        return fromRType(mask.getX());
+    }
+
+    @Override
+    public Double getMaskY(int ROIIndex, int shapeIndex) {
+        final Mask mask = getShape(ROIIndex, shapeIndex, Mask.class);
+        if (mask == null) {
+            return null;
+        }
+        return fromRType(mask.getY());
+    }
+
+    /**
+     * @return the bit-packed mask, one bit per pixel in row-major order,
+     * without compression or encoding
+     */
+    @Override
+    public byte[] getMaskBinData(int ROIIndex, int shapeIndex) {
+        final Mask mask = getShape(ROIIndex, shapeIndex, Mask.class);
+        if (mask == null) {
+            return null;
+        }
+        return mask.getBytes();
+    }
+
+    @Override
+    public NonNegativeLong getMaskBinDataLength(int ROIIndex, int shapeIndex) {
+        final byte[] bytes = getMaskBinData(ROIIndex, shapeIndex);
+        if (bytes == null) {
+            return null;
+        }
+        return new NonNegativeLong((long) bytes.length);
+    }
+
     @Override
     public String getPointAnnotationRef(int ROIIndex, int shapeIndex, int annotationRefIndex) {
         return getShapeAnnotationRef(ROIIndex, shapeIndex, annotationRefIndex, Point.class);
@@ -926,7 +1222,8 @@ public class ROIMetadata extends MetadataBase {
         if (polygon == null) {
             return null;
         }
-        return fromRType(polygon.getPoints());
+        return getPoints(
+                shapeOffsets[ROIIndex] + shapeIndex, polygon.getPoints());
     }
 
     @Override
@@ -1053,7 +1350,8 @@ public class ROIMetadata extends MetadataBase {
         if (polyline == null) {
             return null;
         }
-        return fromRType(polyline.getPoints());
+        return getPoints(
+                shapeOffsets[ROIIndex] + shapeIndex, polyline.getPoints());
     }
 
     @Override
@@ -18,24 +18,32 @@
 
 package com.glencoesoftware.roitool;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ome.codecs.CodecException;
-import ome.codecs.ZlibCodec;
+import Ice.AsyncResult;
 import ome.conditions.ApiUsageException;
 import ome.formats.Index;
 import ome.formats.OMEROMetadataStoreClient;
 import ome.util.LSID;
 import ome.xml.model.enums.Compression;
+import omero.RString;
 import omero.ServerError;
 import omero.api.IQueryPrx;
 import omero.api.IUpdatePrx;
@@ -44,9 +52,16 @@ import omero.metadatastore.IObjectContainer;
 import omero.model.IObject;
 import omero.model.Image;
 import omero.model.ImageI;
+import omero.model.MapAnnotation;
 import omero.model.Mask;
+import omero.model.NamedValue;
+import omero.model.Polygon;
+import omero.model.Polyline;
 import omero.model.Roi;
+import omero.model.RoiAnnotationLink;
+import omero.model.RoiI;
 import omero.model.Shape;
+import omero.model.TextAnnotation;
 import omero.model.Annotation;
 import omero.sys.ParametersI;
 
@@ -58,13 +73,92 @@ public class ROIMetadataStoreClient extends OMEROMetadataStoreClient {
     private static final Logger log =
             LoggerFactory.getLogger(ROIMetadataStoreClient.class);
 
+    /** Default maximum number of objects saved per server call. */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Default approximate maximum size of the objects saved per call. */
+    public static final long DEFAULT_BATCH_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Approximate marshalled size of an object, not counting its strings
+     * and arrays.
+     */
+    private static final long OBJECT_BYTES = 256;
+
+    /** Maximum number of objects saved per server call. */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** Approximate maximum size of the objects saved per server call. */
+    private long batchBytes = DEFAULT_BATCH_BYTES;
+
+    /** Additional sessions that save batches concurrently. */
+    private List<ServiceFactoryPrx> writerSessions = Collections.emptyList();
+
+    /** Journal of the objects saved, if the import is resumable. */
+    private ImportJournal journal = null;
+
+    /** Whether ROIs imported to the Image before are skipped. */
+    private boolean deduplicate = false;
+
+    /**
+     * Tolerance in pixels of the simplification of Polygon and Polyline
+     * points, or 0 if they are not simplified.
+     */
+    private double simplifyTolerance = 0;
+
+    /** Whether Polygon and Polyline points are rewritten in shortest form. */
+    private boolean normalizePoints = false;
+
+    /** Decodes mask data in parallel with the conversion of the input. */
+    private final MaskDecoder maskDecoder = new MaskDecoder();
+
+    /**
+     * Notified of every batch saved by a {@link BatchPipeline}, in the
+     * thread that submitted it.
+     */
+    private interface BatchListener
+    {
+        /**
+         * @param batch objects that were saved
+         * @param results the saved objects, in the same order
+         */
+        void saved(List<IObject> batch, List<IObject> results);
+    }
+
     /** A list of all objects their LSIDs. */
     private Map<LSID, IObject> lsidMap = new HashMap<LSID, IObject>();
 
-    /** A map of roiIndex vs. ROI object ordered by first access. */
+    /**
+     * A map of roiIndex vs. ROI object ordered by first access, of the
+     * ROIs that have not been sent to the server yet.
+     */
     private Map<Integer, Roi> roiList =
         new LinkedHashMap<Integer, Roi>();
 
+    /** Saves the ROIs of the current import, once it is started. */
+    private RoiSaver saver = null;
+
+    /** Whether converted ROIs are saved by {@link #saveConverted()}. */
+    private boolean streaming = false;
+
+    /** Containers created since {@link #saveConverted()} last ran. */
+    private List<IObjectContainer> newContainers =
+        new ArrayList<IObjectContainer>();
+
+    /** Containers handled by {@link #saveConverted()}. */
+    private Set<IObjectContainer> handledContainers =
+        Collections.newSetFromMap(
+            new IdentityHashMap<IObjectContainer, Boolean>());
+
+    /**
+     * Index of the first ROI that refers to annotations, which it and the
+     * ROIs after it are held for until {@link #saveToDB(long)}.
+     */
+    private int firstAnnotatedRoi = Integer.MAX_VALUE;
+
+    /** Length of the encoded mask data of the ROIs in roiList. */
+    private long convertedMaskBytes = 0;
+
     /**
      * Returns a Roi model object based on its indexes within the
      * OMERO data model.
@@ -76,14 +170,208 @@ public class ROIMetadataStoreClient extends OMEROMetadataStoreClient {
         return roiList.get(roiIndex);
     }
 
+    /**
+     * Sets the maximum number of ROIs, or annotations, saved per server
+     * call by {@link #saveToDB(long)}.
+     * @param batchSize maximum number of objects per batch
+     */
+    public void setBatchSize(int batchSize)
+    {
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException(
+                    "Invalid batch size: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the approximate maximum size of the ROIs, or annotations, saved
+     * per server call by {@link #saveToDB(long)}.  A single object larger
+     * than this, such as a big mask, is saved in a batch of its own.
+     * @param batchBytes maximum estimated size of a batch in bytes
+     */
+    public void setBatchBytes(long batchBytes)
+    {
+        if (batchBytes < 1)
+        {
+            throw new IllegalArgumentException(
+                    "Invalid batch size: " + batchBytes + " bytes");
+        }
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Sets additional sessions, e.g. {@link JoinedSessions}, that
+     * {@link #saveToDB(long)} uses to save batches concurrently with this
+     * store's own session, each batch in its own transaction.
+     * @param writerSessions additional sessions, empty to save with this
+     * store's session only
+     */
+    public void setWriterSessions(List<ServiceFactoryPrx> writerSessions)
+    {
+        this.writerSessions = writerSessions;
+    }
+
+    /**
+     * Sets a journal in which {@link #saveToDB(long)} records every saved
+     * ROI and annotation.  Those already recorded in the journal by an
+     * earlier, failed import are not saved again.
+     * @param journal import journal, or <code>null</code>
+     */
+    public void setJournal(ImportJournal journal)
+    {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets whether {@link #saveToDB(long)} skips ROIs that were imported
+     * to the Image before, by comparing content digests, see
+     * {@link RoiDigestIndex}.
+     * @param deduplicate <code>true</code> to skip ROIs imported before
+     */
+    public void setDeduplicate(boolean deduplicate)
+    {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Sets the tolerance with which {@link #saveToDB(long)} simplifies the
+     * points of Polygons and Polylines, see {@link PolygonSimplifier}.
+     * @param simplifyTolerance maximum distance in pixels of a dropped
+     * vertex from the simplified outline, or 0 to keep all vertices
+     */
+    public void setSimplifyTolerance(double simplifyTolerance)
+    {
+        this.simplifyTolerance = simplifyTolerance;
+    }
+
+    /**
+     * Sets whether {@link #saveToDB(long)} rewrites the points of Polygons
+     * and Polylines with each coordinate in its shortest exact form, see
+     * {@link PointsCodec}.  The default is <code>false</code>, which saves
+     * the points as they are written in the input.
+     * @param normalizePoints <code>true</code> to rewrite the points
+     */
+    public void setNormalizePoints(boolean normalizePoints)
+    {
+        this.normalizePoints = normalizePoints;
+    }
+
+    /**
+     * Sets whether decoded masks are trimmed to the bounding box of their
+     * set pixels, adjusting their position and size.  The default is
+     * <code>false</code>.
+     * @param trimMasks <code>true</code> to trim masks
+     */
+    public void setTrimMasks(boolean trimMasks)
+    {
+        maskDecoder.setTrim(trimMasks);
+    }
+
+    /**
+     * Starts saving ROIs to an Image while the input is still being
+     * converted.  From then on, {@link #saveConverted()} sends the
+     * converted ROIs to the server in batches, so that each batch is saved
+     * while the next one is converted, and {@link #saveToDB(long)} saves
+     * the rest.  A ROI that refers to annotations is held until
+     * {@link #saveToDB(long)}, as the annotations follow the ROIs in
+     * OME-XML, and so are the ROIs after it, so that ROIs are still saved
+     * in the order of the input.
+     * @param imageId id of the image to link the Rois to
+     * @throws ServerError if the Image could not be found
+     */
+    public void startSave(long imageId) throws ServerError
+    {
+        saver = new RoiSaver(imageId);
+        streaming = true;
+    }
+
+    /**
+     * Sends the ROIs converted so far to the server, once they fill a
+     * batch, if saving was started with {@link #startSave(long)}.  Must
+     * only be called between ROIs, when every converted ROI is complete.
+     * Returns without waiting for the batches to be saved, unless as many
+     * batches as can be in flight at once have been sent.
+     * @throws ServerError if a batch could not be saved
+     */
+    public void saveConverted() throws ServerError
+    {
+        if (!streaming)
+        {
+            return;
+        }
+        for (IObjectContainer container : newContainers)
+        {
+            updateObject(container.LSID, container.sourceObject,
+                         container.indexes);
+            handledContainers.add(container);
+        }
+        newContainers.clear();
+        boolean held = firstAnnotatedRoi != Integer.MAX_VALUE;
+        if (!held && roiList.size() < batchSize
+                && convertedMaskBytes < batchBytes)
+        {
+            return;
+        }
+        Map<Integer, Roi> converted = new LinkedHashMap<Integer, Roi>();
+        Iterator<Map.Entry<Integer, Roi>> entries =
+                roiList.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry<Integer, Roi> entry = entries.next();
+            if (entry.getKey() < firstAnnotatedRoi)
+            {
+                converted.put(entry.getKey(), entry.getValue());
+                entries.remove();
+            }
+        }
+        convertedMaskBytes = 0;
+        if (held)
+        {
+            log.info("Holding ROIs from index {} until their annotations " +
+                     "are read", firstAnnotatedRoi);
+            streaming = false;
+        }
+        saver.save(converted);
+    }
+
+    /**
+     * Waits for the batches in flight of an import that failed, recording
+     * those that were saved, and forgets the ROIs that were not sent.
+     */
+    public void abortSave()
+    {
+        streaming = false;
+        if (saver != null)
+        {
+            saver.abort();
+            saver = null;
+        }
+    }
+
     /**
      * Updates the server side MetadataStore with a list of our objects and
-     * references and saves them into the database.
+     * references and saves them into the database.  The annotations linked
+     * to the ROIs are saved first, then the ROIs, in batches limited by
+     * {@link #setBatchSize(int)} and {@link #setBatchBytes(long)} so that
+     * no single call exceeds the Ice message size limit or the server
+     * transaction timeout.  With {@link #setWriterSessions(List)}, batches
+     * are spread across the sessions and saved concurrently; otherwise each
+     * batch is submitted before waiting for the previous one to be saved.
+     * If a batch fails, no further batches are submitted; the batches saved
+     * before it remain in the database, and are skipped by a later import
+     * with the same {@link #setJournal(ImportJournal) journal}.  If saving
+     * was started with {@link #startSave(long)}, only the ROIs that were
+     * not sent yet are saved here.
      * @param imageId id of the image to link the Rois to
      * @return List of Rois after database commit.
      */
     public List<IObject> saveToDB(long imageId) throws ServerError
     {
+        maskDecoder.await();
+        streaming = false;
+        newContainers.clear();
         Collection<IObjectContainer> containers =
                 this.getContainerCache().values();
         IObjectContainer[] containerArray =
@@ -114,6 +402,11 @@ public class ROIMetadataStoreClient extends OMEROMetadataStoreClient {
         log.debug("Handling # of containers: {}", containerArray.length);
         for (IObjectContainer container : containerArray)
         {
+            if (handledContainers.contains(container))
+            {
+                // already handled while the input was being converted
+                continue;
+            }
             log.debug("{}, {}", container.LSID, container.indexes,
                       container.sourceObject);
             this.updateObject(container.LSID, container.sourceObject,
@@ -123,44 +416,704 @@ public class ROIMetadataStoreClient extends OMEROMetadataStoreClient {
         log.debug("Handling # of references: {}", getReferenceStringCache().size());
         this.updateReferences(this.getReferenceStringCache());
 
-        // get the group ID
-        ServiceFactoryPrx sf = this.getServiceFactory();
+        RoiSaver saver = this.saver != null ?
+                this.saver : new RoiSaver(imageId);
+        this.saver = null;
+        List<IObject> rois;
+        try
+        {
+            // Save to DB
+            log.info("Saving to DB");
+            Map<Integer, Roi> converted = roiList;
+            roiList = new LinkedHashMap<Integer, Roi>();
+            saver.save(converted);
+            rois = saver.finish();
+        }
+        catch (ServerError | RuntimeException e)
+        {
+            saver.abort();
+            throw e;
+        }
+
+        for (IObject roi : rois)
+        {
+            log.info("Saved ROI with ID: {}", unwrap(roi.getId()));
+        }
+        return rois;
+    }
+
+    /**
+     * Saves the ROIs of an import to an Image as they are converted, see
+     * {@link #startSave(long)}.  ROIs recorded in the journal are not
+     * saved again, and with {@link #setDeduplicate(boolean)}, neither are
+     * ROIs imported to the Image before.
+     */
+    private class RoiSaver
+    {
+        private final long imageId;
+
+        private final List<IUpdatePrx> updateServices =
+                new ArrayList<IUpdatePrx>();
+
+        private final RoiDigestIndex digests;
+
+        private final BatchPipeline pipeline;
 
-        Map<String, String> queryCtx = new HashMap<String, String>();
-        queryCtx.put("omero.group", "-1");
-        IQueryPrx q = (IQueryPrx) sf.getQueryService().ice_context(queryCtx);
-        String query = "select i from Image i where i.id = :id";
+        /** Unloaded saved ROIs, including those saved by earlier imports. */
+        private final List<IObject> rois = new ArrayList<IObject>();
 
-        ParametersI p = new ParametersI();
-        p.add("id", rlong(imageId));
+        /** Indexes in the input of the ROIs sent to the server. */
+        private final Map<IObject, Integer> roiIndexes =
+                new IdentityHashMap<IObject, Integer>();
 
-        List<IObject> results = q.findAllByQuery(query, p);
-        if (results.size() == 0) {
-            throw new ServerError(
-                new IllegalArgumentException("Invalid image ID: " + imageId));
+        /** Number of ROIs saved by an earlier attempt at the import. */
+        private int resumed = 0;
+
+        /** Number of ROIs imported to the Image before. */
+        private int duplicates = 0;
+
+        /**
+         * Looks up the group of the Image, which the ROIs are saved in,
+         * and the digests of the ROIs imported to it before, if needed.
+         * @param imageId id of the image to link the Rois to
+         */
+        RoiSaver(long imageId) throws ServerError
+        {
+            this.imageId = imageId;
+
+            // get the group ID
+            ServiceFactoryPrx sf = getServiceFactory();
+
+            Map<String, String> queryCtx = new HashMap<String, String>();
+            queryCtx.put("omero.group", "-1");
+            IQueryPrx q = (IQueryPrx) sf.getQueryService().ice_context(queryCtx);
+            String query = "select i from Image i where i.id = :id";
+
+            ParametersI p = new ParametersI();
+            p.add("id", rlong(imageId));
+
+            List<IObject> results = q.findAllByQuery(query, p);
+            if (results.size() == 0) {
+                throw new ServerError(
+                    new IllegalArgumentException("Invalid image ID: " + imageId));
+            }
+            Long groupId = results.get(0).getDetails().getGroup().getId().getValue();
+
+            Map<String, String> callCtx = new HashMap<String, String>();
+            if (groupId != null) {
+                callCtx.put("omero.group", groupId.toString());
+            }
+
+            updateServices.add(
+                (IUpdatePrx) sf.getUpdateService().ice_context(callCtx));
+            for (ServiceFactoryPrx session : writerSessions)
+            {
+                updateServices.add(
+                    (IUpdatePrx) session.getUpdateService().ice_context(callCtx));
+            }
+            digests = deduplicate ? RoiDigestIndex.load(q, imageId) : null;
+            if (digests != null)
+            {
+                digests.setMaskBits(maskDecoder::getBits);
+            }
+            pipeline = new BatchPipeline(updateServices, "ROI", this::saved);
         }
-        Long groupId = results.get(0).getDetails().getGroup().getId().getValue();
 
-        // Save to DB
-        log.info("Saving to DB");
+        /**
+         * Links converted ROIs to the Image, saves the annotations linked
+         * to them and sends them to the server in batches.
+         * @param converted complete ROIs by index in the input
+         */
+        void save(Map<Integer, Roi> converted) throws ServerError
+        {
+            maskDecoder.await();
+            if (simplifyTolerance > 0 || normalizePoints)
+            {
+                processPoints(converted.values());
+            }
+            Image image = new ImageI(imageId, false);
+            log.debug("Linking {} ROIs to Image:{}",
+                      converted.size(), imageId);
+            List<IObject> unsaved = new ArrayList<IObject>();
+            for (Map.Entry<Integer, Roi> entry : converted.entrySet())
+            {
+                Roi roi = entry.getValue();
+                roi.setImage(image);
+                Long id = journal == null ?
+                        null : journal.getRoiId(entry.getKey());
+                if (id != null)
+                {
+                    rois.add(new RoiI(id, false));
+                    resumed++;
+                    if (digests != null)
+                    {
+                        digests.add(roi);
+                    }
+                }
+                else if (digests != null && digests.isDuplicate(roi))
+                {
+                    duplicates++;
+                }
+                else
+                {
+                    unsaved.add(roi);
+                    roiIndexes.put(roi, entry.getKey());
+                }
+            }
+            saveAnnotations(updateServices, unsaved);
+            for (List<IObject> batch :
+                    split(unsaved, ROIMetadataStoreClient.this::estimateBytes))
+            {
+                pipeline.submit(batch);
+            }
+        }
 
-        linkImage(imageId);
-        List<IObject> rois = new ArrayList<IObject>(roiList.values());
+        /**
+         * Records a saved batch of ROIs in the journal and digest index.
+         * @param batch ROIs that were saved
+         * @param results the saved ROIs, in the same order
+         */
+        private void saved(List<IObject> batch, List<IObject> results)
+        {
+            for (int i = 0; i < batch.size(); i++)
+            {
+                rois.add(new RoiI(results.get(i).getId().getValue(), false));
+                if (digests != null)
+                {
+                    digests.saved((Roi) batch.get(i));
+                }
+            }
+            if (journal != null)
+            {
+                try
+                {
+                    for (int i = 0; i < batch.size(); i++)
+                    {
+                        journal.recordRoi(roiIndexes.get(batch.get(i)),
+                                results.get(i).getId().getValue());
+                    }
+                    journal.sync();
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(
+                            "Could not record saved ROIs", e);
+                }
+            }
+            for (IObject roi : batch)
+            {
+                roiIndexes.remove(roi);
+            }
+        }
 
-        Map<String, String> callCtx = new HashMap<String, String>();
-        if (groupId != null) {
-            callCtx.put("omero.group", groupId.toString());
+        /**
+         * Waits for the batches in flight and links the digests of the
+         * saved ROIs to the Image.
+         * @return the saved ROIs, unloaded
+         */
+        List<IObject> finish() throws ServerError
+        {
+            pipeline.finish();
+            if (resumed > 0)
+            {
+                log.info("Skipped {} ROIs saved by an earlier import",
+                         resumed);
+            }
+            if (duplicates > 0)
+            {
+                log.info("Skipped {} ROIs imported to Image:{} before",
+                         duplicates, imageId);
+            }
+            if (digests != null)
+            {
+                digests.save(updateServices.get(0), imageId);
+            }
+            return rois;
         }
 
-        IUpdatePrx updateService =
-            (IUpdatePrx) sf.getUpdateService().ice_context(callCtx);
-        rois = updateService.saveAndReturnArray(rois);
+        /**
+         * Waits for the batches in flight after a failure and links the
+         * digests of the ROIs saved before it, which are duplicates now.
+         */
+        void abort()
+        {
+            pipeline.abort();
+            if (digests != null)
+            {
+                try
+                {
+                    digests.save(updateServices.get(0), imageId);
+                }
+                catch (ServerError | RuntimeException e)
+                {
+                    log.error("Failed to save ROI digests", e);
+                }
+            }
+        }
+    }
 
+    /**
+     * Rewrites the points of the Polygons and Polylines of ROIs in
+     * parallel: simplified if a tolerance is set, and with each coordinate
+     * in its shortest form if requested, see {@link PointsCodec}, which
+     * preserves the coordinates exactly but shortens e.g. the six fraction
+     * digits that QuPath writes.
+     * @param rois ROIs about to be saved
+     */
+    private void processPoints(Collection<Roi> rois)
+    {
+        List<Shape> shapes = new ArrayList<Shape>();
+        for (Roi roi : rois)
+        {
+            for (Shape shape : roi.copyShapes())
+            {
+                if (shape instanceof Polygon || shape instanceof Polyline)
+                {
+                    shapes.add(shape);
+                }
+            }
+        }
+        ThreadLocal<PointsCodec> codecs =
+                ThreadLocal.withInitial(PointsCodec::new);
+        shapes.parallelStream().forEach(shape -> {
+            if (shape instanceof Polygon)
+            {
+                Polygon polygon = (Polygon) shape;
+                polygon.setPoints(toRType(processPoints(codecs.get(),
+                        (String) unwrap(polygon.getPoints()), true)));
+            }
+            else
+            {
+                Polyline polyline = (Polyline) shape;
+                polyline.setPoints(toRType(processPoints(codecs.get(),
+                        (String) unwrap(polyline.getPoints()), false)));
+            }
+        });
+        log.debug("Processed the points of {} Polygons and Polylines",
+                  shapes.size());
+    }
+
+    /**
+     * @param codec this thread's codec
+     * @param points points of a Polygon or Polyline, may be
+     * <code>null</code>
+     * @param closed <code>true</code> for a Polygon
+     * @return the processed points, or <code>points</code> itself if they
+     * cannot be parsed
+     */
+    private String processPoints(PointsCodec codec, String points,
+            boolean closed)
+    {
+        if (points == null)
+        {
+            return null;
+        }
+        String simplified =
+                PolygonSimplifier.simplify(points, simplifyTolerance, closed);
+        if (!normalizePoints)
+        {
+            return simplified;
+        }
+        return codec.parse(simplified) ? codec.format() : simplified;
+    }
+
+    /**
+     * Saves the annotations linked to the given ROIs and unloads them, so
+     * that the ROIs are saved with references to the saved annotations.
+     * Saving them ahead of the ROIs ensures that an annotation shared by
+     * ROIs in different batches is saved only once.  Annotations recorded
+     * in the journal are not saved again.
+     * @param updateServices update services to save with
+     * @param rois ROIs that are about to be saved
+     */
+    private void saveAnnotations(List<IUpdatePrx> updateServices,
+            List<IObject> rois) throws ServerError
+    {
+        Map<IObject, String> lsids = new IdentityHashMap<IObject, String>();
+        for (Map.Entry<LSID, IObject> entry : lsidMap.entrySet())
+        {
+            lsids.put(entry.getValue(), entry.getKey().toString());
+        }
+        Set<IObject> seen = Collections.newSetFromMap(
+                new IdentityHashMap<IObject, Boolean>());
+        List<IObject> annotations = new ArrayList<IObject>();
         for (IObject roi : rois)
         {
-            log.info("Saved ROI with ID: {}", unwrap(roi.getId()));
+            for (RoiAnnotationLink link : ((Roi) roi).copyAnnotationLinks())
+            {
+                Annotation annotation = link.getChild();
+                if (!seen.add(annotation))
+                {
+                    continue;
+                }
+                Long id = journal == null ?
+                        null : journal.getAnnotationId(lsids.get(annotation));
+                if (id != null)
+                {
+                    reference(annotation, id);
+                }
+                else
+                {
+                    annotations.add(annotation);
+                }
+            }
+        }
+        if (annotations.isEmpty())
+        {
+            return;
+        }
+        saveInBatches(updateServices, annotations, "annotation",
+                (batch, results) -> {
+                    try
+                    {
+                        for (int i = 0; i < batch.size(); i++)
+                        {
+                            long id = results.get(i).getId().getValue();
+                            if (journal != null)
+                            {
+                                journal.recordAnnotation(
+                                        lsids.get(batch.get(i)), id);
+                            }
+                            reference(batch.get(i), id);
+                        }
+                        if (journal != null)
+                        {
+                            journal.sync();
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        throw new UncheckedIOException(
+                                "Could not record saved annotations", e);
+                    }
+                });
+    }
+
+    /**
+     * Turns an unsaved object into an unloaded reference to a saved one.
+     * @param object unsaved object
+     * @param id ID of the saved object
+     */
+    private static void reference(IObject object, long id)
+    {
+        object.setId(rlong(id));
+        object.unload();
+    }
+
+    /**
+     * Saves objects in batches.
+     * @param updateServices update services to save with, one per session
+     * @param objects objects to save
+     * @param type object type name for progress and error messages
+     * @param listener notified of every saved batch
+     */
+    private void saveInBatches(List<IUpdatePrx> updateServices,
+            List<IObject> objects, String type, BatchListener listener)
+            throws ServerError
+    {
+        BatchPipeline pipeline =
+                new BatchPipeline(updateServices, type, listener);
+        for (List<IObject> batch : split(objects, this::estimateBytes))
+        {
+            pipeline.submit(batch);
+        }
+        pipeline.finish();
+    }
+
+    /** A batch sent to the server. */
+    private static class InFlightBatch
+    {
+        final int index;
+        final List<IObject> batch;
+        final IUpdatePrx updateService;
+        final AsyncResult result;
+
+        InFlightBatch(int index, List<IObject> batch,
+                IUpdatePrx updateService, AsyncResult result)
+        {
+            this.index = index;
+            this.batch = batch;
+            this.updateService = updateService;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Saves batches asynchronously as they are submitted, so that the next
+     * batch is prepared and marshalled while the server is saving the
+     * previous ones.  Through a single session, up to two batches are in
+     * flight.  With writer sessions, batches are spread across the
+     * sessions, one batch per session at a time, and saved concurrently,
+     * each in its own transaction.  Batches are waited for in the order
+     * they were submitted.
+     */
+    private class BatchPipeline
+    {
+        private final List<IUpdatePrx> updateServices;
+
+        private final String type;
+
+        private final BatchListener listener;
+
+        /** Maximum number of batches in flight. */
+        private final int capacity;
+
+        private final Deque<InFlightBatch> inFlight =
+                new ArrayDeque<InFlightBatch>();
+
+        private int submitted = 0;
+
+        private int submittedObjects = 0;
+
+        private int savedObjects = 0;
+
+        /**
+         * @param updateServices update services to save with, one per
+         * session
+         * @param type object type name for progress and error messages
+         * @param listener notified of every saved batch
+         */
+        BatchPipeline(List<IUpdatePrx> updateServices, String type,
+                BatchListener listener)
+        {
+            this.updateServices = updateServices;
+            this.type = type;
+            this.listener = listener;
+            this.capacity = Math.max(2, updateServices.size());
+        }
+
+        /**
+         * Sends a batch to the server, first waiting for the oldest batch
+         * in flight if there are as many as the sessions can take.
+         * @param batch objects to save
+         * @throws ServerError if this or an earlier batch failed, in which
+         * case the other batches in flight have been waited for
+         */
+        void submit(List<IObject> batch) throws ServerError
+        {
+            if (inFlight.size() == capacity)
+            {
+                complete();
+            }
+            IUpdatePrx updateService =
+                    updateServices.get(submitted % updateServices.size());
+            try
+            {
+                expandMasks(batch);
+                inFlight.add(new InFlightBatch(submitted, batch,
+                        updateService,
+                        updateService.begin_saveAndReturnArray(batch)));
+            }
+            catch (RuntimeException e)
+            {
+                fail(submitted, batch, e);
+                throw e;
+            }
+            submitted++;
+            submittedObjects += batch.size();
+        }
+
+        /**
+         * Waits for all batches in flight.
+         * @throws ServerError if a batch failed
+         */
+        void finish() throws ServerError
+        {
+            while (!inFlight.isEmpty())
+            {
+                complete();
+            }
+        }
+
+        /**
+         * Waits for the batches in flight after a failure, notifying the
+         * listener of those that were saved.
+         */
+        void abort()
+        {
+            while (!inFlight.isEmpty())
+            {
+                InFlightBatch next = inFlight.remove();
+                try
+                {
+                    saved(next, next.updateService.end_saveAndReturnArray(
+                            next.result));
+                }
+                catch (ServerError | RuntimeException e)
+                {
+                    log.error("Failed to save {} batch {}",
+                              type, next.index + 1, e);
+                }
+            }
+        }
+
+        private void complete() throws ServerError
+        {
+            InFlightBatch next = inFlight.remove();
+            try
+            {
+                saved(next, next.updateService.end_saveAndReturnArray(
+                        next.result));
+            }
+            catch (ServerError | RuntimeException e)
+            {
+                fail(next.index, next.batch, e);
+                throw e;
+            }
+        }
+
+        private void saved(InFlightBatch batch, List<IObject> results)
+        {
+            savedObjects += results.size();
+            listener.saved(batch.batch, results);
+            log.info("Saved {} batch {}: {} of {} {}s saved",
+                     type, batch.index + 1, savedObjects, submittedObjects,
+                     type);
+        }
+
+        private void fail(int index, List<IObject> batch, Exception e)
+        {
+            log.error("Failed to save {} batch {} ({} {}s)",
+                      type, index + 1, batch.size(), type, e);
+            abort();
+            log.error("{} {}s were saved before the failure",
+                      savedObjects, type);
         }
-        return rois;
+    }
+
+    /**
+     * Restores the bit-packed data of the masks in a batch, which are held
+     * run-length encoded until they are saved.
+     * @param batch ROIs or other objects about to be saved
+     */
+    private void expandMasks(List<IObject> batch)
+    {
+        for (IObject object : batch)
+        {
+            if (object instanceof Roi)
+            {
+                for (Shape shape : ((Roi) object).copyShapes())
+                {
+                    if (shape instanceof Mask)
+                    {
+                        maskDecoder.expand((Mask) shape);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits objects into batches of at most {@link #batchSize} objects
+     * and, where possible, {@link #batchBytes} estimated bytes.
+     * @param objects objects to split
+     * @param sizes estimates the size of an object in bytes
+     * @return consecutive batches holding all of the objects
+     */
+    private List<List<IObject>> split(
+            List<IObject> objects, ToLongFunction<IObject> sizes)
+    {
+        List<List<IObject>> batches = new ArrayList<List<IObject>>();
+        List<IObject> batch = new ArrayList<IObject>();
+        long bytes = 0;
+        for (IObject object : objects)
+        {
+            long size = sizes.applyAsLong(object);
+            if (!batch.isEmpty()
+                    && (batch.size() >= batchSize || bytes + size > batchBytes))
+            {
+                batches.add(batch);
+                batch = new ArrayList<IObject>();
+                bytes = 0;
+            }
+            batch.add(object);
+            bytes += size;
+        }
+        if (!batch.isEmpty())
+        {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Estimates the marshalled size of an object from its strings and
+     * arrays, which dominate the size of ROIs with many points or masks.
+     * @param object ROI, Shape or annotation
+     * @return estimated size in bytes
+     */
+    private long estimateBytes(IObject object)
+    {
+        long bytes = OBJECT_BYTES;
+        if (object instanceof Roi)
+        {
+            Roi roi = (Roi) object;
+            bytes += length(roi.getName()) + length(roi.getDescription());
+            bytes += roi.sizeOfAnnotationLinks() * OBJECT_BYTES;
+            for (Shape shape : roi.copyShapes())
+            {
+                bytes += estimateBytes(shape);
+            }
+        }
+        else if (object instanceof Shape)
+        {
+            bytes += length(((Shape) object).getTextValue());
+            if (object instanceof Polygon)
+            {
+                bytes += length(((Polygon) object).getPoints());
+            }
+            else if (object instanceof Polyline)
+            {
+                bytes += length(((Polyline) object).getPoints());
+            }
+            else if (object instanceof Mask)
+            {
+                Mask mask = (Mask) object;
+                RunLengthMask runs = maskDecoder.getRunLengthMask(mask);
+                if (runs != null)
+                {
+                    bytes += runs.getBitsLength();
+                }
+                else if (mask.getBytes() != null)
+                {
+                    bytes += mask.getBytes().length;
+                }
+            }
+        }
+        else if (object instanceof TextAnnotation)
+        {
+            bytes += length(((TextAnnotation) object).getTextValue());
+        }
+        else if (object instanceof MapAnnotation)
+        {
+            List<NamedValue> pairs = ((MapAnnotation) object).getMapValue();
+            if (pairs != null)
+            {
+                for (NamedValue pair : pairs)
+                {
+                    bytes += length(pair.name) + length(pair.value);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @param value string, may be <code>null</code>
+     * @return number of characters in the string, or 0
+     */
+    private static long length(RString value)
+    {
+        return value == null ? 0 : length(value.getValue());
+    }
+
+    /**
+     * @param value string, may be <code>null</code>
+     * @return number of characters in the string, or 0
+     */
+    private static long length(String value)
+    {
+        return value == null ? 0 : value.length();
     }
 
     /**
@@ -310,6 +1263,36 @@ public class ROIMetadataStoreClient extends OMEROMetadataStoreClient {
         }
     }
 
+    /**
+     * Keeps track of the containers created while saving converted ROIs
+     * with {@link #saveConverted()}.
+     */
+    @Override
+    public IObjectContainer getIObjectContainer(
+            Class<? extends IObject> klass,
+            LinkedHashMap<Index, Integer> indexes)
+    {
+        int count = getContainerCache().size();
+        IObjectContainer container = super.getIObjectContainer(klass, indexes);
+        if (streaming && getContainerCache().size() > count)
+        {
+            newContainers.add(container);
+        }
+        return container;
+    }
+
+    /**
+     * Holds the ROI, and the ROIs after it, until the referenced
+     * annotation has been read, see {@link #startSave(long)}.
+     */
+    @Override
+    public void setROIAnnotationRef(String annotation, int ROIIndex,
+            int annotationRefIndex)
+    {
+        firstAnnotatedRoi = Math.min(firstAnnotatedRoi, ROIIndex);
+        super.setROIAnnotationRef(annotation, ROIIndex, annotationRefIndex);
+    }
+
     /* (non-Javadoc)
      * @see loci.formats.meta.MetadataStore#setROIName(java.lang.String, int)
      */
@@ -330,25 +1313,57 @@ public class ROIMetadataStoreClient extends OMEROMetadataStoreClient {
         if (o != null)
         {
             o.setBytes(binData);
+            convertedMaskBytes += binData.length;
         }
     }
 
+    /**
+     * Starts decoding the Base64 encoded data of the mask, which is
+     * complete once its compression is known.  Decoding runs on the
+     * {@link MaskDecoder} while the rest of the input is converted, and is
+     * waited for before the mask is saved.
+     */
     @Override
     public void setMaskBinDataCompression(Compression compression, int roiIndex, int shapeIndex) {
-        if (compression != Compression.NONE) {
-            Mask o = getMask(roiIndex, shapeIndex);
-            if (o != null) {
-                try {
-                    byte[] bits = Base64.getDecoder().decode(o.getBytes());
-                    if (compression == Compression.ZLIB) {
-                        bits = new ZlibCodec().decompress(bits, null);
-                    }
-                    o.setBytes(bits);
-                }
-                catch (CodecException e) {
-                    log.warn("Could not decode mask", e);
-                }
-            }
+        Mask o = getMask(roiIndex, shapeIndex);
+        if (o != null && o.getBytes() != null) {
+            maskDecoder.submit(o, compression);
+        }
+    }
+
+    /**
+     * Clears the ROIs, annotations and journal of the previous import, so
+     * that another file can be imported over the same session.  The
+     * import settings are kept.
+     */
+    public void reset()
+    {
+        abortSave();
+        maskDecoder.clear();
+        createRoot();
+        lsidMap = new HashMap<LSID, IObject>();
+        roiList = new LinkedHashMap<Integer, Roi>();
+        newContainers = new ArrayList<IObjectContainer>();
+        handledContainers = Collections.newSetFromMap(
+            new IdentityHashMap<IObjectContainer, Boolean>());
+        firstAnnotatedRoi = Integer.MAX_VALUE;
+        convertedMaskBytes = 0;
+        journal = null;
+    }
+
+    /**
+     * Stops the mask decoding threads and logs out.
+     */
+    @Override
+    public void logout()
+    {
+        try
+        {
+            maskDecoder.close();
+        }
+        finally
+        {
+            super.logout();
         }
     }
 
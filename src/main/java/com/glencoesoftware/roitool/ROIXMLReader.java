@@ -0,0 +1,941 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import loci.formats.meta.MetadataStore;
+import ome.units.quantity.Length;
+import ome.xml.model.AffineTransform;
+import ome.xml.model.MapPair;
+import ome.xml.model.enums.Compression;
+import ome.xml.model.enums.EnumerationException;
+import ome.xml.model.enums.FillRule;
+import ome.xml.model.enums.FontFamily;
+import ome.xml.model.enums.FontStyle;
+import ome.xml.model.enums.Marker;
+import ome.xml.model.enums.handlers.UnitsLengthEnumHandler;
+import ome.xml.model.primitives.Color;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.Timestamp;
+
+/**
+ * Reads the ROIs and structured annotations of an OME-XML document
+ * incrementally from an input stream, passing each value to a metadata
+ * store as soon as it is parsed.  This is the counterpart of
+ * {@link ROIXMLWriter}: no document text, DOM or OME-XML metadata object
+ * is built, so memory use does not grow with the size of the document
+ * beyond what the store itself retains.  Every other child of the
+ * <code>OME</code> root element, such as <code>Image</code>, is skipped.
+ * <p>
+ * Shape and annotation properties are passed to the typed store setter of
+ * the element and attribute, e.g. the <code>X</code> attribute of a
+ * <code>Rectangle</code> to {@link MetadataStore#setRectangleX}.  The
+ * setters of each element are looked up once, in
+ * {@link #newShapeSetters(String)} and
+ * {@link #newAnnotationSetters(String)}.
+ */
+public class ROIXMLReader implements Closeable {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(ROIXMLReader.class);
+
+    /** Shape elements that are read, all others are skipped. */
+    private static final List<String> SHAPE_TYPES = Arrays.asList(
+            "Rectangle", "Ellipse", "Point", "Line", "Polyline", "Polygon",
+            "Label", "Mask");
+
+    /** Store setter of a Shape property. */
+    @FunctionalInterface
+    private interface ShapeSetter<T> {
+        void set(T value, int roi, int shape);
+    }
+
+    /** Store setter of a Shape's annotation reference. */
+    @FunctionalInterface
+    private interface ShapeAnnotationRefSetter {
+        void set(String id, int roi, int shape, int annotationRef);
+    }
+
+    /** Store setter of an annotation property. */
+    @FunctionalInterface
+    private interface AnnotationSetter<T> {
+        void set(T value, int annotation);
+    }
+
+    /** Store setters of the properties of one Shape type. */
+    private static class ShapeSetters {
+        ShapeSetter<String> id;
+        ShapeSetter<NonNegativeInteger> theZ;
+        ShapeSetter<NonNegativeInteger> theT;
+        ShapeSetter<NonNegativeInteger> theC;
+        ShapeSetter<Color> fillColor;
+        ShapeSetter<FillRule> fillRule;
+        ShapeSetter<Color> strokeColor;
+        ShapeSetter<Length> strokeWidth;
+        ShapeSetter<FontFamily> fontFamily;
+        ShapeSetter<Length> fontSize;
+        ShapeSetter<FontStyle> fontStyle;
+        ShapeSetter<Boolean> locked;
+        ShapeSetter<AffineTransform> transform;
+        ShapeAnnotationRefSetter annotationRef;
+        /** Setters of the attributes passed as <code>Double</code>. */
+        final Map<String, ShapeSetter<Double>> doubles =
+                new HashMap<String, ShapeSetter<Double>>();
+        /** Setters of the attributes passed as <code>String</code>. */
+        final Map<String, ShapeSetter<String>> strings =
+                new HashMap<String, ShapeSetter<String>>();
+        /** Setters of the line end markers. */
+        final Map<String, ShapeSetter<Marker>> markers =
+                new HashMap<String, ShapeSetter<Marker>>();
+    }
+
+    /** Store setters of the properties common to all annotation types. */
+    private static class AnnotationSetters {
+        AnnotationSetter<String> id;
+        AnnotationSetter<String> namespace;
+        AnnotationSetter<String> description;
+    }
+
+    private final XMLStreamReader reader;
+
+    private final MetadataStore store;
+
+    /** Shape setters by Shape type, looked up on first use. */
+    private final Map<String, ShapeSetters> shapeSetters =
+            new HashMap<String, ShapeSetters>();
+
+    /** Annotation setters by annotation type, looked up on first use. */
+    private final Map<String, AnnotationSetters> annotationSetters =
+            new HashMap<String, AnnotationSetters>();
+
+    /** Properties that were skipped, each warned about once. */
+    private final Set<String> unsupported = new HashSet<String>();
+
+    /** Number of annotations read so far, by annotation type. */
+    private final Map<String, Integer> annotationCounts =
+            new HashMap<String, Integer>();
+
+    private int roiCount = 0;
+
+    /** Number of skipped top level elements by name. */
+    private final Map<String, Integer> skipped =
+            new HashMap<String, Integer>();
+
+    /**
+     * Creates a new reader.  The stream is not closed by {@link #close()}.
+     * @param in stream to read OME-XML from
+     * @param store metadata store to populate
+     */
+    public ROIXMLReader(InputStream in, MetadataStore store)
+            throws XMLStreamException
+    {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // report long text, such as the pixel data of a skipped Image, in
+        // chunks rather than accumulating it into a single event
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        this.reader = factory.createXMLStreamReader(in);
+        this.store = store;
+    }
+
+    /**
+     * Read the whole document, populating the store with every ROI and
+     * structured annotation.
+     * @return number of ROIs read
+     */
+    public int read() throws XMLStreamException {
+        while (readNext()) {
+            // read the document to the end
+        }
+        return roiCount;
+    }
+
+    /**
+     * Read the next ROI, structured annotations or other top level element
+     * of the document, so that the ROIs read so far can be used before the
+     * rest of the document is read.
+     * @return <code>false</code> if the end of the document was reached
+     */
+    public boolean readNext() throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            switch (reader.getLocalName()) {
+                case "OME":
+                    // descend into the root element
+                    continue;
+                case "StructuredAnnotations":
+                    readStructuredAnnotations();
+                    break;
+                case "ROI":
+                    readROI();
+                    break;
+                default:
+                    // Image, Plate, Instrument etc. are never imported, so
+                    // their content is not even read
+                    skipped.merge(reader.getLocalName(), 1, Integer::sum);
+                    skipElement();
+                    break;
+            }
+            return true;
+        }
+        if (!skipped.isEmpty()) {
+            log.debug("Skipped elements: {}", skipped);
+            skipped.clear();
+        }
+        return false;
+    }
+
+    /**
+     * @return number of ROIs read so far
+     */
+    public int getRoiCount() {
+        return roiCount;
+    }
+
+    private void readStructuredAnnotations() throws XMLStreamException {
+        while (nextChild()) {
+            final String type = reader.getLocalName();
+            switch (type) {
+                case "XMLAnnotation":
+                case "LongAnnotation":
+                case "BooleanAnnotation":
+                case "DoubleAnnotation":
+                case "CommentAnnotation":
+                case "MapAnnotation":
+                case "TimestampAnnotation":
+                case "TagAnnotation":
+                case "TermAnnotation":
+                    readAnnotation(type);
+                    break;
+                default:
+                    log.debug("Skipping unsupported annotation: {}", type);
+                    skipElement();
+                    break;
+            }
+        }
+    }
+
+    private void readAnnotation(String type) throws XMLStreamException {
+        final AnnotationSetters setters = annotationSetters.computeIfAbsent(
+                type, this::newAnnotationSetters);
+        final int index = annotationCounts.merge(type, 1, Integer::sum) - 1;
+        setters.id.set(getAttribute("ID"), index);
+        final String namespace = getAttribute("Namespace");
+        if (namespace != null) {
+            setters.namespace.set(namespace, index);
+        }
+        while (nextChild()) {
+            switch (reader.getLocalName()) {
+                case "Description":
+                    setters.description.set(reader.getElementText(), index);
+                    break;
+                case "Value":
+                    readAnnotationValue(type, index);
+                    break;
+                default:
+                    skipElement();
+                    break;
+            }
+        }
+    }
+
+    private void readAnnotationValue(String type, int index)
+            throws XMLStreamException
+    {
+        try {
+            switch (type) {
+                case "XMLAnnotation":
+                    store.setXMLAnnotationValue(readXML(), index);
+                    break;
+                case "LongAnnotation":
+                    store.setLongAnnotationValue(
+                        Long.valueOf(reader.getElementText().trim()), index);
+                    break;
+                case "BooleanAnnotation":
+                    store.setBooleanAnnotationValue(
+                        Boolean.valueOf(reader.getElementText().trim()),
+                        index);
+                    break;
+                case "DoubleAnnotation":
+                    store.setDoubleAnnotationValue(
+                        Double.valueOf(reader.getElementText().trim()), index);
+                    break;
+                case "CommentAnnotation":
+                    store.setCommentAnnotationValue(
+                        reader.getElementText(), index);
+                    break;
+                case "MapAnnotation":
+                    store.setMapAnnotationValue(readMapPairs(), index);
+                    break;
+                case "TimestampAnnotation":
+                    store.setTimestampAnnotationValue(
+                        new Timestamp(reader.getElementText().trim()), index);
+                    break;
+                case "TagAnnotation":
+                    store.setTagAnnotationValue(
+                        reader.getElementText(), index);
+                    break;
+                case "TermAnnotation":
+                    store.setTermAnnotationValue(
+                        reader.getElementText(), index);
+                    break;
+                default:
+                    warnUnsupported(type + " Value");
+                    skipElement();
+                    break;
+            }
+        }
+        catch (IllegalArgumentException e) {
+            throw new XMLStreamException(
+                    "Invalid " + type + " value", reader.getLocation(), e);
+        }
+    }
+
+    /**
+     * @return the key-value pairs of a <code>MapAnnotation</code>'s
+     * <code>Value</code> element
+     */
+    private List<MapPair> readMapPairs() throws XMLStreamException {
+        final List<MapPair> pairs = new ArrayList<MapPair>();
+        while (nextChild()) {
+            if (reader.getLocalName().equals("M")) {
+                final String key = getAttribute("K");
+                pairs.add(new MapPair(key, reader.getElementText()));
+            }
+            else {
+                skipElement();
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Serialize the content of the current element, which may hold both
+     * text and elements, e.g. the <code>Value</code> of an
+     * <code>XMLAnnotation</code>.
+     * @return the element's content as XML text
+     */
+    private String readXML() throws XMLStreamException {
+        final StringWriter xml = new StringWriter();
+        final XMLStreamWriter writer =
+                XMLOutputFactory.newInstance().createXMLStreamWriter(xml);
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    writer.writeStartElement(reader.getPrefix(),
+                            reader.getLocalName(), reader.getNamespaceURI());
+                    for (int i=0; i<reader.getNamespaceCount(); i++) {
+                        writer.writeNamespace(reader.getNamespacePrefix(i),
+                                              reader.getNamespaceURI(i));
+                    }
+                    for (int i=0; i<reader.getAttributeCount(); i++) {
+                        writer.writeAttribute(
+                                reader.getAttributePrefix(i),
+                                reader.getAttributeNamespace(i),
+                                reader.getAttributeLocalName(i),
+                                reader.getAttributeValue(i));
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (--depth > 0) {
+                        writer.writeEndElement();
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getText());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(reader.getText());
+                    break;
+                default:
+                    break;
+            }
+        }
+        writer.close();
+        return xml.toString();
+    }
+
+    private void readROI() throws XMLStreamException {
+        final int roi = roiCount++;
+        store.setROIID(getAttribute("ID"), roi);
+        final String name = getAttribute("Name");
+        if (name != null) {
+            store.setROIName(name, roi);
+        }
+        int annotationRef = 0;
+        while (nextChild()) {
+            switch (reader.getLocalName()) {
+                case "Union":
+                    readUnion(roi);
+                    break;
+                case "AnnotationRef":
+                    store.setROIAnnotationRef(
+                            getAttribute("ID"), roi, annotationRef++);
+                    skipElement();
+                    break;
+                case "Description":
+                    store.setROIDescription(reader.getElementText(), roi);
+                    break;
+                default:
+                    skipElement();
+                    break;
+            }
+        }
+    }
+
+    private void readUnion(int roi) throws XMLStreamException {
+        int shape = 0;
+        while (nextChild()) {
+            final String type = reader.getLocalName();
+            if (SHAPE_TYPES.contains(type)) {
+                readShape(type, roi, shape++);
+            }
+            else {
+                log.debug("Skipping unsupported Shape: {}", type);
+                skipElement();
+            }
+        }
+    }
+
+    private void readShape(String type, int roi, int shape)
+            throws XMLStreamException
+    {
+        final ShapeSetters setters =
+                shapeSetters.computeIfAbsent(type, this::newShapeSetters);
+        // the ID must be set first, as it names the Shape in the store
+        setters.id.set(getAttribute("ID"), roi, shape);
+        for (int i=0; i<reader.getAttributeCount(); i++) {
+            final String name = reader.getAttributeLocalName(i);
+            final String value = reader.getAttributeValue(i);
+            try {
+                readShapeAttribute(setters, type, name, value, roi, shape);
+            }
+            catch (EnumerationException | IllegalArgumentException e) {
+                throw new XMLStreamException(
+                        "Invalid " + type + " " + name + ": " + value,
+                        reader.getLocation(), e);
+            }
+        }
+        int annotationRef = 0;
+        while (nextChild()) {
+            switch (reader.getLocalName()) {
+                case "Transform":
+                    setters.transform.set(readTransform(), roi, shape);
+                    break;
+                case "AnnotationRef":
+                    setters.annotationRef.set(
+                        getAttribute("ID"), roi, shape, annotationRef++);
+                    skipElement();
+                    break;
+                case "BinData":
+                    readBinData(roi, shape);
+                    break;
+                default:
+                    skipElement();
+                    break;
+            }
+        }
+    }
+
+    private void readShapeAttribute(ShapeSetters setters, String type,
+            String name, String value, int roi, int shape)
+                    throws EnumerationException, XMLStreamException
+    {
+        switch (name) {
+            case "ID":
+            case "StrokeWidthUnit":
+            case "FontSizeUnit":
+                break;
+            case "TheZ":
+                setters.theZ.set(toNonNegativeInteger(value), roi, shape);
+                break;
+            case "TheT":
+                setters.theT.set(toNonNegativeInteger(value), roi, shape);
+                break;
+            case "TheC":
+                setters.theC.set(toNonNegativeInteger(value), roi, shape);
+                break;
+            case "FillColor":
+                setters.fillColor.set(
+                    new Color(Integer.parseInt(value)), roi, shape);
+                break;
+            case "StrokeColor":
+                setters.strokeColor.set(
+                    new Color(Integer.parseInt(value)), roi, shape);
+                break;
+            case "FillRule":
+                setters.fillRule.set(FillRule.fromString(value), roi, shape);
+                break;
+            case "FontFamily":
+                setters.fontFamily.set(
+                    FontFamily.fromString(value), roi, shape);
+                break;
+            case "FontStyle":
+                setters.fontStyle.set(FontStyle.fromString(value), roi, shape);
+                break;
+            case "StrokeWidth":
+                setters.strokeWidth.set(
+                    getLength(value, "StrokeWidthUnit", "pixel"), roi, shape);
+                break;
+            case "FontSize":
+                setters.fontSize.set(
+                    getLength(value, "FontSizeUnit", "pt"), roi, shape);
+                break;
+            case "Locked":
+                setters.locked.set(Boolean.valueOf(value), roi, shape);
+                break;
+            default:
+                if (setters.doubles.containsKey(name)) {
+                    setters.doubles.get(name).set(
+                        Double.valueOf(value), roi, shape);
+                }
+                else if (setters.strings.containsKey(name)) {
+                    setters.strings.get(name).set(value, roi, shape);
+                }
+                else if (setters.markers.containsKey(name)) {
+                    setters.markers.get(name).set(
+                        Marker.fromString(value), roi, shape);
+                }
+                else {
+                    warnUnsupported(type + " " + name);
+                }
+                break;
+        }
+    }
+
+    private static NonNegativeInteger toNonNegativeInteger(String value) {
+        return new NonNegativeInteger(Integer.valueOf(value));
+    }
+
+    /**
+     * Look up the store setters of a Shape type.
+     * @param type Shape element name, one of {@link #SHAPE_TYPES}
+     * @return the setters of the Shape type's properties
+     */
+    private ShapeSetters newShapeSetters(String type) {
+        final ShapeSetters setters = new ShapeSetters();
+        switch (type) {
+            case "Rectangle":
+                setters.id = store::setRectangleID;
+                setters.theZ = store::setRectangleTheZ;
+                setters.theT = store::setRectangleTheT;
+                setters.theC = store::setRectangleTheC;
+                setters.fillColor = store::setRectangleFillColor;
+                setters.fillRule = store::setRectangleFillRule;
+                setters.strokeColor = store::setRectangleStrokeColor;
+                setters.strokeWidth = store::setRectangleStrokeWidth;
+                setters.fontFamily = store::setRectangleFontFamily;
+                setters.fontSize = store::setRectangleFontSize;
+                setters.fontStyle = store::setRectangleFontStyle;
+                setters.locked = store::setRectangleLocked;
+                setters.transform = store::setRectangleTransform;
+                setters.annotationRef = store::setRectangleAnnotationRef;
+                setters.strings.put("Text", store::setRectangleText);
+                setters.strings.put("StrokeDashArray",
+                        store::setRectangleStrokeDashArray);
+                setters.doubles.put("X", store::setRectangleX);
+                setters.doubles.put("Y", store::setRectangleY);
+                setters.doubles.put("Width", store::setRectangleWidth);
+                setters.doubles.put("Height", store::setRectangleHeight);
+                break;
+            case "Ellipse":
+                setters.id = store::setEllipseID;
+                setters.theZ = store::setEllipseTheZ;
+                setters.theT = store::setEllipseTheT;
+                setters.theC = store::setEllipseTheC;
+                setters.fillColor = store::setEllipseFillColor;
+                setters.fillRule = store::setEllipseFillRule;
+                setters.strokeColor = store::setEllipseStrokeColor;
+                setters.strokeWidth = store::setEllipseStrokeWidth;
+                setters.fontFamily = store::setEllipseFontFamily;
+                setters.fontSize = store::setEllipseFontSize;
+                setters.fontStyle = store::setEllipseFontStyle;
+                setters.locked = store::setEllipseLocked;
+                setters.transform = store::setEllipseTransform;
+                setters.annotationRef = store::setEllipseAnnotationRef;
+                setters.strings.put("Text", store::setEllipseText);
+                setters.strings.put("StrokeDashArray",
+                        store::setEllipseStrokeDashArray);
+                setters.doubles.put("X", store::setEllipseX);
+                setters.doubles.put("Y", store::setEllipseY);
+                setters.doubles.put("RadiusX", store::setEllipseRadiusX);
+                setters.doubles.put("RadiusY", store::setEllipseRadiusY);
+                break;
+            case "Point":
+                setters.id = store::setPointID;
+                setters.theZ = store::setPointTheZ;
+                setters.theT = store::setPointTheT;
+                setters.theC = store::setPointTheC;
+                setters.fillColor = store::setPointFillColor;
+                setters.fillRule = store::setPointFillRule;
+                setters.strokeColor = store::setPointStrokeColor;
+                setters.strokeWidth = store::setPointStrokeWidth;
+                setters.fontFamily = store::setPointFontFamily;
+                setters.fontSize = store::setPointFontSize;
+                setters.fontStyle = store::setPointFontStyle;
+                setters.locked = store::setPointLocked;
+                setters.transform = store::setPointTransform;
+                setters.annotationRef = store::setPointAnnotationRef;
+                setters.strings.put("Text", store::setPointText);
+                setters.strings.put("StrokeDashArray",
+                        store::setPointStrokeDashArray);
+                setters.doubles.put("X", store::setPointX);
+                setters.doubles.put("Y", store::setPointY);
+                break;
+            case "Line":
+                setters.id = store::setLineID;
+                setters.theZ = store::setLineTheZ;
+                setters.theT = store::setLineTheT;
+                setters.theC = store::setLineTheC;
+                setters.fillColor = store::setLineFillColor;
+                setters.fillRule = store::setLineFillRule;
+                setters.strokeColor = store::setLineStrokeColor;
+                setters.strokeWidth = store::setLineStrokeWidth;
+                setters.fontFamily = store::setLineFontFamily;
+                setters.fontSize = store::setLineFontSize;
+                setters.fontStyle = store::setLineFontStyle;
+                setters.locked = store::setLineLocked;
+                setters.transform = store::setLineTransform;
+                setters.annotationRef = store::setLineAnnotationRef;
+                setters.strings.put("Text", store::setLineText);
+                setters.strings.put("StrokeDashArray",
+                        store::setLineStrokeDashArray);
+                setters.doubles.put("X1", store::setLineX1);
+                setters.doubles.put("Y1", store::setLineY1);
+                setters.doubles.put("X2", store::setLineX2);
+                setters.doubles.put("Y2", store::setLineY2);
+                setters.markers.put("MarkerStart", store::setLineMarkerStart);
+                setters.markers.put("MarkerEnd", store::setLineMarkerEnd);
+                break;
+            case "Polyline":
+                setters.id = store::setPolylineID;
+                setters.theZ = store::setPolylineTheZ;
+                setters.theT = store::setPolylineTheT;
+                setters.theC = store::setPolylineTheC;
+                setters.fillColor = store::setPolylineFillColor;
+                setters.fillRule = store::setPolylineFillRule;
+                setters.strokeColor = store::setPolylineStrokeColor;
+                setters.strokeWidth = store::setPolylineStrokeWidth;
+                setters.fontFamily = store::setPolylineFontFamily;
+                setters.fontSize = store::setPolylineFontSize;
+                setters.fontStyle = store::setPolylineFontStyle;
+                setters.locked = store::setPolylineLocked;
+                setters.transform = store::setPolylineTransform;
+                setters.annotationRef = store::setPolylineAnnotationRef;
+                setters.strings.put("Text", store::setPolylineText);
+                setters.strings.put("StrokeDashArray",
+                        store::setPolylineStrokeDashArray);
+                setters.strings.put("Points", store::setPolylinePoints);
+                setters.markers.put("MarkerStart",
+                        store::setPolylineMarkerStart);
+                setters.markers.put("MarkerEnd", store::setPolylineMarkerEnd);
+                break;
+            case "Polygon":
+                setters.id = store::setPolygonID;
+                setters.theZ = store::setPolygonTheZ;
+                setters.theT = store::setPolygonTheT;
+                setters.theC = store::setPolygonTheC;
+                setters.fillColor = store::setPolygonFillColor;
+                setters.fillRule = store::setPolygonFillRule;
+                setters.strokeColor = store::setPolygonStrokeColor;
+                setters.strokeWidth = store::setPolygonStrokeWidth;
+                setters.fontFamily = store::setPolygonFontFamily;
+                setters.fontSize = store::setPolygonFontSize;
+                setters.fontStyle = store::setPolygonFontStyle;
+                setters.locked = store::setPolygonLocked;
+                setters.transform = store::setPolygonTransform;
+                setters.annotationRef = store::setPolygonAnnotationRef;
+                setters.strings.put("Text", store::setPolygonText);
+                setters.strings.put("StrokeDashArray",
+                        store::setPolygonStrokeDashArray);
+                setters.strings.put("Points", store::setPolygonPoints);
+                break;
+            case "Label":
+                setters.id = store::setLabelID;
+                setters.theZ = store::setLabelTheZ;
+                setters.theT = store::setLabelTheT;
+                setters.theC = store::setLabelTheC;
+                setters.fillColor = store::setLabelFillColor;
+                setters.fillRule = store::setLabelFillRule;
+                setters.strokeColor = store::setLabelStrokeColor;
+                setters.strokeWidth = store::setLabelStrokeWidth;
+                setters.fontFamily = store::setLabelFontFamily;
+                setters.fontSize = store::setLabelFontSize;
+                setters.fontStyle = store::setLabelFontStyle;
+                setters.locked = store::setLabelLocked;
+                setters.transform = store::setLabelTransform;
+                setters.annotationRef = store::setLabelAnnotationRef;
+                setters.strings.put("Text", store::setLabelText);
+                setters.strings.put("StrokeDashArray",
+                        store::setLabelStrokeDashArray);
+                setters.doubles.put("X", store::setLabelX);
+                setters.doubles.put("Y", store::setLabelY);
+                break;
+            case "Mask":
+                setters.id = store::setMaskID;
+                setters.theZ = store::setMaskTheZ;
+                setters.theT = store::setMaskTheT;
+                setters.theC = store::setMaskTheC;
+                setters.fillColor = store::setMaskFillColor;
+                setters.fillRule = store::setMaskFillRule;
+                setters.strokeColor = store::setMaskStrokeColor;
+                setters.strokeWidth = store::setMaskStrokeWidth;
+                setters.fontFamily = store::setMaskFontFamily;
+                setters.fontSize = store::setMaskFontSize;
+                setters.fontStyle = store::setMaskFontStyle;
+                setters.locked = store::setMaskLocked;
+                setters.transform = store::setMaskTransform;
+                setters.annotationRef = store::setMaskAnnotationRef;
+                setters.strings.put("Text", store::setMaskText);
+                setters.strings.put("StrokeDashArray",
+                        store::setMaskStrokeDashArray);
+                setters.doubles.put("X", store::setMaskX);
+                setters.doubles.put("Y", store::setMaskY);
+                setters.doubles.put("Width", store::setMaskWidth);
+                setters.doubles.put("Height", store::setMaskHeight);
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported Shape type: " + type);
+        }
+        return setters;
+    }
+
+    /**
+     * Look up the store setters of an annotation type.
+     * @param type annotation element name
+     * @return the setters of the properties common to all annotations
+     */
+    private AnnotationSetters newAnnotationSetters(String type) {
+        final AnnotationSetters setters = new AnnotationSetters();
+        switch (type) {
+            case "XMLAnnotation":
+                setters.id = store::setXMLAnnotationID;
+                setters.namespace = store::setXMLAnnotationNamespace;
+                setters.description = store::setXMLAnnotationDescription;
+                break;
+            case "LongAnnotation":
+                setters.id = store::setLongAnnotationID;
+                setters.namespace = store::setLongAnnotationNamespace;
+                setters.description = store::setLongAnnotationDescription;
+                break;
+            case "BooleanAnnotation":
+                setters.id = store::setBooleanAnnotationID;
+                setters.namespace = store::setBooleanAnnotationNamespace;
+                setters.description = store::setBooleanAnnotationDescription;
+                break;
+            case "DoubleAnnotation":
+                setters.id = store::setDoubleAnnotationID;
+                setters.namespace = store::setDoubleAnnotationNamespace;
+                setters.description = store::setDoubleAnnotationDescription;
+                break;
+            case "CommentAnnotation":
+                setters.id = store::setCommentAnnotationID;
+                setters.namespace = store::setCommentAnnotationNamespace;
+                setters.description = store::setCommentAnnotationDescription;
+                break;
+            case "MapAnnotation":
+                setters.id = store::setMapAnnotationID;
+                setters.namespace = store::setMapAnnotationNamespace;
+                setters.description = store::setMapAnnotationDescription;
+                break;
+            case "TimestampAnnotation":
+                setters.id = store::setTimestampAnnotationID;
+                setters.namespace = store::setTimestampAnnotationNamespace;
+                setters.description = store::setTimestampAnnotationDescription;
+                break;
+            case "TagAnnotation":
+                setters.id = store::setTagAnnotationID;
+                setters.namespace = store::setTagAnnotationNamespace;
+                setters.description = store::setTagAnnotationDescription;
+                break;
+            case "TermAnnotation":
+                setters.id = store::setTermAnnotationID;
+                setters.namespace = store::setTermAnnotationNamespace;
+                setters.description = store::setTermAnnotationDescription;
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported annotation type: " + type);
+        }
+        return setters;
+    }
+
+    /**
+     * Warn, once per property, that a property is not imported.
+     * @param property element and attribute name
+     */
+    private void warnUnsupported(String property) {
+        if (unsupported.add(property)) {
+            log.warn("Skipping unsupported property: {}", property);
+        }
+    }
+
+    /**
+     * @param value length attribute value
+     * @param unitAttribute name of the attribute holding its unit
+     * @param defaultUnit schema default unit
+     * @return the length in its unit
+     */
+    private Length getLength(String value, String unitAttribute,
+            String defaultUnit) throws EnumerationException
+    {
+        String unit = getAttribute(unitAttribute);
+        if (unit == null) {
+            unit = defaultUnit;
+        }
+        return UnitsLengthEnumHandler.getQuantity(Double.valueOf(value), unit);
+    }
+
+    private AffineTransform readTransform() throws XMLStreamException {
+        final AffineTransform transform = new AffineTransform();
+        try {
+            transform.setA00(Double.valueOf(getAttribute("A00")));
+            transform.setA10(Double.valueOf(getAttribute("A10")));
+            transform.setA01(Double.valueOf(getAttribute("A01")));
+            transform.setA11(Double.valueOf(getAttribute("A11")));
+            transform.setA02(Double.valueOf(getAttribute("A02")));
+            transform.setA12(Double.valueOf(getAttribute("A12")));
+        }
+        catch (NullPointerException | NumberFormatException e) {
+            throw new XMLStreamException(
+                    "Invalid Transform", reader.getLocation(), e);
+        }
+        skipElement();
+        return transform;
+    }
+
+    /**
+     * Pass the Base64 encoded content and the encoding attributes of a
+     * <code>BinData</code> element to the store, in the same order as
+     * {@link ome.xml.meta.MetadataConverter} does, so that the store can
+     * decode the data once its compression is known.
+     */
+    private void readBinData(int roi, int shape) throws XMLStreamException {
+        final String bigEndian = getAttribute("BigEndian");
+        final String compression = getAttribute("Compression");
+        store.setMaskBinData(reader.getElementText().trim().getBytes(
+                StandardCharsets.US_ASCII), roi, shape);
+        if (bigEndian != null) {
+            store.setMaskBinDataBigEndian(
+                    Boolean.valueOf(bigEndian), roi, shape);
+        }
+        // always set, as the store decodes the data once its compression
+        // is known; "none" is the schema default
+        try {
+            store.setMaskBinDataCompression(compression == null ?
+                    Compression.NONE : Compression.fromString(compression),
+                    roi, shape);
+        }
+        catch (EnumerationException e) {
+            throw new XMLStreamException(
+                    "Invalid BinData Compression: " + compression,
+                    reader.getLocation(), e);
+        }
+    }
+
+    /**
+     * @param name attribute name
+     * @return value of the attribute of the current element, or
+     * <code>null</code>
+     */
+    private String getAttribute(String name) {
+        return reader.getAttributeValue(null, name);
+    }
+
+    /**
+     * Advance to the next child of the current element.  The previous
+     * child, if any, must have been read or skipped up to its end tag.
+     * @return <code>true</code> if positioned at the start of a child,
+     * <code>false</code> if positioned at the end of the current element
+     */
+    private boolean nextChild() throws XMLStreamException {
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return true;
+                case XMLStreamConstants.END_ELEMENT:
+                    return false;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Advance past the end of the current element and all its descendants.
+     * Only element boundaries are tracked; no text or attribute values of
+     * the skipped content are retrieved from the parser.
+     */
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        }
+        catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+}
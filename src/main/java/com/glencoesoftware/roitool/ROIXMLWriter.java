@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import loci.formats.ome.OMEXMLMetadata;
+import ome.units.quantity.Length;
+import ome.xml.model.AffineTransform;
+import ome.xml.model.MapPair;
+import ome.xml.model.OME;
+import omero.model.Shape;
+
+/**
+ * Writes an OME-XML document incrementally to an output stream.
+ * The <code>OME</code> root element is opened by
+ * {@link #writeStartDocument()} and its children are appended as they
+ * become available, so that only the objects currently being written need
+ * to be held in memory.  ROIs and annotations are written directly from
+ * their metadata retrievers without building an OME-XML DOM.  Callers are
+ * responsible for writing children in schema order: <code>Image</code>,
+ * <code>StructuredAnnotations</code> and then <code>ROI</code>.
+ */
+public class ROIXMLWriter implements Closeable {
+
+    /** OME-XML schema namespace written by this class. */
+    public static final String NAMESPACE =
+            "http://www.openmicroscopy.org/Schemas/OME/2016-06";
+
+    private static final String XSI_NAMESPACE =
+            "http://www.w3.org/2001/XMLSchema-instance";
+
+    private static final String SCHEMA_LOCATION =
+            NAMESPACE + " " + NAMESPACE + "/ome.xsd";
+
+    /** Size of the buffers used when encoding mask data. */
+    private static final int BUFFER_SIZE = 8192;
+
+    private final XMLStreamWriter writer;
+
+    /** Scratch document used to build detached model object elements. */
+    private final Document document;
+
+    /** Compresses mask data, reset and reused for every mask. */
+    private final Deflater deflater = new Deflater();
+
+    /** Holds Base64 encoded mask data on its way to {@link #writer}. */
+    private final char[] characters = new char[BUFFER_SIZE];
+
+    /**
+     * Creates a new writer.  The stream is not closed by {@link #close()}.
+     * @param out stream to write UTF-8 encoded OME-XML to
+     */
+    public ROIXMLWriter(OutputStream out)
+            throws XMLStreamException, ParserConfigurationException
+    {
+        this.writer = XMLOutputFactory.newInstance().createXMLStreamWriter(
+                out, "UTF-8");
+        this.document = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().newDocument();
+    }
+
+    /**
+     * Write the XML declaration and open the <code>OME</code> root element.
+     */
+    public void writeStartDocument() throws XMLStreamException {
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("OME");
+        writer.writeDefaultNamespace(NAMESPACE);
+        writer.writeNamespace("xsi", XSI_NAMESPACE);
+        writer.writeAttribute(
+                "xsi", XSI_NAMESPACE, "schemaLocation", SCHEMA_LOCATION);
+    }
+
+    /**
+     * Close the <code>OME</code> root element and flush the output.
+     */
+    public void writeEndDocument() throws XMLStreamException {
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+    /**
+     * Write every <code>Image</code> in the given metadata.
+     * @param meta populated OME-XML metadata
+     */
+    public void writeImages(OMEXMLMetadata meta) throws XMLStreamException {
+        final OME root = (OME) meta.getRoot();
+        for (final ome.xml.model.Image image : root.copyImageList()) {
+            writeElement(image.asXMLElement(document));
+        }
+    }
+
+    /**
+     * Write a <code>StructuredAnnotations</code> element holding every
+     * annotation provided by the given retriever.  Nothing is written if
+     * there are no annotations.
+     * @param meta annotation metadata
+     */
+    public void writeStructuredAnnotations(AnnotationMetadata meta)
+            throws XMLStreamException
+    {
+        final int total = meta.getXMLAnnotationCount()
+                + meta.getLongAnnotationCount()
+                + meta.getBooleanAnnotationCount()
+                + meta.getDoubleAnnotationCount()
+                + meta.getCommentAnnotationCount()
+                + meta.getMapAnnotationCount()
+                + meta.getTimestampAnnotationCount()
+                + meta.getTagAnnotationCount()
+                + meta.getTermAnnotationCount();
+        if (total == 0) {
+            return;
+        }
+        writer.writeStartElement("StructuredAnnotations");
+        for (int i=0; i<meta.getXMLAnnotationCount(); i++) {
+            writeStartAnnotation("XMLAnnotation",
+                    meta.getXMLAnnotationID(i),
+                    meta.getXMLAnnotationNamespace(i),
+                    meta.getXMLAnnotationDescription(i));
+            // the retriever escapes the value so that it is not parsed as
+            // XML content; it is written as character data here
+            writeValue(unescape(meta.getXMLAnnotationValue(i)));
+            writer.writeEndElement();
+        }
+        for (int i=0; i<meta.getLongAnnotationCount(); i++) {
+            writeStartAnnotation("LongAnnotation",
+                    meta.getLongAnnotationID(i),
+                    meta.getLongAnnotationNamespace(i),
+                    meta.getLongAnnotationDescription(i));
+            writeValue(meta.getLongAnnotationValue(i));
+            writer.writeEndElement();
+        }
+        for (int i=0; i<meta.getBooleanAnnotationCount(); i++) {
+            writeStartAnnotation("BooleanAnnotation",
+                    meta.getBooleanAnnotationID(i),
+                    meta.getBooleanAnnotationNamespace(i),
+                    meta.getBooleanAnnotationDescription(i));
+            writeValue(meta.getBooleanAnnotationValue(i));
+            writer.writeEndElement();
+        }
+        for (int i=0; i<meta.getDoubleAnnotationCount(); i++) {
+            writeStartAnnotation("DoubleAnnotation",
+                    meta.getDoubleAnnotationID(i),
+                    meta.getDoubleAnnotationNamespace(i),
+                    meta.getDoubleAnnotationDescription(i));
+            writeValue(meta.getDoubleAnnotationValue(i));
+            writer.writeEndElement();
+        }
+        for (int i=0; i<meta.getCommentAnnotationCount(); i++) {
+            writeStartAnnotation("CommentAnnotation",
+                    meta.getCommentAnnotationID(i),
+                    meta.getCommentAnnotationNamespace(i),
+                    meta.getCommentAnnotationDescription(i));
+            writeValue(meta.getCommentAnnotationValue(i));
+            writer.writeEndElement();
+        }
+        for (int i=0; i<meta.getMapAnnotationCount(); i++) {
+            writeStartAnnotation("MapAnnotation",
+                    meta.getMapAnnotationID(i),
+                    meta.getMapAnnotationNamespace(i),
+                    meta.getMapAnnotationDescription(i));
+            final List<MapPair> pairs = meta.getMapAnnotationValue(i);
+            if (pairs != null) {
+                writer.writeStartElement("Value");
+                for (final MapPair pair : pairs) {
+                    writer.writeStartElement("M");
+                    writeAttribute("K", pair.getName());
+                    if (pair.getValue() != null) {
+                        writer.writeCharacters(pair.getValue());
+                    }
+                    writer.writeEndElement();
+                }
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+        }
+        for (int i=0; i<meta.getTimestampAnnotationCount(); i++) {
+            writeStartAnnotation("TimestampAnnotation",
+                    meta.getTimestampAnnotationID(i),
+                    meta.getTimestampAnnotationNamespace(i),
+                    meta.getTimestampAnnotationDescription(i));
+            writeValue(meta.getTimestampAnnotationValue(i));
+            writer.writeEndElement();
+        }
+        for (int i=0; i<meta.getTagAnnotationCount(); i++) {
+            writeStartAnnotation("TagAnnotation",
+                    meta.getTagAnnotationID(i),
+                    meta.getTagAnnotationNamespace(i),
+                    meta.getTagAnnotationDescription(i));
+            writeValue(meta.getTagAnnotationValue(i));
+            writer.writeEndElement();
+        }
+        for (int i=0; i<meta.getTermAnnotationCount(); i++) {
+            writeStartAnnotation("TermAnnotation",
+                    meta.getTermAnnotationID(i),
+                    meta.getTermAnnotationNamespace(i),
+                    meta.getTermAnnotationDescription(i));
+            writeValue(meta.getTermAnnotationValue(i));
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Write a <code>ROI</code> element for every ROI provided by the given
+     * retriever and flush them to the output.
+     * @param meta ROI metadata
+     */
+    public void writeROIs(ROIMetadata meta) throws XMLStreamException {
+        for (int r=0; r<meta.getROICount(); r++) {
+            writer.writeStartElement("ROI");
+            writeAttribute("ID", meta.getROIID(r));
+            writeAttribute("Name", meta.getROIName(r));
+            writer.writeStartElement("Union");
+            for (int s=0; s<meta.getShapeCount(r); s++) {
+                writeShape(meta, r, s);
+            }
+            writer.writeEndElement();
+            for (int a=0; a<meta.getROIAnnotationRefCount(r); a++) {
+                writeAnnotationRef(meta.getROIAnnotationRef(r, a));
+            }
+            final String description = meta.getROIDescription(r);
+            if (description != null) {
+                writer.writeStartElement("Description");
+                writer.writeCharacters(description);
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+        }
+        writer.flush();
+    }
+
+    private void writeShape(ROIMetadata meta, int r, int s)
+            throws XMLStreamException
+    {
+        final String type = meta.getShapeType(r, s);
+        if (type == null) {
+            return;
+        }
+        writer.writeStartElement(type);
+        writeAttribute("ID", meta.getShapeID(r, s, Shape.class));
+        writeAttribute("TheZ", meta.getShapeTheZ(r, s, Shape.class));
+        writeAttribute("TheT", meta.getShapeTheT(r, s, Shape.class));
+        writeAttribute("TheC", meta.getShapeTheC(r, s, Shape.class));
+        writeAttribute("FillColor", meta.getShapeFillColor(r, s, Shape.class));
+        writeAttribute("FillRule", meta.getShapeFillRule(r, s, Shape.class));
+        writeAttribute(
+                "StrokeColor", meta.getShapeStrokeColor(r, s, Shape.class));
+        writeLengthAttribute(
+                "StrokeWidth", meta.getShapeStrokeWidth(r, s, Shape.class));
+        writeAttribute("StrokeDashArray",
+                meta.getShapeStrokeDashArray(r, s, Shape.class));
+        writeAttribute("Text", meta.getShapeText(r, s, Shape.class));
+        writeAttribute(
+                "FontFamily", meta.getShapeFontFamily(r, s, Shape.class));
+        writeLengthAttribute(
+                "FontSize", meta.getShapeFontSize(r, s, Shape.class));
+        writeAttribute("FontStyle", meta.getShapeFontStyle(r, s, Shape.class));
+        writeAttribute("Locked", meta.getShapeLocked(r, s, Shape.class));
+        switch (type) {
+            case "Rectangle":
+                writeAttribute("X", meta.getRectangleX(r, s));
+                writeAttribute("Y", meta.getRectangleY(r, s));
+                writeAttribute("Width", meta.getRectangleWidth(r, s));
+                writeAttribute("Height", meta.getRectangleHeight(r, s));
+                break;
+            case "Ellipse":
+                writeAttribute("X", meta.getEllipseX(r, s));
+                writeAttribute("Y", meta.getEllipseY(r, s));
+                writeAttribute("RadiusX", meta.getEllipseRadiusX(r, s));
+                writeAttribute("RadiusY", meta.getEllipseRadiusY(r, s));
+                break;
+            case "Point":
+                writeAttribute("X", meta.getPointX(r, s));
+                writeAttribute("Y", meta.getPointY(r, s));
+                break;
+            case "Line":
+                writeAttribute("X1", meta.getLineX1(r, s));
+                writeAttribute("Y1", meta.getLineY1(r, s));
+                writeAttribute("X2", meta.getLineX2(r, s));
+                writeAttribute("Y2", meta.getLineY2(r, s));
+                writeAttribute("MarkerStart", meta.getLineMarkerStart(r, s));
+                writeAttribute("MarkerEnd", meta.getLineMarkerEnd(r, s));
+                break;
+            case "Polyline":
+                writeAttribute("Points", meta.getPolylinePoints(r, s));
+                writeAttribute(
+                        "MarkerStart", meta.getPolylineMarkerStart(r, s));
+                writeAttribute("MarkerEnd", meta.getPolylineMarkerEnd(r, s));
+                break;
+            case "Polygon":
+                writeAttribute("Points", meta.getPolygonPoints(r, s));
+                break;
+            case "Label":
+                writeAttribute("X", meta.getLabelX(r, s));
+                writeAttribute("Y", meta.getLabelY(r, s));
+                break;
+            case "Mask":
+                writeAttribute("X", meta.getMaskX(r, s));
+                writeAttribute("Y", meta.getMaskY(r, s));
+                writeAttribute("Width", meta.getMaskWidth(r, s));
+                writeAttribute("Height", meta.getMaskHeight(r, s));
+                break;
+            default:
+                break;
+        }
+        final AffineTransform transform =
+                meta.getShapeTransform(r, s, Shape.class);
+        if (transform != null) {
+            writer.writeEmptyElement("Transform");
+            writeAttribute("A00", transform.getA00());
+            writeAttribute("A10", transform.getA10());
+            writeAttribute("A01", transform.getA01());
+            writeAttribute("A11", transform.getA11());
+            writeAttribute("A02", transform.getA02());
+            writeAttribute("A12", transform.getA12());
+        }
+        for (int a=0; a<meta.getShapeAnnotationRefCount(r, s); a++) {
+            writeAnnotationRef(
+                    meta.getShapeAnnotationRef(r, s, a, Shape.class));
+        }
+        if (type.equals("Mask")) {
+            writeBinData(meta.getMaskBinData(r, s));
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Write a zlib compressed, Base64 encoded <code>BinData</code> element.
+     * The data is deflated and encoded in buffer sized chunks straight into
+     * the output, so no compressed or encoded copy of it is ever held in
+     * memory.
+     * @param bits bit-packed mask data, may be <code>null</code>
+     */
+    private void writeBinData(byte[] bits) throws XMLStreamException {
+        if (bits == null) {
+            return;
+        }
+        writer.writeStartElement("BinData");
+        writer.writeAttribute("BigEndian", "false");
+        writer.writeAttribute("Compression", "zlib");
+        writer.writeAttribute("Length", Integer.toString(bits.length));
+        deflater.reset();
+        try (OutputStream out = new DeflaterOutputStream(
+                Base64.getEncoder().wrap(new CharacterOutputStream()),
+                deflater, BUFFER_SIZE))
+        {
+            out.write(bits);
+        }
+        catch (IOException e) {
+            if (e.getCause() instanceof XMLStreamException) {
+                throw (XMLStreamException) e.getCause();
+            }
+            throw new XMLStreamException(e);
+        }
+        writer.writeEndElement();
+    }
+
+    private void writeStartAnnotation(String element, String id,
+            String namespace, String description) throws XMLStreamException
+    {
+        writer.writeStartElement(element);
+        writeAttribute("ID", id);
+        writeAttribute("Namespace", namespace);
+        if (description != null) {
+            writer.writeStartElement("Description");
+            writer.writeCharacters(description);
+            writer.writeEndElement();
+        }
+    }
+
+    private void writeValue(Object value) throws XMLStreamException {
+        if (value != null) {
+            writer.writeStartElement("Value");
+            writer.writeCharacters(value.toString());
+            writer.writeEndElement();
+        }
+    }
+
+    private void writeAnnotationRef(String id) throws XMLStreamException {
+        if (id != null) {
+            writer.writeEmptyElement("AnnotationRef");
+            writer.writeAttribute("ID", id);
+        }
+    }
+
+    private void writeAttribute(String name, Object value)
+            throws XMLStreamException
+    {
+        if (value != null) {
+            writer.writeAttribute(name, value.toString());
+        }
+    }
+
+    private void writeLengthAttribute(String name, Length value)
+            throws XMLStreamException
+    {
+        if (value != null) {
+            writer.writeAttribute(name, value.value().toString());
+            writer.writeAttribute(name + "Unit", value.unit().getSymbol());
+        }
+    }
+
+    /**
+     * Reverse {@link loci.common.xml.XMLTools#escapeXML(String)}.
+     * @param value escaped string, may be <code>null</code>
+     * @return unescaped string
+     */
+    private static String unescape(String value) {
+        if (value == null || value.indexOf('&') < 0) {
+            return value;
+        }
+        return value.replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+    /**
+     * Copy a detached DOM element and its descendants to the output.
+     * Elements in the OME namespace inherit the default namespace declared
+     * on the root element.
+     * @param element element to write
+     */
+    private void writeElement(Element element) throws XMLStreamException {
+        final String name = element.getLocalName() != null ?
+                element.getLocalName() : element.getTagName();
+        writer.writeStartElement(name);
+        final String namespace = element.getNamespaceURI();
+        if (namespace != null && !namespace.equals(NAMESPACE)) {
+            writer.writeDefaultNamespace(namespace);
+        }
+        final NamedNodeMap attributes = element.getAttributes();
+        for (int i=0; i<attributes.getLength(); i++) {
+            final Attr attribute = (Attr) attributes.item(i);
+            final String attributeName = attribute.getName();
+            if (attributeName.equals("xmlns") ||
+                attributeName.startsWith("xmlns:"))
+            {
+                continue;
+            }
+            writer.writeAttribute(attributeName, attribute.getValue());
+        }
+        for (Node child = element.getFirstChild(); child != null;
+             child = child.getNextSibling())
+        {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    writeElement((Element) child);
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    writer.writeCharacters(child.getNodeValue());
+                    break;
+                default:
+                    break;
+            }
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes ASCII bytes to {@link #writer} as character data.  Closing the
+     * stream does not close the writer.
+     */
+    private class CharacterOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while (len > 0) {
+                    final int count = Math.min(len, characters.length);
+                    for (int i=0; i<count; i++) {
+                        characters[i] = (char) b[off + i];
+                    }
+                    writer.writeCharacters(characters, 0, count);
+                    off += count;
+                    len -= count;
+                }
+            }
+            catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        try {
+            writer.close();
+        }
+        catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+}
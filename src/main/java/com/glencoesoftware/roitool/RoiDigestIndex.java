@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import omero.RType;
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.api.IUpdatePrx;
+import omero.model.AffineTransform;
+import omero.model.Annotation;
+import omero.model.BooleanAnnotation;
+import omero.model.DoubleAnnotation;
+import omero.model.Ellipse;
+import omero.model.IObject;
+import omero.model.ImageAnnotationLink;
+import omero.model.ImageAnnotationLinkI;
+import omero.model.ImageI;
+import omero.model.Label;
+import omero.model.Length;
+import omero.model.Line;
+import omero.model.LongAnnotation;
+import omero.model.MapAnnotation;
+import omero.model.Mask;
+import omero.model.NamedValue;
+import omero.model.Point;
+import omero.model.Polygon;
+import omero.model.Polyline;
+import omero.model.Rectangle;
+import omero.model.Roi;
+import omero.model.RoiAnnotationLink;
+import omero.model.Shape;
+import omero.model.TextAnnotation;
+import omero.model.TimestampAnnotation;
+import omero.model.XmlAnnotation;
+import omero.model.XmlAnnotationI;
+import omero.sys.ParametersI;
+
+import static omero.rtypes.rstring;
+import static omero.rtypes.unwrap;
+
+/**
+ * Content digests of the ROIs imported to an Image, used to skip ROIs that
+ * have already been imported.  The digest of a ROI covers its name,
+ * description, Shapes and linked annotations, but no IDs, so importing the
+ * same ROIs again gives the same digests.  Each import that saves ROIs
+ * links one compact <code>XmlAnnotation</code> in {@link #NAMESPACE} to
+ * the Image, holding the Base64 encoded digests of the ROIs it saved, so
+ * that the digests of earlier imports can be loaded with a single query
+ * instead of fetching and hashing the Image's ROIs.
+ * <p>
+ * Only the digests of ROIs that were actually saved are linked, so that
+ * the ROIs of a failed import that were not saved are imported by the
+ * next attempt.
+ * <p>
+ * Digests are counted, so an input that legitimately holds identical
+ * ROIs imports each of them once.  ROIs created by other means than a
+ * deduplicating import have no digest and are never matched.
+ */
+public class RoiDigestIndex {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(RoiDigestIndex.class);
+
+    /** Namespace of the annotations holding ROI digests. */
+    public static final String NAMESPACE =
+            "glencoesoftware.com/omero-roitool/roidigests";
+
+    /** Number of bytes kept of each SHA-256 digest. */
+    private static final int DIGEST_LENGTH = 16;
+
+    /** Digests of earlier imports that have not been matched yet. */
+    private final Map<ByteBuffer, Integer> existing;
+
+    /** Digests of the ROIs to be saved by this import. */
+    private final Map<Roi, byte[]> unsaved =
+            new IdentityHashMap<Roi, byte[]>();
+
+    /** Digests of the ROIs saved by this import, not linked yet. */
+    private final ByteArrayOutputStream added = new ByteArrayOutputStream();
+
+    private final MessageDigest digest;
+
+    /** Provides the bit-packed data of Masks. */
+    private Function<Mask, byte[]> maskBits = Mask::getBytes;
+
+    private RoiDigestIndex(Map<ByteBuffer, Integer> existing) {
+        this.existing = existing;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Load the digests of the ROIs imported to an Image.
+     * @param query query service
+     * @param imageId OMERO Image ID
+     * @return digest index
+     * @throws ServerError if the digests could not be retrieved
+     */
+    public static RoiDigestIndex load(IQueryPrx query, long imageId)
+            throws ServerError {
+        final Map<ByteBuffer, Integer> existing =
+                new HashMap<ByteBuffer, Integer>();
+        final ParametersI params = new ParametersI();
+        params.addId(imageId);
+        params.add("ns", rstring(NAMESPACE));
+        final List<IObject> annotations = query.findAllByQuery(
+                "SELECT a FROM ImageAnnotationLink l JOIN l.child a " +
+                "WHERE l.parent.id = :id AND a.ns = :ns", params);
+        for (final IObject annotation : annotations) {
+            final String value = (String) unwrap(
+                    ((XmlAnnotation) annotation).getTextValue());
+            final byte[] digests = Base64.getDecoder().decode(value.trim());
+            for (int i=0; i+DIGEST_LENGTH<=digests.length; i+=DIGEST_LENGTH) {
+                existing.merge(ByteBuffer.wrap(
+                        Arrays.copyOfRange(digests, i, i + DIGEST_LENGTH)),
+                        1, Integer::sum);
+            }
+        }
+        log.info("Loaded {} ROI digests from {} earlier imports",
+                 existing.values().stream().mapToInt(Integer::intValue).sum(),
+                 annotations.size());
+        return new RoiDigestIndex(existing);
+    }
+
+    /**
+     * @param annotation an annotation
+     * @return <code>true</code> if the annotation holds ROI digests
+     */
+    public static boolean isIndex(Annotation annotation) {
+        return annotation instanceof XmlAnnotation
+                && annotation.getNs() != null
+                && NAMESPACE.equals(annotation.getNs().getValue());
+    }
+
+    /**
+     * Set how the bit-packed data of Masks is obtained, for Masks that do
+     * not hold it themselves, e.g. {@link MaskDecoder#getBits(Mask)}.
+     * @param maskBits provides the bit-packed data of a Mask
+     */
+    public void setMaskBits(Function<Mask, byte[]> maskBits) {
+        this.maskBits = maskBits;
+    }
+
+    /**
+     * Check whether a ROI was imported before.  Each digest of an earlier
+     * import matches a single ROI.
+     * @param roi unsaved ROI
+     * @return <code>true</code> if the ROI matches a digest of an earlier
+     * import, <code>false</code> if it does not and is to be saved
+     */
+    public boolean isDuplicate(Roi roi) {
+        final byte[] roiDigest = digest(roi);
+        final ByteBuffer key = ByteBuffer.wrap(roiDigest);
+        final Integer count = existing.get(key);
+        if (count != null) {
+            if (count == 1) {
+                existing.remove(key);
+            }
+            else {
+                existing.put(key, count - 1);
+            }
+            return true;
+        }
+        unsaved.put(roi, roiDigest);
+        return false;
+    }
+
+    /**
+     * Record that a ROI which was checked by {@link #isDuplicate(Roi)} has
+     * been saved.
+     * @param roi ROI as it was checked
+     */
+    public void saved(Roi roi) {
+        final byte[] roiDigest = unsaved.remove(roi);
+        if (roiDigest != null) {
+            added.write(roiDigest, 0, roiDigest.length);
+        }
+    }
+
+    /**
+     * Record a ROI that was saved without being checked, by an earlier
+     * attempt at the same import.  If that attempt linked the ROI's
+     * digest, it is matched, so that it is not linked twice and does not
+     * match another ROI of the input.
+     * @param roi unsaved ROI
+     */
+    public void add(Roi roi) {
+        if (!isDuplicate(roi)) {
+            saved(roi);
+        }
+    }
+
+    /**
+     * Link the digests of the ROIs saved by this import since the last
+     * call to the Image.
+     * @param update update service
+     * @param imageId OMERO Image ID
+     * @throws ServerError if the digests could not be saved
+     */
+    public void save(IUpdatePrx update, long imageId) throws ServerError {
+        if (added.size() == 0) {
+            return;
+        }
+        final XmlAnnotation annotation = new XmlAnnotationI();
+        annotation.setNs(rstring(NAMESPACE));
+        annotation.setTextValue(rstring(Base64.getEncoder().encodeToString(
+                added.toByteArray())));
+        final ImageAnnotationLink link = new ImageAnnotationLinkI();
+        link.setParent(new ImageI(imageId, false));
+        link.setChild(annotation);
+        update.saveObject(link);
+        log.info("Saved {} ROI digests",
+                 added.size() / DIGEST_LENGTH);
+        added.reset();
+    }
+
+    /**
+     * @param roi ROI with its Shapes and annotations loaded
+     * @return truncated SHA-256 digest of the ROI's content
+     */
+    private byte[] digest(Roi roi) {
+        digest.reset();
+        update(roi.getName());
+        update(roi.getDescription());
+        for (final Shape shape : roi.copyShapes()) {
+            update(shape);
+        }
+        for (final RoiAnnotationLink link : roi.copyAnnotationLinks()) {
+            update(link.getChild());
+        }
+        return Arrays.copyOf(digest.digest(), DIGEST_LENGTH);
+    }
+
+    private void update(Shape shape) {
+        update(ROIMetadata.getSchemaType(shape.getClass()));
+        update(shape.getTheZ());
+        update(shape.getTheT());
+        update(shape.getTheC());
+        update(shape.getFillColor());
+        update(shape.getFillRule());
+        update(shape.getStrokeColor());
+        update(shape.getStrokeWidth());
+        update(shape.getStrokeDashArray());
+        update(shape.getFontFamily());
+        update(shape.getFontSize());
+        update(shape.getFontStyle());
+        update(shape.getLocked());
+        update(shape.getTextValue());
+        final AffineTransform transform = shape.getTransform();
+        if (transform != null) {
+            update(transform.getA00());
+            update(transform.getA10());
+            update(transform.getA01());
+            update(transform.getA11());
+            update(transform.getA02());
+            update(transform.getA12());
+        }
+        if (shape instanceof Rectangle) {
+            final Rectangle rectangle = (Rectangle) shape;
+            update(rectangle.getX());
+            update(rectangle.getY());
+            update(rectangle.getWidth());
+            update(rectangle.getHeight());
+        }
+        else if (shape instanceof Ellipse) {
+            final Ellipse ellipse = (Ellipse) shape;
+            update(ellipse.getX());
+            update(ellipse.getY());
+            update(ellipse.getRadiusX());
+            update(ellipse.getRadiusY());
+        }
+        else if (shape instanceof Point) {
+            update(((Point) shape).getX());
+            update(((Point) shape).getY());
+        }
+        else if (shape instanceof Line) {
+            final Line line = (Line) shape;
+            update(line.getX1());
+            update(line.getY1());
+            update(line.getX2());
+            update(line.getY2());
+            update(line.getMarkerStart());
+            update(line.getMarkerEnd());
+        }
+        else if (shape instanceof Polyline) {
+            final Polyline polyline = (Polyline) shape;
+            update(polyline.getPoints());
+            update(polyline.getMarkerStart());
+            update(polyline.getMarkerEnd());
+        }
+        else if (shape instanceof Polygon) {
+            update(((Polygon) shape).getPoints());
+        }
+        else if (shape instanceof Label) {
+            update(((Label) shape).getX());
+            update(((Label) shape).getY());
+        }
+        else if (shape instanceof Mask) {
+            final Mask mask = (Mask) shape;
+            update(mask.getX());
+            update(mask.getY());
+            update(mask.getWidth());
+            update(mask.getHeight());
+            final byte[] bits = maskBits.apply(mask);
+            if (bits != null) {
+                digest.update(bits);
+            }
+        }
+    }
+
+    private void update(Annotation annotation) {
+        update(annotation.getClass().getSimpleName());
+        update(annotation.getNs());
+        update(annotation.getDescription());
+        if (annotation instanceof TextAnnotation) {
+            update(((TextAnnotation) annotation).getTextValue());
+        }
+        else if (annotation instanceof LongAnnotation) {
+            update(((LongAnnotation) annotation).getLongValue());
+        }
+        else if (annotation instanceof DoubleAnnotation) {
+            update(((DoubleAnnotation) annotation).getDoubleValue());
+        }
+        else if (annotation instanceof BooleanAnnotation) {
+            update(((BooleanAnnotation) annotation).getBoolValue());
+        }
+        else if (annotation instanceof TimestampAnnotation) {
+            update(((TimestampAnnotation) annotation).getTimeValue());
+        }
+        else if (annotation instanceof MapAnnotation) {
+            final List<NamedValue> pairs =
+                    ((MapAnnotation) annotation).getMapValue();
+            if (pairs != null) {
+                for (final NamedValue pair : pairs) {
+                    update(pair.name);
+                    update(pair.value);
+                }
+            }
+        }
+    }
+
+    private void update(Length length) {
+        if (length == null) {
+            digest.update((byte) 1);
+        }
+        else {
+            update(length.getValue() + " " + length.getUnit());
+        }
+    }
+
+    private void update(RType value) {
+        final Object unwrapped = unwrap(value);
+        if (unwrapped == null) {
+            digest.update((byte) 1);
+        }
+        else {
+            update(unwrapped.toString());
+        }
+    }
+
+    /**
+     * Add a value followed by a separator, so that adjacent values cannot
+     * run into each other.  <code>null</code> is distinct from every
+     * string.
+     */
+    private void update(String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        else {
+            digest.update((byte) 1);
+        }
+    }
+}
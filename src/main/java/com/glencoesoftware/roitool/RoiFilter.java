@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import omero.RInt;
+import omero.model.Ellipse;
+import omero.model.Line;
+import omero.model.Polygon;
+import omero.model.Polyline;
+import omero.model.Roi;
+import omero.model.Shape;
+import omero.sys.ParametersI;
+
+import static omero.rtypes.rdouble;
+import static omero.rtypes.rint;
+
+/**
+ * Selects the Shapes to export by bounding box, Z/C/T plane ranges and
+ * Shape type.  ROIs are exported with only their selected Shapes, and ROIs
+ * with no selected Shape are not exported.
+ * <p>
+ * As much of the selection as possible is made in HQL, see
+ * {@link #getShapeCondition(String)}, so that unselected Shapes are never
+ * transferred.  Shape coordinates are compared without applying any
+ * transform.  Polygons and Polylines, whose points cannot be compared in
+ * HQL, and Lines and Ellipses, whose HQL test only compares bounding
+ * boxes, are tested precisely by {@link #apply(List)}.
+ * A Shape with no Z, C or T index lies on every plane of that dimension.
+ */
+public class RoiFilter {
+
+    /**
+     * HQL condition on alias <code>q</code> testing whether the bounding
+     * box of each Shape type intersects the filter bounding box, or
+     * <code>null</code> if it can only be tested client side.
+     */
+    private static final Map<String, String> BOUNDING_BOX_CONDITIONS =
+            new LinkedHashMap<String, String>();
+
+    static {
+        final String box =
+                "q.x <= :bx2 AND q.x + q.width >= :bx1 AND " +
+                "q.y <= :by2 AND q.y + q.height >= :by1";
+        final String point =
+                "q.x >= :bx1 AND q.x <= :bx2 AND q.y >= :by1 AND q.y <= :by2";
+        BOUNDING_BOX_CONDITIONS.put("Rectangle", box);
+        BOUNDING_BOX_CONDITIONS.put("Mask", box);
+        BOUNDING_BOX_CONDITIONS.put("Ellipse",
+                "q.x - q.radiusX <= :bx2 AND q.x + q.radiusX >= :bx1 AND " +
+                "q.y - q.radiusY <= :by2 AND q.y + q.radiusY >= :by1");
+        BOUNDING_BOX_CONDITIONS.put("Point", point);
+        BOUNDING_BOX_CONDITIONS.put("Label", point);
+        BOUNDING_BOX_CONDITIONS.put("Line",
+                "(q.x1 <= :bx2 OR q.x2 <= :bx2) AND " +
+                "(q.x1 >= :bx1 OR q.x2 >= :bx1) AND " +
+                "(q.y1 <= :by2 OR q.y2 <= :by2) AND " +
+                "(q.y1 >= :by1 OR q.y2 >= :by1)");
+        BOUNDING_BOX_CONDITIONS.put("Polyline", null);
+        BOUNDING_BOX_CONDITIONS.put("Polygon", null);
+    }
+
+    /** Parses points; filters may be applied by concurrent exports. */
+    private static final ThreadLocal<PointsCodec> CODECS =
+            ThreadLocal.withInitial(PointsCodec::new);
+
+    /** Bounding box as minimum X, minimum Y, maximum X, maximum Y. */
+    private double[] boundingBox = null;
+
+    private int[] zRange = null;
+
+    private int[] cRange = null;
+
+    private int[] tRange = null;
+
+    /** Selected Shape type names, or <code>null</code> for all types. */
+    private Set<String> shapeTypes = null;
+
+    /**
+     * Select Shapes that intersect the given rectangle.
+     * @param x X coordinate of the left edge
+     * @param y Y coordinate of the top edge
+     * @param width width, not negative
+     * @param height height, not negative
+     */
+    public void setBoundingBox(double x, double y, double width,
+            double height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid bounding box size: " + width + "x" + height);
+        }
+        boundingBox = new double[] {x, y, x + width, y + height};
+    }
+
+    /**
+     * Select Shapes on the given Z planes.
+     * @param min lowest Z index
+     * @param max highest Z index
+     */
+    public void setZRange(int min, int max) {
+        zRange = toRange(min, max);
+    }
+
+    /**
+     * Select Shapes on the given channels.
+     * @param min lowest C index
+     * @param max highest C index
+     */
+    public void setCRange(int min, int max) {
+        cRange = toRange(min, max);
+    }
+
+    /**
+     * Select Shapes on the given timepoints.
+     * @param min lowest T index
+     * @param max highest T index
+     */
+    public void setTRange(int min, int max) {
+        tRange = toRange(min, max);
+    }
+
+    /**
+     * Select Shapes of the given types.
+     * @param types OME schema Shape type names, e.g. <code>Polygon</code>
+     */
+    public void setShapeTypes(Collection<String> types) {
+        for (final String type : types) {
+            if (!BOUNDING_BOX_CONDITIONS.containsKey(type)) {
+                throw new IllegalArgumentException(
+                        "Unknown Shape type: " + type + ", expected one of " +
+                        BOUNDING_BOX_CONDITIONS.keySet());
+            }
+        }
+        shapeTypes = new LinkedHashSet<String>(types);
+    }
+
+    private static int[] toRange(int min, int max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException(
+                    "Invalid range: " + min + "-" + max);
+        }
+        return new int[] {min, max};
+    }
+
+    /**
+     * Parse a plane index range.
+     * @param range a single index, e.g. <code>3</code>, or an inclusive
+     * range, e.g. <code>0-4</code>
+     * @return lowest and highest index
+     */
+    public static int[] parseRange(String range) {
+        final String[] bounds = range.trim().split("-", 2);
+        final int min = Integer.parseInt(bounds[0].trim());
+        final int max = bounds.length > 1 ?
+                Integer.parseInt(bounds[1].trim()) : min;
+        return toRange(min, max);
+    }
+
+    /**
+     * Build an HQL condition on a Shape alias that selects the Shapes
+     * which may pass this filter.  The parameters used by the condition
+     * must be added with {@link #addParameters(ParametersI)}.
+     * @param alias alias of a Shape, e.g. <code>s</code>
+     * @return HQL condition, or <code>null</code> if all Shapes are selected
+     */
+    public String getShapeCondition(String alias) {
+        final List<String> conditions = new ArrayList<String>();
+        addRangeCondition(conditions, alias + ".theZ", "z", zRange);
+        addRangeCondition(conditions, alias + ".theC", "c", cRange);
+        addRangeCondition(conditions, alias + ".theT", "t", tRange);
+        if (boundingBox != null || shapeTypes != null) {
+            final List<String> types = new ArrayList<String>();
+            for (final Map.Entry<String, String> entry :
+                    BOUNDING_BOX_CONDITIONS.entrySet()) {
+                if (shapeTypes != null &&
+                    !shapeTypes.contains(entry.getKey())) {
+                    continue;
+                }
+                final String where = boundingBox != null &&
+                        entry.getValue() != null ?
+                                " WHERE " + entry.getValue() : "";
+                types.add(alias + ".id IN (SELECT q.id FROM " +
+                          entry.getKey() + " q" + where + ")");
+            }
+            conditions.add("(" + String.join(" OR ", types) + ")");
+        }
+        return conditions.isEmpty() ? null : String.join(" AND ", conditions);
+    }
+
+    private static void addRangeCondition(List<String> conditions,
+            String property, String name, int[] range) {
+        if (range != null) {
+            conditions.add("(" + property + " IS NULL OR (" +
+                    property + " >= :" + name + "min AND " +
+                    property + " <= :" + name + "max))");
+        }
+    }
+
+    /**
+     * Add the parameters used by {@link #getShapeCondition(String)}.
+     * @param params query parameters
+     * @return <code>params</code>
+     */
+    public ParametersI addParameters(ParametersI params) {
+        if (boundingBox != null) {
+            params.add("bx1", rdouble(boundingBox[0]));
+            params.add("by1", rdouble(boundingBox[1]));
+            params.add("bx2", rdouble(boundingBox[2]));
+            params.add("by2", rdouble(boundingBox[3]));
+        }
+        addRangeParameters(params, "z", zRange);
+        addRangeParameters(params, "c", cRange);
+        addRangeParameters(params, "t", tRange);
+        return params;
+    }
+
+    private static void addRangeParameters(
+            ParametersI params, String name, int[] range) {
+        if (range != null) {
+            params.add(name + "min", rint(range[0]));
+            params.add(name + "max", rint(range[1]));
+        }
+    }
+
+    /**
+     * Remove the Shapes that do not pass this filter from the given ROIs,
+     * then remove the ROIs that have no Shapes left.
+     * @param rois ROIs, modified in place
+     * @return <code>rois</code>
+     */
+    public List<Roi> apply(List<Roi> rois) {
+        final Iterator<Roi> iterator = rois.iterator();
+        while (iterator.hasNext()) {
+            final Roi roi = iterator.next();
+            final List<Shape> shapes = roi.copyShapes();
+            final List<Shape> selected = new ArrayList<Shape>(shapes.size());
+            for (final Shape shape : shapes) {
+                if (matches(shape)) {
+                    selected.add(shape);
+                }
+            }
+            if (selected.isEmpty()) {
+                iterator.remove();
+            }
+            else if (selected.size() < shapes.size()) {
+                roi.clearShapes();
+                for (final Shape shape : selected) {
+                    roi.addShape(shape);
+                }
+            }
+        }
+        return rois;
+    }
+
+    /**
+     * @param shape a Shape
+     * @return whether or not the Shape passes this filter
+     */
+    public boolean matches(Shape shape) {
+        if (!inRange(shape.getTheZ(), zRange)
+                || !inRange(shape.getTheC(), cRange)
+                || !inRange(shape.getTheT(), tRange)) {
+            return false;
+        }
+        if (shapeTypes != null && !shapeTypes.contains(
+                ROIMetadata.getSchemaType(shape.getClass()))) {
+            return false;
+        }
+        if (boundingBox == null) {
+            return true;
+        }
+        if (shape instanceof Polygon) {
+            final PointsCodec points =
+                    parsePoints(((Polygon) shape).getPoints().getValue());
+            return intersectsPath(
+                    points.getCoordinates(), points.getLength(), true)
+                || containsPoint(points.getCoordinates(), points.getLength(),
+                                 boundingBox[0], boundingBox[1]);
+        }
+        if (shape instanceof Polyline) {
+            final PointsCodec points =
+                    parsePoints(((Polyline) shape).getPoints().getValue());
+            return intersectsPath(
+                    points.getCoordinates(), points.getLength(), false);
+        }
+        if (shape instanceof Line) {
+            final Line line = (Line) shape;
+            return intersectsSegment(
+                    line.getX1().getValue(), line.getY1().getValue(),
+                    line.getX2().getValue(), line.getY2().getValue());
+        }
+        if (shape instanceof Ellipse) {
+            final Ellipse ellipse = (Ellipse) shape;
+            final double cx = ellipse.getX().getValue();
+            final double cy = ellipse.getY().getValue();
+            final double rx = ellipse.getRadiusX().getValue();
+            final double ry = ellipse.getRadiusY().getValue();
+            // the point of the box closest to the centre
+            final double dx = clamp(cx, boundingBox[0], boundingBox[2]) - cx;
+            final double dy = clamp(cy, boundingBox[1], boundingBox[3]) - cy;
+            if (rx == 0 || ry == 0) {
+                return intersectsSegment(cx - rx, cy - ry, cx + rx, cy + ry);
+            }
+            return (dx * dx) / (rx * rx) + (dy * dy) / (ry * ry) <= 1;
+        }
+        // other Shape types are tested exactly in HQL
+        return true;
+    }
+
+    private static boolean inRange(RInt index, int[] range) {
+        return range == null || index == null
+                || (index.getValue() >= range[0]
+                    && index.getValue() <= range[1]);
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Parse the points of a Polygon or Polyline with this thread's codec.
+     * Coordinates that cannot be parsed, and an unpaired last coordinate,
+     * are ignored.
+     * @return codec holding the coordinates <code>{x1, y1, x2, y2, ...}</code>
+     */
+    private static PointsCodec parsePoints(String points) {
+        final PointsCodec codec = CODECS.get();
+        codec.parse(points);
+        return codec;
+    }
+
+    /**
+     * @param points path coordinates
+     * @param length number of coordinates in <code>points</code>
+     * @param closed whether or not the last point connects to the first
+     * @return whether or not any segment of the path intersects the box
+     */
+    private boolean intersectsPath(
+            double[] points, int length, boolean closed) {
+        final int count = length / 2;
+        if (count == 1) {
+            return intersectsSegment(
+                    points[0], points[1], points[0], points[1]);
+        }
+        final int segments = closed ? count : count - 1;
+        for (int i=0; i<segments; i++) {
+            final int j = (i + 1) % count;
+            if (intersectsSegment(points[2 * i], points[2 * i + 1],
+                                  points[2 * j], points[2 * j + 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Liang-Barsky clipping of a line segment against the box.
+     * @return whether or not any part of the segment lies within the box
+     */
+    private boolean intersectsSegment(
+            double x1, double y1, double x2, double y2) {
+        final double dx = x2 - x1;
+        final double dy = y2 - y1;
+        final double[] p = {-dx, dx, -dy, dy};
+        final double[] q = {x1 - boundingBox[0], boundingBox[2] - x1,
+                            y1 - boundingBox[1], boundingBox[3] - y1};
+        double t0 = 0;
+        double t1 = 1;
+        for (int i=0; i<4; i++) {
+            if (p[i] == 0) {
+                if (q[i] < 0) {
+                    return false;
+                }
+            }
+            else {
+                final double t = q[i] / p[i];
+                if (p[i] < 0) {
+                    t0 = Math.max(t0, t);
+                }
+                else {
+                    t1 = Math.min(t1, t);
+                }
+                if (t0 > t1) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Even-odd test of whether a point lies inside a polygon, for boxes
+     * entirely inside a polygon, which no edge intersects.
+     */
+    private static boolean containsPoint(
+            double[] points, int length, double x, double y) {
+        final int count = length / 2;
+        boolean inside = false;
+        for (int i=0, j=count - 1; i<count; j=i++) {
+            final double xi = points[2 * i];
+            final double yi = points[2 * i + 1];
+            final double xj = points[2 * j];
+            final double yj = points[2 * j + 1];
+            if ((yi > y) != (yj > y) &&
+                x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    @Override
+    public String toString() {
+        return "boundingBox=" + Arrays.toString(boundingBox)
+                + ";z=" + Arrays.toString(zRange)
+                + ";c=" + Arrays.toString(cRange)
+                + ";t=" + Arrays.toString(tRange)
+                + ";types=" + shapeTypes;
+    }
+}
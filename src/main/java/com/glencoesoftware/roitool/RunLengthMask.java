@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.Arrays;
+
+/**
+ * Immutable run-length encoded binary mask.  The pixels are taken in row
+ * major order, as in the bit-packed data of an OMERO Mask, and stored as
+ * the lengths of alternating runs of clear and set pixels, starting with a
+ * run of clear pixels that may be empty.  Masks of tissue or cells consist
+ * of few long runs, so they take a small fraction of the memory of their
+ * bit-packed form.
+ * <p>
+ * Bits are packed most significant bit first, with rows following each
+ * other without padding.
+ */
+public class RunLengthMask {
+
+    private final int width;
+
+    private final int height;
+
+    /** Alternating clear and set run lengths, starting with clear. */
+    private final int[] runs;
+
+    private RunLengthMask(int width, int height, int[] runs) {
+        this.width = width;
+        this.height = height;
+        this.runs = runs;
+    }
+
+    /**
+     * Encode bit-packed mask data.  Missing trailing bits are clear.
+     * @param bits bit-packed mask data
+     * @param length number of bytes of <code>bits</code> to use
+     * @param width mask width in pixels
+     * @param height mask height in pixels
+     * @return run-length encoded mask
+     */
+    public static RunLengthMask fromBits(
+            byte[] bits, int length, int width, int height) {
+        final int total = checkedSize(width, height);
+        final Builder builder = new Builder();
+        final int bytes = Math.min(length, total / 8);
+        for (int i=0; i<bytes; i++) {
+            final int value = bits[i] & 0xff;
+            if (value == 0 || value == 0xff) {
+                builder.append(value != 0, 8);
+            }
+            else {
+                for (int bit=7; bit>=0; bit--) {
+                    builder.append(((value >> bit) & 1) != 0, 1);
+                }
+            }
+        }
+        int position = bytes * 8;
+        if (position < total && bytes < length) {
+            // partial last byte
+            final int value = bits[bytes] & 0xff;
+            for (int bit=7; position<total; bit--, position++) {
+                builder.append(((value >> bit) & 1) != 0, 1);
+            }
+        }
+        builder.append(false, total - position);
+        return builder.build(width, height);
+    }
+
+    private static int checkedSize(int width, int height) {
+        final long total = (long) width * (long) height;
+        if (width < 0 || height < 0 || total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "Invalid mask size: " + width + "x" + height);
+        }
+        return (int) total;
+    }
+
+    /**
+     * @return mask width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return mask height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return number of runs
+     */
+    public int getRunCount() {
+        return runs.length;
+    }
+
+    /**
+     * @return length of the bit-packed form of the mask in bytes
+     */
+    public int getBitsLength() {
+        return (int) (((long) width * height + 7) / 8);
+    }
+
+    /**
+     * @return number of set pixels
+     */
+    public long getArea() {
+        long area = 0;
+        for (int i=1; i<runs.length; i+=2) {
+            area += runs[i];
+        }
+        return area;
+    }
+
+    /**
+     * @return the bit-packed form of the mask
+     */
+    public byte[] toBits() {
+        final byte[] bits = new byte[getBitsLength()];
+        int position = 0;
+        for (int i=0; i<runs.length; i++) {
+            if (i % 2 == 1) {
+                set(bits, position, position + runs[i]);
+            }
+            position += runs[i];
+        }
+        return bits;
+    }
+
+    /**
+     * Set a range of bits, filling whole bytes at once.
+     */
+    private static void set(byte[] bits, int start, int end) {
+        while (start < end && start % 8 != 0) {
+            bits[start / 8] |= 0x80 >>> (start % 8);
+            start++;
+        }
+        final int wholeEnd = end - end % 8;
+        if (start < wholeEnd) {
+            Arrays.fill(bits, start / 8, wholeEnd / 8, (byte) 0xff);
+            start = wholeEnd;
+        }
+        while (start < end) {
+            bits[start / 8] |= 0x80 >>> (start % 8);
+            start++;
+        }
+    }
+
+    /**
+     * @return bounding box of the set pixels as
+     * <code>{x, y, width, height}</code>, or <code>null</code> if no pixel
+     * is set
+     */
+    public int[] getBounds() {
+        int minX = width;
+        int minY = height;
+        int maxX = -1;
+        int maxY = -1;
+        int position = 0;
+        for (int i=0; i<runs.length; i++) {
+            final int start = position;
+            position += runs[i];
+            if (i % 2 == 0 || runs[i] == 0) {
+                continue;
+            }
+            final int y0 = start / width;
+            final int y1 = (position - 1) / width;
+            minY = Math.min(minY, y0);
+            maxY = Math.max(maxY, y1);
+            if (y0 == y1) {
+                minX = Math.min(minX, start % width);
+                maxX = Math.max(maxX, (position - 1) % width);
+            }
+            else {
+                // wraps from the end of one row to the start of the next
+                minX = 0;
+                maxX = width - 1;
+            }
+        }
+        if (maxX < 0) {
+            return null;
+        }
+        return new int[] {minX, minY, maxX - minX + 1, maxY - minY + 1};
+    }
+
+    /**
+     * Crop the mask, e.g. to its {@link #getBounds() bounding box}, without
+     * expanding it.
+     * @param x left edge of the region
+     * @param y top edge of the region
+     * @param w width of the region
+     * @param h height of the region
+     * @return mask of the region
+     */
+    public RunLengthMask crop(int x, int y, int w, int h) {
+        if (x < 0 || y < 0 || w < 0 || h < 0
+                || x + w > width || y + h > height) {
+            throw new IllegalArgumentException("Region " + x + "," + y +
+                    " " + w + "x" + h + " is outside of the mask");
+        }
+        final Builder builder = new Builder();
+        int written = 0;
+        int position = 0;
+        for (int i=0; i<runs.length; i++) {
+            final int start = position;
+            position += runs[i];
+            if (i % 2 == 0 || runs[i] == 0) {
+                continue;
+            }
+            final int y0 = Math.max(start / width, y);
+            final int y1 = Math.min((position - 1) / width, y + h - 1);
+            for (int row=y0; row<=y1; row++) {
+                final int rowStart = row * width;
+                final int from = Math.max(start, rowStart + x);
+                final int to = Math.min(position, rowStart + x + w);
+                if (from >= to) {
+                    continue;
+                }
+                final int target = (row - y) * w + (from - rowStart - x);
+                builder.append(false, target - written);
+                builder.append(true, to - from);
+                written = target + to - from;
+            }
+        }
+        builder.append(false, checkedSize(w, h) - written);
+        return builder.build(w, h);
+    }
+
+    @Override
+    public String toString() {
+        return "RunLengthMask(" + width + "x" + height + ", " +
+                runs.length + " runs)";
+    }
+
+    /** Accumulates runs, merging consecutive runs of the same value. */
+    private static class Builder {
+
+        private int[] runs = new int[16];
+
+        /** Number of runs, the last of which may still grow. */
+        private int count = 1;
+
+        void append(boolean set, int length) {
+            if (length == 0) {
+                return;
+            }
+            // runs at even indexes are clear, at odd indexes set
+            if (((count - 1) % 2 == 1) != set) {
+                if (count == runs.length) {
+                    runs = Arrays.copyOf(runs, runs.length * 2);
+                }
+                count++;
+            }
+            runs[count - 1] += length;
+        }
+
+        RunLengthMask build(int width, int height) {
+            return new RunLengthMask(
+                    width, height, Arrays.copyOf(runs, count));
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ome.formats.model.UnitsFactory;
+import ome.xml.model.enums.EnumerationException;
+import ome.xml.model.enums.handlers.UnitsLengthEnumHandler;
+import omero.RBool;
+import omero.RDouble;
+import omero.RInt;
+import omero.RLong;
+import omero.RString;
+import omero.RType;
+import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.model.AffineTransform;
+import omero.model.AffineTransformI;
+import omero.model.EllipseI;
+import omero.model.EventI;
+import omero.model.IObject;
+import omero.model.LabelI;
+import omero.model.Length;
+import omero.model.LengthI;
+import omero.model.LineI;
+import omero.model.Mask;
+import omero.model.PointI;
+import omero.model.PolygonI;
+import omero.model.PolylineI;
+import omero.model.RectangleI;
+import omero.model.Roi;
+import omero.model.RoiI;
+import omero.model.Shape;
+import omero.model.enums.UnitsLength;
+import omero.rtypes;
+import omero.sys.ParametersI;
+
+/**
+ * Lightweight alternative to hydrating ROIs with
+ * <code>JOIN FETCH r.shapes</code>.  Only the columns needed for export are
+ * requested with {@link IQueryPrx#projection}, one query per Shape type,
+ * and each row is turned into a minimal model object with just those
+ * properties and its update event ID set.  This avoids transferring and
+ * unmarshalling the full details (owner, group, permissions, events) of
+ * every ROI and Shape.
+ * <p>
+ * Stroke widths and font sizes are projected with their units.  Masks are
+ * fetched whole, as their data cannot be projected.
+ */
+public class ShapeProjection {
+
+    /** Columns projected for every Shape type, in order. */
+    private static final String SHAPE_COLUMNS =
+            "s.id, r.id, s.details.updateEvent.id, " +
+            "s.theZ, s.theT, s.theC, s.locked, " +
+            "s.fillColor, s.fillRule, s.strokeColor, s.strokeDashArray, " +
+            "s.strokeWidth.value, s.strokeWidth.unit, " +
+            "s.fontFamily, s.fontSize.value, s.fontSize.unit, " +
+            "s.fontStyle, s.textValue, " +
+            "t.a00, t.a01, t.a02, t.a10, t.a11, t.a12";
+
+    /** Number of columns in {@link #SHAPE_COLUMNS}. */
+    private static final int SHAPE_COLUMN_COUNT = 24;
+
+    /** Shape type name and the type specific columns projected for it. */
+    private static final String[][] SHAPE_TYPES = {
+        {"Rectangle", "s.x, s.y, s.width, s.height"},
+        {"Ellipse", "s.x, s.y, s.radiusX, s.radiusY"},
+        {"Point", "s.x, s.y"},
+        {"Line", "s.x1, s.y1, s.x2, s.y2, s.markerStart, s.markerEnd"},
+        {"Polyline", "s.points, s.markerStart, s.markerEnd"},
+        {"Polygon", "s.points"},
+        {"Label", "s.x, s.y"},
+    };
+
+    private final IQueryPrx query;
+
+    private final Map<String, String> context;
+
+    /**
+     * Creates a new projection.
+     * @param query query service
+     * @param context call context, e.g.
+     * {@link OMEOMEROConverter#ALL_GROUPS_CONTEXT}
+     */
+    public ShapeProjection(IQueryPrx query, Map<String, String> context) {
+        this.query = query;
+        this.context = context;
+    }
+
+    /**
+     * Query the server for the ROIs matching the given condition, and their
+     * Shapes.  As with a <code>JOIN FETCH</code>, ROIs without any
+     * projected Shape are not returned.
+     * @param condition HQL condition on the ROI alias <code>r</code>
+     * @param shapeCondition HQL condition on the Shape alias <code>s</code>,
+     * or <code>null</code> to fetch all Shapes
+     * @param params parameters used by both conditions
+     * @return the ROIs in ascending ID order, each with its Shapes in
+     * ascending ID order
+     * @throws ServerError if the ROIs could not be retrieved
+     */
+    public List<Roi> findRois(String condition, String shapeCondition,
+            ParametersI params) throws ServerError {
+        final Map<Long, Roi> rois = new LinkedHashMap<Long, Roi>();
+        // the Shape condition's parameters are in params as well, and every
+        // named parameter must be used by the query, so the ROIs are
+        // restricted to those with a selected Shape
+        final String roiWhere = shapeCondition != null ?
+                condition + " AND EXISTS (SELECT s.id FROM Shape s " +
+                "WHERE s.roi.id = r.id AND " + shapeCondition + ")" :
+                condition;
+        for (final List<RType> row : query.projection(
+                "SELECT r.id, r.name, r.description, " +
+                "r.details.updateEvent.id FROM Roi r " +
+                "WHERE " + roiWhere + " ORDER BY r.id",
+                params, context)) {
+            final Roi roi = new RoiI(((RLong) row.get(0)).getValue(), true);
+            roi.setName((RString) row.get(1));
+            roi.setDescription((RString) row.get(2));
+            setUpdateEvent(roi, row.get(3));
+            rois.put(roi.getId().getValue(), roi);
+        }
+        if (rois.isEmpty()) {
+            return new ArrayList<Roi>();
+        }
+
+        final String shapeWhere = shapeCondition != null ?
+                condition + " AND " + shapeCondition : condition;
+        final List<Shape> shapes = new ArrayList<Shape>();
+        final List<Long> shapeRoiIds = new ArrayList<Long>();
+        for (final String[] shapeType : SHAPE_TYPES) {
+            for (final List<RType> row : query.projection(
+                    "SELECT " + SHAPE_COLUMNS + ", " + shapeType[1] + " " +
+                    "FROM " + shapeType[0] + " s JOIN s.roi r " +
+                    "LEFT OUTER JOIN s.transform t " +
+                    "WHERE " + shapeWhere,
+                    params, context)) {
+                shapes.add(toShape(shapeType[0], row));
+                shapeRoiIds.add(((RLong) row.get(1)).getValue());
+            }
+        }
+        for (final IObject result : query.findAllByQuery(
+                "SELECT s FROM Mask s JOIN s.roi r WHERE " + shapeWhere,
+                params, context)) {
+            final Mask mask = (Mask) result;
+            shapes.add(mask);
+            shapeRoiIds.add(mask.getRoi().getId().getValue());
+        }
+        final Integer[] byId = new Integer[shapes.size()];
+        for (int i=0; i<byId.length; i++) {
+            byId[i] = i;
+        }
+        Arrays.sort(byId, Comparator.comparingLong(
+                i -> shapes.get(i).getId().getValue()));
+        for (final int i : byId) {
+            final Roi roi = rois.get(shapeRoiIds.get(i));
+            if (roi != null) {
+                roi.addShape(shapes.get(i));
+            }
+        }
+
+        final List<Roi> result = new ArrayList<Roi>(rois.size());
+        for (final Roi roi : rois.values()) {
+            if (roi.sizeOfShapes() > 0) {
+                result.add(roi);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Build a Shape from a projected row.
+     * @param type Shape type name
+     * @param row {@link #SHAPE_COLUMNS} followed by the type specific columns
+     * @return Shape with the projected properties set
+     */
+    private static Shape toShape(String type, List<RType> row) {
+        final long id = ((RLong) row.get(0)).getValue();
+        final int i = SHAPE_COLUMN_COUNT;
+        final Shape shape;
+        switch (type) {
+            case "Rectangle": {
+                final RectangleI rectangle = new RectangleI(id, true);
+                rectangle.setX((RDouble) row.get(i));
+                rectangle.setY((RDouble) row.get(i + 1));
+                rectangle.setWidth((RDouble) row.get(i + 2));
+                rectangle.setHeight((RDouble) row.get(i + 3));
+                shape = rectangle;
+                break;
+            }
+            case "Ellipse": {
+                final EllipseI ellipse = new EllipseI(id, true);
+                ellipse.setX((RDouble) row.get(i));
+                ellipse.setY((RDouble) row.get(i + 1));
+                ellipse.setRadiusX((RDouble) row.get(i + 2));
+                ellipse.setRadiusY((RDouble) row.get(i + 3));
+                shape = ellipse;
+                break;
+            }
+            case "Point": {
+                final PointI point = new PointI(id, true);
+                point.setX((RDouble) row.get(i));
+                point.setY((RDouble) row.get(i + 1));
+                shape = point;
+                break;
+            }
+            case "Line": {
+                final LineI line = new LineI(id, true);
+                line.setX1((RDouble) row.get(i));
+                line.setY1((RDouble) row.get(i + 1));
+                line.setX2((RDouble) row.get(i + 2));
+                line.setY2((RDouble) row.get(i + 3));
+                line.setMarkerStart((RString) row.get(i + 4));
+                line.setMarkerEnd((RString) row.get(i + 5));
+                shape = line;
+                break;
+            }
+            case "Polyline": {
+                final PolylineI polyline = new PolylineI(id, true);
+                polyline.setPoints((RString) row.get(i));
+                polyline.setMarkerStart((RString) row.get(i + 1));
+                polyline.setMarkerEnd((RString) row.get(i + 2));
+                shape = polyline;
+                break;
+            }
+            case "Polygon": {
+                final PolygonI polygon = new PolygonI(id, true);
+                polygon.setPoints((RString) row.get(i));
+                shape = polygon;
+                break;
+            }
+            case "Label": {
+                final LabelI label = new LabelI(id, true);
+                label.setX((RDouble) row.get(i));
+                label.setY((RDouble) row.get(i + 1));
+                shape = label;
+                break;
+            }
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported Shape type: " + type);
+        }
+        setUpdateEvent(shape, row.get(2));
+        shape.setTheZ((RInt) row.get(3));
+        shape.setTheT((RInt) row.get(4));
+        shape.setTheC((RInt) row.get(5));
+        shape.setLocked((RBool) row.get(6));
+        shape.setFillColor((RInt) row.get(7));
+        shape.setFillRule((RString) row.get(8));
+        shape.setStrokeColor((RInt) row.get(9));
+        shape.setStrokeDashArray((RString) row.get(10));
+        shape.setStrokeWidth(toLength(row.get(11), row.get(12)));
+        shape.setFontFamily((RString) row.get(13));
+        shape.setFontSize(toLength(row.get(14), row.get(15)));
+        shape.setFontStyle((RString) row.get(16));
+        shape.setTextValue((RString) row.get(17));
+        shape.setTransform(toTransform(row, 18));
+        return shape;
+    }
+
+    /**
+     * Build a length from a projected value and unit.
+     * @param value projected length value, may be <code>null</code>
+     * @param unit projected unit, either its symbol, e.g. <code>pixel</code>,
+     * or its enumeration name, e.g. <code>PIXEL</code>
+     * @return the length in its stored unit, or <code>null</code>
+     */
+    static Length toLength(RType value, RType unit) {
+        if (value == null) {
+            return null;
+        }
+        final double length = ((RDouble) value).getValue();
+        final String name = String.valueOf(rtypes.unwrap(unit));
+        try {
+            return UnitsFactory.convertLength(
+                    UnitsLengthEnumHandler.getQuantity(length, name));
+        }
+        catch (EnumerationException e) {
+            // not a symbol
+            return new LengthI(length, UnitsLength.valueOf(name));
+        }
+    }
+
+    /**
+     * @param row projected row
+     * @param i index of the first of the six transform columns
+     * @return the transform, or <code>null</code> if the Shape has none
+     */
+    private static AffineTransform toTransform(List<RType> row, int i) {
+        if (row.get(i) == null) {
+            return null;
+        }
+        final AffineTransform transform = new AffineTransformI();
+        transform.setA00((RDouble) row.get(i));
+        transform.setA01((RDouble) row.get(i + 1));
+        transform.setA02((RDouble) row.get(i + 2));
+        transform.setA10((RDouble) row.get(i + 3));
+        transform.setA11((RDouble) row.get(i + 4));
+        transform.setA12((RDouble) row.get(i + 5));
+        return transform;
+    }
+
+    /**
+     * Set the update event of a model object, as needed for its LSID.
+     * @param object model object
+     * @param updateEventId projected update event ID
+     */
+    private static void setUpdateEvent(IObject object, RType updateEventId) {
+        object.getDetails().setUpdateEvent(
+                new EventI(((RLong) updateEventId).getValue(), false));
+    }
+}
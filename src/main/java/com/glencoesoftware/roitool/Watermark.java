@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Update event watermark for incremental export.  OMERO update event IDs
+ * increase monotonically, so any ROI or Shape changed after an export has
+ * an update event ID greater than that of every object in the export.
+ * The LSIDs written by {@link LsidGenerator} end with the update event ID,
+ * so the watermark of an earlier export can be recovered from its IDs.
+ */
+public class Watermark {
+
+    private Watermark() {
+    }
+
+    /**
+     * Parse a watermark given either as an update event ID or as the path
+     * to an earlier export.
+     * @param value update event ID or OME-XML file path
+     * @return update event ID watermark
+     * @throws IOException if the file could not be read
+     */
+    public static long parse(String value) throws IOException {
+        if (value.matches("\\d+")) {
+            return Long.parseLong(value);
+        }
+        return fromExport(new File(value));
+    }
+
+    /**
+     * Find the highest update event ID among the LSIDs of an earlier
+     * export.  The file is streamed, so it may be of any size and may be
+     * compressed as described by {@link CompressedStreams}.
+     * @param file exported OME-XML file
+     * @return highest update event ID found, or 0 if there are no LSIDs
+     * @throws IOException if the file could not be read or parsed
+     */
+    public static long fromExport(File file) throws IOException {
+        long watermark = 0;
+        try (InputStream in = CompressedStreams.newInputStream(file)) {
+            final XMLStreamReader reader =
+                    XMLInputFactory.newInstance().createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        watermark = Math.max(watermark, getUpdateEventId(
+                                reader.getAttributeValue(null, "ID")));
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new IOException("Could not read watermark from " + file, e);
+        }
+        return watermark;
+    }
+
+    /**
+     * @param id value of an <code>ID</code> attribute, may be
+     * <code>null</code>
+     * @return the update event ID at the end of the LSID, or 0 if
+     * <code>id</code> is not an OMERO LSID
+     */
+    private static long getUpdateEventId(String id) {
+        if (id == null || !id.startsWith("urn:lsid:")) {
+            return 0;
+        }
+        final String updateId = id.substring(id.lastIndexOf(':') + 1);
+        if (!updateId.matches("\\d+")) {
+            return 0;
+        }
+        return Long.parseLong(updateId);
+    }
+}
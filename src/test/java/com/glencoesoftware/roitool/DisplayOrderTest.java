@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class DisplayOrderTest {
+
+    @Test
+    public void testFromJSON() {
+        final DisplayOrder order =
+                DisplayOrder.fromJSON("{\"displayorder\": [3, 1, 2]}");
+        Assert.assertEquals(order.size(), 3);
+        Assert.assertEquals(
+                DisplayOrder.fromJSON("{\"displayorder\": []}").size(), 0);
+    }
+
+    @Test(expectedExceptions = JSONException.class)
+    public void testFromJSONMissingOrder() {
+        DisplayOrder.fromJSON("{\"order\": [1]}");
+    }
+
+    @Test
+    public void testResolve() {
+        // Shapes 10 and 11 belong to ROI 0, 20 to ROI 1, 30 to ROI 2
+        final LongIntHashMap shapeRois = new LongIntHashMap(4);
+        shapeRois.put(10, 0);
+        shapeRois.put(11, 0);
+        shapeRois.put(20, 1);
+        shapeRois.put(30, 2);
+        final List<Long> missing = new ArrayList<Long>();
+        final int[] rois = new DisplayOrder(new long[] {30, 11, 99, 10, 20})
+                .resolve(shapeRois, 3, missing::add);
+        // ROI 0 is placed by its first listed Shape only
+        Assert.assertEquals(rois, new int[] {2, 0, 1});
+        Assert.assertEquals(missing.size(), 1);
+        Assert.assertEquals(missing.get(0).longValue(), 99);
+    }
+
+    @Test
+    public void testResolveUnlistedRois() {
+        final LongIntHashMap shapeRois = new LongIntHashMap(3);
+        shapeRois.put(1, 0);
+        shapeRois.put(2, 1);
+        shapeRois.put(3, 2);
+        final int[] rois = new DisplayOrder(new long[] {2})
+                .resolve(shapeRois, 3, id -> Assert.fail());
+        Assert.assertEquals(rois, new int[] {1});
+    }
+
+    @Test
+    public void testResolveEmpty() {
+        final int[] rois = new DisplayOrder(new long[0])
+                .resolve(new LongIntHashMap(0), 0, id -> Assert.fail());
+        Assert.assertEquals(rois.length, 0);
+    }
+}
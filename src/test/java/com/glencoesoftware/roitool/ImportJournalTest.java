@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ImportJournalTest {
+
+    private Path directory;
+
+    private File input;
+
+    private File file;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("roitool");
+        input = directory.resolve("rois.ome.xml").toFile();
+        Files.write(input.toPath(), "<OME/>".getBytes(StandardCharsets.UTF_8));
+        file = directory.resolve("rois.ome.xml.journal").toFile();
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(input.toPath());
+        Files.deleteIfExists(directory);
+    }
+
+    /** Journal of an import of two ROIs and an annotation. */
+    private void record() throws IOException {
+        try (ImportJournal journal = new ImportJournal(file, 1, input, false)) {
+            journal.recordAnnotation("Annotation:0", 100);
+            journal.recordRoi(0, 10);
+            journal.recordRoi(1, 11);
+            journal.sync();
+        }
+    }
+
+    private void append(String text) throws IOException {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.APPEND);
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        record();
+        try (ImportJournal journal = new ImportJournal(file, 1, input, true)) {
+            Assert.assertEquals(journal.getRoiId(0), Long.valueOf(10));
+            Assert.assertEquals(journal.getRoiId(1), Long.valueOf(11));
+            Assert.assertNull(journal.getRoiId(2));
+            Assert.assertEquals(
+                    journal.getAnnotationId("Annotation:0"), Long.valueOf(100));
+            Assert.assertNull(journal.getAnnotationId("Annotation:1"));
+            journal.recordRoi(2, 12);
+            journal.sync();
+        }
+        try (ImportJournal journal = new ImportJournal(file, 1, input, true)) {
+            Assert.assertEquals(journal.getRoiId(2), Long.valueOf(12));
+        }
+    }
+
+    @Test
+    public void testCreatedWithFirstRecord() throws IOException {
+        try (ImportJournal journal = new ImportJournal(file, 1, input, false)) {
+            journal.sync();
+            Assert.assertFalse(file.exists());
+            journal.recordRoi(0, 10);
+            journal.sync();
+            Assert.assertTrue(file.exists());
+        }
+    }
+
+    @Test
+    public void testNothingRecorded() throws IOException {
+        new ImportJournal(file, 1, input, false).close();
+        Assert.assertFalse(file.exists());
+        // a rerun is not blocked
+        new ImportJournal(file, 1, input, false).close();
+    }
+
+    @Test
+    public void testComplete() throws IOException {
+        final ImportJournal journal = new ImportJournal(file, 1, input, false);
+        journal.recordRoi(0, 10);
+        journal.sync();
+        journal.complete();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testExistsWithoutResume() throws IOException {
+        record();
+        new ImportJournal(file, 1, input, false);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testOtherImage() throws IOException {
+        record();
+        new ImportJournal(file, 2, input, true);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testOtherInput() throws IOException {
+        record();
+        Files.write(input.toPath(), "<OME></OME>".getBytes(StandardCharsets.UTF_8));
+        new ImportJournal(file, 1, input, true);
+    }
+
+    @Test
+    public void testTruncatedTail() throws IOException {
+        record();
+        final long length = file.length();
+        // the start of a record whose line end was never written
+        append("roi 2 1");
+        try (ImportJournal journal = new ImportJournal(file, 1, input, true)) {
+            Assert.assertNull(journal.getRoiId(2));
+            Assert.assertEquals(journal.getRoiId(1), Long.valueOf(11));
+            Assert.assertEquals(file.length(), length);
+            journal.recordRoi(2, 12);
+            journal.sync();
+        }
+        try (ImportJournal journal = new ImportJournal(file, 1, input, true)) {
+            Assert.assertEquals(journal.getRoiId(2), Long.valueOf(12));
+        }
+    }
+
+    @Test
+    public void testTruncatedChecksum() throws IOException {
+        record();
+        final List<String> lines = Files.readAllLines(file.toPath());
+        final String last = lines.get(lines.size() - 1);
+        // a complete record, but cut short along with its checksum
+        Files.write(file.toPath(), (String.join("\n",
+                lines.subList(0, lines.size() - 1)) + "\n" +
+                last.substring(0, last.length() - 3))
+                .getBytes(StandardCharsets.UTF_8));
+        try (ImportJournal journal = new ImportJournal(file, 1, input, true)) {
+            Assert.assertEquals(journal.getRoiId(0), Long.valueOf(10));
+            Assert.assertNull(journal.getRoiId(1));
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testCorruptRecord() throws IOException {
+        record();
+        final List<String> lines = Files.readAllLines(file.toPath());
+        lines.set(3, lines.get(3).replace("roi 0 10", "roi 0 19"));
+        Files.write(file.toPath(), lines);
+        new ImportJournal(file, 1, input, true);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LongIntHashMapTest {
+
+    @Test
+    public void testEmpty() {
+        final LongIntHashMap map = new LongIntHashMap(0);
+        Assert.assertEquals(map.size(), 0);
+        Assert.assertEquals(map.get(1, -1), -1);
+        Assert.assertFalse(map.containsKey(0));
+    }
+
+    @Test
+    public void testPut() {
+        final LongIntHashMap map = new LongIntHashMap(4);
+        map.put(0, 10);
+        map.put(-1, 20);
+        map.put(Long.MAX_VALUE, 30);
+        map.put(Long.MIN_VALUE, 40);
+        Assert.assertEquals(map.size(), 4);
+        Assert.assertEquals(map.get(0, -1), 10);
+        Assert.assertEquals(map.get(-1, -1), 20);
+        Assert.assertEquals(map.get(Long.MAX_VALUE, -1), 30);
+        Assert.assertEquals(map.get(Long.MIN_VALUE, -1), 40);
+        Assert.assertTrue(map.containsKey(Long.MIN_VALUE));
+        Assert.assertFalse(map.containsKey(1));
+    }
+
+    @Test
+    public void testReplace() {
+        final LongIntHashMap map = new LongIntHashMap(1);
+        map.put(7, 1);
+        map.put(7, 2);
+        Assert.assertEquals(map.size(), 1);
+        Assert.assertEquals(map.get(7, -1), 2);
+    }
+
+    @Test
+    public void testResize() {
+        final LongIntHashMap map = new LongIntHashMap(1);
+        final Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        final Random random = new Random(1);
+        for (int i=0; i<100000; i++) {
+            // sequential IDs, as OMERO assigns them, and random ones
+            final long key = i % 2 == 0 ? i : random.nextLong();
+            map.put(key, i);
+            expected.put(key, i);
+        }
+        Assert.assertEquals(map.size(), expected.size());
+        for (final Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            Assert.assertEquals(
+                    map.get(entry.getKey(), -1), entry.getValue().intValue());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import omero.model.EventI;
+import omero.model.IObject;
+import omero.model.ImageI;
+import omero.model.PolygonI;
+import omero.model.RectangleI;
+import omero.model.RoiI;
+
+public class LsidGeneratorTest {
+
+    private static final String UUID = "8b7c9b4e-d1a1-4ad0-9f4e-1c2b3d4e5f60";
+
+    private static <T extends IObject> T withUpdateEvent(
+            T object, long updateEventId) {
+        object.getDetails().setUpdateEvent(new EventI(updateEventId, false));
+        return object;
+    }
+
+    @Test
+    public void testApply() {
+        final LsidGenerator lsids = new LsidGenerator("openmicroscopy.org", UUID);
+        Assert.assertEquals(
+                lsids.apply(withUpdateEvent(new ImageI(1L, true), 42)),
+                "urn:lsid:openmicroscopy.org:Image:" + UUID + "_1:42");
+        Assert.assertEquals(
+                lsids.apply(withUpdateEvent(new RoiI(2L, true), 43)),
+                "urn:lsid:openmicroscopy.org:Roi:" + UUID + "_2:43");
+    }
+
+    @Test
+    public void testShapeTypes() {
+        // every Shape type shares the Shape LSID namespace
+        final LsidGenerator lsids = new LsidGenerator("example.org", UUID);
+        Assert.assertEquals(
+                lsids.apply(withUpdateEvent(new RectangleI(3L, true), 1)),
+                "urn:lsid:example.org:Shape:" + UUID + "_3:1");
+        Assert.assertEquals(
+                lsids.apply(withUpdateEvent(new PolygonI(4L, true), 2)),
+                "urn:lsid:example.org:Shape:" + UUID + "_4:2");
+    }
+
+    @Test
+    public void testReuse() {
+        final LsidGenerator lsids = new LsidGenerator("example.org", UUID);
+        final String first =
+                lsids.apply(withUpdateEvent(new RoiI(1234567L, true), 1));
+        final String second = lsids.apply(withUpdateEvent(new RoiI(5L, true), 2));
+        Assert.assertEquals(first,
+                "urn:lsid:example.org:Roi:" + UUID + "_1234567:1");
+        Assert.assertEquals(second, "urn:lsid:example.org:Roi:" + UUID + "_5:2");
+    }
+}
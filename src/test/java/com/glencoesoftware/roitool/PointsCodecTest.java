@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.Arrays;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PointsCodecTest {
+
+    private static double[] parse(String points) {
+        final PointsCodec codec = new PointsCodec();
+        Assert.assertTrue(codec.parse(points), points);
+        return Arrays.copyOf(codec.getCoordinates(), codec.getLength());
+    }
+
+    @Test
+    public void testParse() {
+        Assert.assertEquals(parse("1,2 3.5,-4"),
+                new double[] {1, 2, 3.5, -4});
+        Assert.assertEquals(parse(" 1 , 2\t3,4\n"),
+                new double[] {1, 2, 3, 4});
+        Assert.assertEquals(parse("1.25E-3,+7e2"),
+                new double[] {1.25E-3, 700});
+    }
+
+    @Test
+    public void testParseEmpty() {
+        Assert.assertEquals(parse("").length, 0);
+        Assert.assertEquals(parse("  ").length, 0);
+    }
+
+    @Test
+    public void testParseOddCoordinates() {
+        final PointsCodec codec = new PointsCodec();
+        Assert.assertFalse(codec.parse("1,2 3"));
+        Assert.assertEquals(codec.getLength(), 3);
+    }
+
+    @Test
+    public void testParseInvalid() {
+        final PointsCodec codec = new PointsCodec();
+        Assert.assertFalse(codec.parse("1,2 x,4"));
+        Assert.assertEquals(codec.getLength(), 2);
+        Assert.assertTrue(codec.parse("NaN,1"));
+        Assert.assertTrue(Double.isNaN(codec.getCoordinates()[0]));
+    }
+
+    @Test
+    public void testParseGrowsBuffer() {
+        final StringBuilder points = new StringBuilder();
+        for (int i=0; i<1000; i++) {
+            points.append(i).append(',').append(-i).append(' ');
+        }
+        final double[] coordinates = parse(points.toString());
+        Assert.assertEquals(coordinates.length, 2000);
+        Assert.assertEquals(coordinates[1998], 999.0);
+        Assert.assertEquals(coordinates[1999], -999.0);
+    }
+
+    @Test
+    public void testParseDoubleMatchesJava() {
+        final String[] values = {
+            "0", "-0", "0.1", "123.456789", "1e22", "1e23", "9007199254740993",
+            "0.30000000000000004", "12345678901234567890", "4.9E-324",
+            "1.7976931348623157E308", "-2.5e-10", ".5", "5."
+        };
+        for (final String value : values) {
+            Assert.assertEquals(
+                    PointsCodec.parseDouble(value, 0, value.length()),
+                    Double.parseDouble(value), value);
+        }
+        Assert.assertTrue(Double.isNaN(PointsCodec.parseDouble("-", 0, 1)));
+        Assert.assertTrue(Double.isNaN(PointsCodec.parseDouble("1x", 0, 2)));
+    }
+
+    @Test
+    public void testFormat() {
+        final PointsCodec codec = new PointsCodec();
+        Assert.assertTrue(codec.parse("12.500000,3.000000 -0.125000,1e3"));
+        Assert.assertEquals(codec.format(), "12.5,3 -0.125,1000");
+        Assert.assertTrue(codec.parse(""));
+        Assert.assertEquals(codec.format(), "");
+    }
+
+    @Test
+    public void testAppendDoubleRoundTrip() {
+        final double[] values = {
+            0.1, 1.0 / 3, 123456.78901234, -1e-9, 1e300, Math.PI,
+            Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY
+        };
+        for (final double value : values) {
+            final StringBuilder out = new StringBuilder();
+            PointsCodec.appendDouble(value, out);
+            Assert.assertEquals(Double.parseDouble(out.toString()), value,
+                    out.toString());
+        }
+        final StringBuilder out = new StringBuilder();
+        PointsCodec.appendDouble(0.1, out);
+        Assert.assertEquals(out.toString(), "0.1");
+    }
+}
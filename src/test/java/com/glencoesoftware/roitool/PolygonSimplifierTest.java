@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class PolygonSimplifierTest {
+
+    @Test
+    public void testCollinear() {
+        Assert.assertEquals(
+                PolygonSimplifier.simplify("0,0 1,0 2,0 3,0 4,0", 0.5, false),
+                "0,0 4,0");
+    }
+
+    @Test
+    public void testWithinTolerance() {
+        Assert.assertEquals(
+                PolygonSimplifier.simplify("0,0 1,0.1 2,-0.1 3,0", 0.5, false),
+                "0,0 3,0");
+        Assert.assertEquals(
+                PolygonSimplifier.simplify("0,0 1,1 2,0", 0.5, false),
+                "0,0 1,1 2,0");
+    }
+
+    @Test
+    public void testClosed() {
+        // a square traced with a vertex in the middle of each edge
+        final String square = "0,0 5,0 10,0 10,5 10,10 5,10 0,10 0,5";
+        Assert.assertEquals(PolygonSimplifier.simplify(square, 0.5, true),
+                "0,0 10,0 10,10 0,10");
+    }
+
+    @Test
+    public void testKeepsFormatting() {
+        Assert.assertEquals(PolygonSimplifier.simplify(
+                "0.000000,0.000000 1.000000,0.000000 2.500000,0.000000 " +
+                "2.500000,4.000000", 0.5, false),
+                "0.000000,0.000000 2.500000,0.000000 2.500000,4.000000");
+    }
+
+    @Test
+    public void testUnchanged() {
+        final String triangle = "0,0 10,0 5,5";
+        Assert.assertSame(
+                PolygonSimplifier.simplify(triangle, 0.5, true), triangle);
+        final String line = "0,0 1,1";
+        Assert.assertSame(PolygonSimplifier.simplify(line, 0.5, false), line);
+        final String points = "0,0 1,0 2,0";
+        Assert.assertSame(PolygonSimplifier.simplify(points, 0, false), points);
+        Assert.assertNull(PolygonSimplifier.simplify(null, 0.5, false));
+    }
+
+    @Test
+    public void testDegenerateClosed() {
+        // simplifying to fewer than three vertices leaves a Polygon as it is
+        final String flat = "0,0 1,0 2,0 3,0";
+        Assert.assertSame(PolygonSimplifier.simplify(flat, 0.5, true), flat);
+    }
+
+    @Test
+    public void testInvalid() {
+        final String empty = "";
+        Assert.assertSame(PolygonSimplifier.simplify(empty, 0.5, false), empty);
+        final String odd = "0,0 1,0 2";
+        Assert.assertSame(PolygonSimplifier.simplify(odd, 0.5, false), odd);
+        final String invalid = "0,0 1,x 2,0 3,0";
+        Assert.assertSame(
+                PolygonSimplifier.simplify(invalid, 0.5, false), invalid);
+    }
+
+    @Test
+    public void testLongOutline() {
+        // a staircase outline traced pixel by pixel
+        final StringBuilder points = new StringBuilder();
+        for (int i=0; i<10000; i++) {
+            points.append(i).append(',').append(i).append(' ');
+            points.append(i + 1).append(',').append(i).append(' ');
+        }
+        final String simplified =
+                PolygonSimplifier.simplify(points.toString(), 1, false);
+        Assert.assertEquals(simplified, "0,0 10000,9999");
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import static omero.rtypes.rdouble;
+import static omero.rtypes.rint;
+import static omero.rtypes.rstring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import omero.model.Ellipse;
+import omero.model.EllipseI;
+import omero.model.Line;
+import omero.model.LineI;
+import omero.model.Polygon;
+import omero.model.PolygonI;
+import omero.model.Polyline;
+import omero.model.PolylineI;
+import omero.model.Rectangle;
+import omero.model.RectangleI;
+import omero.model.Roi;
+import omero.model.RoiI;
+import omero.model.Shape;
+
+public class RoiFilterTest {
+
+    private static RoiFilter boundingBox(
+            double x, double y, double width, double height) {
+        final RoiFilter filter = new RoiFilter();
+        filter.setBoundingBox(x, y, width, height);
+        return filter;
+    }
+
+    private static Polygon polygon(String points) {
+        final Polygon polygon = new PolygonI();
+        polygon.setPoints(rstring(points));
+        return polygon;
+    }
+
+    private static Polyline polyline(String points) {
+        final Polyline polyline = new PolylineI();
+        polyline.setPoints(rstring(points));
+        return polyline;
+    }
+
+    private static Line line(double x1, double y1, double x2, double y2) {
+        final Line line = new LineI();
+        line.setX1(rdouble(x1));
+        line.setY1(rdouble(y1));
+        line.setX2(rdouble(x2));
+        line.setY2(rdouble(y2));
+        return line;
+    }
+
+    private static Ellipse ellipse(double x, double y, double rx, double ry) {
+        final Ellipse ellipse = new EllipseI();
+        ellipse.setX(rdouble(x));
+        ellipse.setY(rdouble(y));
+        ellipse.setRadiusX(rdouble(rx));
+        ellipse.setRadiusY(rdouble(ry));
+        return ellipse;
+    }
+
+    private static Shape onPlane(Shape shape, Integer z, Integer c, Integer t) {
+        shape.setTheZ(z == null ? null : rint(z));
+        shape.setTheC(c == null ? null : rint(c));
+        shape.setTheT(t == null ? null : rint(t));
+        return shape;
+    }
+
+    @Test
+    public void testNoFilter() {
+        final RoiFilter filter = new RoiFilter();
+        Assert.assertTrue(filter.matches(polygon("0,0 1,0 1,1")));
+        Assert.assertNull(filter.getShapeCondition("s"));
+    }
+
+    @Test
+    public void testPlaneRanges() {
+        final RoiFilter filter = new RoiFilter();
+        filter.setZRange(1, 3);
+        filter.setCRange(0, 0);
+        filter.setTRange(2, 2);
+        Assert.assertTrue(filter.matches(onPlane(new RectangleI(), 1, 0, 2)));
+        Assert.assertTrue(filter.matches(onPlane(new RectangleI(), 3, 0, 2)));
+        Assert.assertFalse(filter.matches(onPlane(new RectangleI(), 4, 0, 2)));
+        Assert.assertFalse(filter.matches(onPlane(new RectangleI(), 1, 1, 2)));
+        Assert.assertFalse(filter.matches(onPlane(new RectangleI(), 1, 0, 0)));
+        // Shapes on all planes of a dimension pass its range
+        Assert.assertTrue(
+                filter.matches(onPlane(new RectangleI(), null, null, null)));
+    }
+
+    @Test
+    public void testShapeTypes() {
+        final RoiFilter filter = new RoiFilter();
+        filter.setShapeTypes(Arrays.asList("Polygon", "Line"));
+        Assert.assertTrue(filter.matches(polygon("0,0 1,0 1,1")));
+        Assert.assertTrue(filter.matches(line(0, 0, 1, 1)));
+        Assert.assertFalse(filter.matches(new RectangleI()));
+        Assert.assertFalse(filter.matches(polyline("0,0 1,1")));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownShapeType() {
+        new RoiFilter().setShapeTypes(Collections.singleton("Circle"));
+    }
+
+    @Test
+    public void testPolygon() {
+        final RoiFilter filter = boundingBox(10, 10, 10, 10);
+        // an edge crosses the box
+        Assert.assertTrue(filter.matches(polygon("0,0 15,15 0,30")));
+        // the box is inside the polygon, which no edge crosses
+        Assert.assertTrue(filter.matches(polygon("0,0 100,0 100,100 0,100")));
+        // the polygon is inside the box
+        Assert.assertTrue(filter.matches(polygon("12,12 18,12 15,18")));
+        Assert.assertFalse(filter.matches(polygon("30,30 40,30 40,40")));
+        // the closing edge crosses the box
+        Assert.assertTrue(filter.matches(polygon("0,15 0,0 30,0 30,15")));
+    }
+
+    @Test
+    public void testPolyline() {
+        final RoiFilter filter = boundingBox(10, 10, 10, 10);
+        Assert.assertTrue(filter.matches(polyline("0,15 30,15")));
+        Assert.assertFalse(filter.matches(polyline("0,0 100,0 100,100")));
+        // a polyline is not closed
+        Assert.assertFalse(filter.matches(polyline("0,15 0,0 30,0 30,15")));
+        // a single point
+        Assert.assertTrue(filter.matches(polyline("15,15")));
+        Assert.assertFalse(filter.matches(polyline("5,5")));
+    }
+
+    @Test
+    public void testInvalidPoints() {
+        final RoiFilter filter = boundingBox(10, 10, 10, 10);
+        // the unpaired last coordinate is ignored
+        Assert.assertTrue(filter.matches(polyline("0,15 30,15 40")));
+        Assert.assertFalse(filter.matches(polyline("")));
+    }
+
+    @Test
+    public void testLine() {
+        final RoiFilter filter = boundingBox(10, 10, 10, 10);
+        Assert.assertTrue(filter.matches(line(0, 0, 30, 30)));
+        Assert.assertTrue(filter.matches(line(15, 15, 15, 15)));
+        Assert.assertFalse(filter.matches(line(0, 30, 30, 40)));
+        // touching the edge of the box
+        Assert.assertTrue(filter.matches(line(0, 10, 30, 10)));
+    }
+
+    @Test
+    public void testEllipse() {
+        final RoiFilter filter = boundingBox(10, 10, 10, 10);
+        Assert.assertTrue(filter.matches(ellipse(15, 15, 1, 1)));
+        Assert.assertTrue(filter.matches(ellipse(5, 15, 6, 2)));
+        Assert.assertFalse(filter.matches(ellipse(5, 15, 4, 2)));
+        // the box corner lies outside the ellipse, within its bounding box
+        Assert.assertFalse(filter.matches(ellipse(5, 5, 5, 5)));
+        // a degenerate ellipse is a line
+        Assert.assertTrue(filter.matches(ellipse(15, 5, 0, 10)));
+        Assert.assertFalse(filter.matches(ellipse(5, 5, 0, 4)));
+    }
+
+    @Test
+    public void testRectangleTestedByQuery() {
+        final RoiFilter filter = boundingBox(10, 10, 10, 10);
+        final Rectangle rectangle = new RectangleI();
+        rectangle.setX(rdouble(100));
+        rectangle.setY(rdouble(100));
+        rectangle.setWidth(rdouble(1));
+        rectangle.setHeight(rdouble(1));
+        Assert.assertTrue(filter.matches(rectangle));
+        Assert.assertTrue(filter.getShapeCondition("s").contains(
+                "s.id IN (SELECT q.id FROM Rectangle q WHERE "));
+    }
+
+    @Test
+    public void testApply() {
+        final RoiFilter filter = boundingBox(10, 10, 10, 10);
+        final Roi inside = new RoiI();
+        inside.addShape(line(0, 0, 30, 30));
+        inside.addShape(line(0, 0, 1, 1));
+        final Roi outside = new RoiI();
+        outside.addShape(line(0, 0, 1, 1));
+        final List<Roi> rois = new ArrayList<Roi>(Arrays.asList(inside, outside));
+        filter.apply(rois);
+        Assert.assertEquals(rois.size(), 1);
+        Assert.assertSame(rois.get(0), inside);
+        Assert.assertEquals(inside.sizeOfShapes(), 1);
+    }
+
+    @Test
+    public void testParseRange() {
+        Assert.assertEquals(RoiFilter.parseRange("3"), new int[] {3, 3});
+        Assert.assertEquals(RoiFilter.parseRange(" 0 - 4 "), new int[] {0, 4});
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        RoiFilter.parseRange("4-2");
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2019 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.roitool;
+
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RunLengthMaskTest {
+
+    private static boolean get(byte[] bits, int bit) {
+        return (bits[bit / 8] & (0x80 >>> (bit % 8))) != 0;
+    }
+
+    private static byte[] random(int length, long seed) {
+        final byte[] bits = new byte[length];
+        new Random(seed).nextBytes(bits);
+        return bits;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final byte[] bits = random(32, 1);
+        final RunLengthMask mask = RunLengthMask.fromBits(bits, 32, 16, 16);
+        Assert.assertEquals(mask.getBitsLength(), 32);
+        Assert.assertEquals(mask.toBits(), bits);
+        long area = 0;
+        for (int i=0; i<256; i++) {
+            area += get(bits, i) ? 1 : 0;
+        }
+        Assert.assertEquals(mask.getArea(), area);
+    }
+
+    @Test
+    public void testSolid() {
+        final byte[] bits = new byte[128];
+        java.util.Arrays.fill(bits, (byte) 0xff);
+        final RunLengthMask mask = RunLengthMask.fromBits(bits, 128, 32, 32);
+        // an empty clear run followed by one set run
+        Assert.assertEquals(mask.getRunCount(), 2);
+        Assert.assertEquals(mask.getArea(), 1024);
+        Assert.assertEquals(mask.toBits(), bits);
+    }
+
+    @Test
+    public void testPartialLastByte() {
+        // 3x3 mask: 9 bits, the last one in the top bit of the second byte
+        final byte[] bits = {(byte) 0b10101010, (byte) 0b11111111};
+        final RunLengthMask mask = RunLengthMask.fromBits(bits, 2, 3, 3);
+        Assert.assertEquals(mask.getBitsLength(), 2);
+        Assert.assertEquals(mask.getArea(), 5);
+        // bits beyond the mask are dropped
+        Assert.assertEquals(mask.toBits(),
+                new byte[] {(byte) 0b10101010, (byte) 0b10000000});
+    }
+
+    @Test
+    public void testMissingTrailingBits() {
+        final byte[] bits = {(byte) 0xff};
+        final RunLengthMask mask = RunLengthMask.fromBits(bits, 1, 4, 4);
+        Assert.assertEquals(mask.getArea(), 8);
+        Assert.assertEquals(mask.toBits(), new byte[] {(byte) 0xff, 0});
+    }
+
+    @Test
+    public void testEmpty() {
+        final RunLengthMask mask =
+                RunLengthMask.fromBits(new byte[8], 8, 8, 8);
+        Assert.assertEquals(mask.getArea(), 0);
+        Assert.assertNull(mask.getBounds());
+        Assert.assertEquals(mask.toBits(), new byte[8]);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        RunLengthMask.fromBits(new byte[0], 0, 65536, 65536);
+    }
+
+    @Test
+    public void testBounds() {
+        // 8x4 mask with pixels set at (2,1), (3,1) and (5,2)
+        final byte[] bits = {0, 0b00110000, 0b00000100, 0};
+        final RunLengthMask mask = RunLengthMask.fromBits(bits, 4, 8, 4);
+        Assert.assertEquals(mask.getBounds(), new int[] {2, 1, 4, 2});
+    }
+
+    @Test
+    public void testBoundsOfWrappingRun() {
+        // a run from the end of row 0 to the start of row 1
+        final byte[] bits = {0b00000011, (byte) 0b10000000};
+        final RunLengthMask mask = RunLengthMask.fromBits(bits, 2, 8, 2);
+        Assert.assertEquals(mask.getBounds(), new int[] {0, 0, 8, 2});
+    }
+
+    @Test
+    public void testCrop() {
+        final int width = 13;
+        final int height = 11;
+        final byte[] bits = random((width * height + 7) / 8, 2);
+        final RunLengthMask mask =
+                RunLengthMask.fromBits(bits, bits.length, width, height);
+        final int x = 3;
+        final int y = 2;
+        final int w = 7;
+        final int h = 5;
+        final RunLengthMask cropped = mask.crop(x, y, w, h);
+        Assert.assertEquals(cropped.getWidth(), w);
+        Assert.assertEquals(cropped.getHeight(), h);
+        final byte[] croppedBits = cropped.toBits();
+        for (int row=0; row<h; row++) {
+            for (int column=0; column<w; column++) {
+                Assert.assertEquals(get(croppedBits, row * w + column),
+                        get(bits, (row + y) * width + column + x));
+            }
+        }
+    }
+
+    @Test
+    public void testCropToBounds() {
+        final byte[] bits = {0, 0b00110000, 0b00000100, 0};
+        final RunLengthMask mask = RunLengthMask.fromBits(bits, 4, 8, 4);
+        final int[] bounds = mask.getBounds();
+        final RunLengthMask cropped =
+                mask.crop(bounds[0], bounds[1], bounds[2], bounds[3]);
+        Assert.assertEquals(cropped.getArea(), mask.getArea());
+        Assert.assertEquals(cropped.getBounds(), new int[] {0, 0, 4, 2});
+        Assert.assertEquals(cropped.toBits(), new byte[] {(byte) 0b11000001});
+    }
+
+    @Test
+    public void testCropWholeMask() {
+        final byte[] bits = random(8, 3);
+        final RunLengthMask mask = RunLengthMask.fromBits(bits, 8, 8, 8);
+        Assert.assertEquals(mask.crop(0, 0, 8, 8).toBits(), bits);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testCropOutside() {
+        RunLengthMask.fromBits(new byte[8], 8, 8, 8).crop(4, 4, 5, 4);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testCropNegative() {
+        RunLengthMask.fromBits(new byte[8], 8, 8, 8).crop(-1, 0, 2, 2);
+    }
+}